@@ -0,0 +1,66 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.Arrays;
+
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Attributes;
+
+/**
+ * The precomputed values of the non-value attributes of a node, by attribute ID.
+ * <p>
+ * A table is immutable, so it can be shared by many nodes and read concurrently, and the Variants
+ * it returns are reused for every read instead of being created again. Node managers that do not
+ * use UaNode objects can answer the attribute reads of browsing clients directly from their
+ * tables.
+ */
+public final class AttributeTable {
+  /**
+   * A table without attributes.
+   */
+  public static final AttributeTable EMPTY = new AttributeTable(new Variant[0]);
+
+  private final Variant[] values;
+
+  private AttributeTable(Variant[] values) {
+    this.values = values;
+  }
+
+  /**
+   * @param attributeId the ID of the attribute
+   * @return the value of the attribute, which may be an empty Variant; null if the node does not
+   *         have the attribute
+   */
+  public Variant get(UnsignedInteger attributeId) {
+    long id = attributeId.longValue();
+    return id < values.length ? values[(int) id] : null;
+  }
+
+  /**
+   * @param attributeId the ID of the attribute
+   * @return whether the node has the attribute
+   */
+  public boolean has(UnsignedInteger attributeId) {
+    return get(attributeId) != null;
+  }
+
+  /**
+   * Create a table that has the attributes of this table and the given one.
+   *
+   * @param attributeId the ID of the attribute, e.g. {@link Attributes#BrowseName}
+   * @param value the value of the attribute, null for an attribute without a value
+   * @return the new table
+   */
+  public AttributeTable with(UnsignedInteger attributeId, Object value) {
+    int id = attributeId.intValue();
+    Variant[] copy = Arrays.copyOf(values, Math.max(values.length, id + 1));
+    copy[id] = value == null ? Variant.NULL : new Variant(value);
+    return new AttributeTable(copy);
+  }
+}
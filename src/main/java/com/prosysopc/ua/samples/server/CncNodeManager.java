@@ -8,6 +8,7 @@ import com.prosysopc.ua.server.*;
 import com.prosysopc.ua.server.nodes.*;
 import com.prosysopc.ua.stack.builtintypes.*;
 import com.prosysopc.ua.stack.core.*;
+import com.prosysopc.ua.types.opcua.server.BaseEventTypeNode;
 
 import java.util.*;
 
@@ -25,6 +26,9 @@ public class CncNodeManager extends NodeManagerUaNode {
 
     private UaObjectNode rootMachine;
 
+    // History-Reads laufen über den Router: TimescaleDB für die Energievariablen, sonst MyHistorian
+    private final HistoryListenerRouter historyRouter = new HistoryListenerRouter();
+
     // interne Variablennamen
     private UaVariableNode statusNode;
     private UaVariableNode spindleTargetNode, spindleActualNode;
@@ -45,8 +49,26 @@ public class CncNodeManager extends NodeManagerUaNode {
     private UaVariableNode machiningPhaseNode;
 
     private UaVariableNode goodPartsNode, badPartsNode, totalPartsNode;
+    private UaVariableNode availabilityNode, performanceNode, qualityNode, oeeNode;
+
+    private ProductionSimulator production;
+    private long lastProductionTick;
 
     private final Random rng = new Random();
+    private final Object commitLock = new Object();
+    private MethodDispatcher methodDispatcher;
+
+    private static final double MAX_SPINDLE_SPEED = 24000.0;
+    private static final long SETUP_TIME_MS = 2000;
+
+    // Achsen und Schnittkräfte: 1 kHz Abtastung, Fenster der letzten 1024 Samples
+    public static final int AXIS_SAMPLE_RATE_HZ = 1000;
+    public static final int WAVEFORM_WINDOW = 1024;
+
+    private final ToolpathSimulator toolpath = new ToolpathSimulator(AXIS_SAMPLE_RATE_HZ, 4 * WAVEFORM_WINDOW);
+    private final UaVariableNode[] signalNodes = new UaVariableNode[ToolpathSimulator.Signal.values().length];
+    private final UaVariableNode[] waveformNodes = new UaVariableNode[ToolpathSimulator.Signal.values().length];
+    private final double[] waveformBuffer = new double[WAVEFORM_WINDOW];
 
     public CncNodeManager(UaServer server, String namespaceUri) {
         super(server, namespaceUri);
@@ -57,7 +79,9 @@ public class CncNodeManager extends NodeManagerUaNode {
         super.init();
         createRootMachineNode();
         createAllVariables();
+        initProduction();
         registerMethods();
+        getHistoryManager().setListener(historyRouter);
     }
 
     // -------------------------------------------------------------------------
@@ -71,6 +95,8 @@ public class CncNodeManager extends NodeManagerUaNode {
                 new QualifiedName(ns, "CncMachine"),
                 LocalizedText.english("CNC Machining Center")
         );
+        // Quelle der PartCompleted-Events
+        rootMachine.setEventNotifier(EventNotifierType.of(EventNotifierType.Options.SubscribeToEvents));
 
         addNodeAndReference(
                 getServer().getNodeManagerRoot().getObjectsFolder(),
@@ -101,6 +127,28 @@ public class CncNodeManager extends NodeManagerUaNode {
         return var;
     }
 
+    private UaVariableNode createWaveformVar(String name) throws StatusException {
+        int ns = getNamespaceIndex();
+
+        PlainVariable<?> var = new PlainVariable<>(
+                this,
+                new NodeId(ns, name),
+                new QualifiedName(ns, name),
+                LocalizedText.english(name)
+        );
+
+        var.addReference(Identifiers.HasTypeDefinition, Identifiers.BaseDataVariableType, false);
+        var.setDescription(LocalizedText.english("Last " + WAVEFORM_WINDOW + " samples at "
+                + AXIS_SAMPLE_RATE_HZ + " Hz, oldest first"));
+        var.setDataTypeId(Identifiers.Double);
+        var.setValueRank(ValueRanks.OneDimension);
+        var.setArrayDimensions(new UnsignedInteger[] {UnsignedInteger.valueOf(WAVEFORM_WINDOW)});
+        var.setValue(new Variant(new double[WAVEFORM_WINDOW]));
+
+        addNodeAndReference(rootMachine, var, Identifiers.HasComponent);
+        return var;
+    }
+
     private NodeId getDataTypeId(Object v) {
         if (v instanceof Integer) return Identifiers.Int32;
         if (v instanceof Double || v instanceof Float) return Identifiers.Double;
@@ -160,6 +208,69 @@ public class CncNodeManager extends NodeManagerUaNode {
         totalPartsNode  = createVar("TotalParts", 2870.0);
 
         alarmNode       = createVar("AlarmMessage", "OK");
+
+        // OEE-Kennzahlen in Prozent, werden von der Produktionssimulation berechnet
+        availabilityNode = createVar("Availability", 100.0);
+        performanceNode  = createVar("Performance", 100.0);
+        qualityNode      = createVar("Quality", 100.0);
+        oeeNode          = createVar("OEE", 100.0);
+
+        // Hochfrequente Signale: Skalar = letzter Wert, Waveform = Fenster der letzten Samples
+        UaVariableNode[] scalars = {posX, posY, posZ, cuttingForceX, cuttingForceY, cuttingForceZ};
+        for (ToolpathSimulator.Signal signal : ToolpathSimulator.Signal.values()) {
+            UaVariableNode scalar = scalars[signal.ordinal()];
+            signalNodes[signal.ordinal()] = scalar;
+            waveformNodes[signal.ordinal()] = createWaveformVar(scalar.getBrowseName().getName() + "Waveform");
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Historie aus TimescaleDB
+    // -------------------------------------------------------------------------
+
+    /** Maschine, unter der die Energie-Events in cnc_energy_events gespeichert werden */
+    public static final String ENERGY_MACHINE = "CNC-ENERGY-01";
+
+    /**
+     * Legt die Energie- und Wartungsvariablen an und beantwortet deren History-Reads aus
+     * TimescaleDB.
+     */
+    public void enableTimescaleHistory(TimescaleHistorian historian) throws StatusException {
+        // Name, Event-Typ, Spalte
+        String[][] series = {
+                {"EnergyConsumption", "ENERGY_SAMPLE", "energy_kwh"},
+                {"CurrentDraw", "ENERGY_SAMPLE", "current_a"},
+                {"Voltage", "ENERGY_SAMPLE", "voltage_v"},
+                {"PowerFactor", "ENERGY_SAMPLE", "power_factor"},
+                {"SpindleVibration", "MAINTENANCE_SAMPLE", "spindle_vibration_mm"},
+                {"BearingTemperature", "MAINTENANCE_SAMPLE", "bearing_temp"}
+        };
+        for (String[] s : series) {
+            UaVariableNode variable = createVar(s[0], 0.0);
+            historian.addVariableHistory(variable, ENERGY_MACHINE, s[1], s[2]);
+            historyRouter.route(variable, historian);
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // Historie im Server (MyHistorian)
+    // -------------------------------------------------------------------------
+
+    /**
+     * Zeichnet die Prozessvariablen und die Events der Maschine mit dem Historian auf. Ob die
+     * Historie im Speicher, komprimiert oder in Segmentdateien liegt, bestimmt die Konfiguration
+     * des Historians. Die hochfrequenten Achs- und Kraftsignale werden nicht historisiert, ihre
+     * letzten Samples stehen in den Waveform-Variablen.
+     */
+    public void enableHistory(MyHistorian historian) {
+        UaVariableNode[] variables = {spindleActualNode, feedActualNode, coolantTempNode, toolLifeNode, sfActualNode,
+                coolantFlowActual, cycleTimeActual, productionProgressNode, goodPartsNode, badPartsNode,
+                totalPartsNode, availabilityNode, performanceNode, qualityNode, oeeNode};
+        for (UaVariableNode variable : variables) {
+            historian.addVariableHistory(variable);
+        }
+        historian.addEventHistory(rootMachine);
+        historyRouter.setDefaultListener(historian);
     }
 
     // -------------------------------------------------------------------------
@@ -180,82 +291,353 @@ public class CncNodeManager extends NodeManagerUaNode {
     public void simulateCycle() {
 
         try {
+            BatchWrite batch = beginBatch();
+
             // Spindel: leichte Variation um den Zielwert
             double targetRpm = readDouble(spindleTargetNode);
             double currentRpm = targetRpm + (rng.nextDouble() - 0.5) * 80.0;
-            spindleActualNode.setValue(new Variant(currentRpm));
+            batch.set(spindleActualNode, currentRpm);
 
             // Vorschub: leichte Variation
             double targetFeed = readDouble(feedTargetNode);
             double currentFeed = targetFeed + (rng.nextDouble() - 0.5) * 20.0;
-            feedActualNode.setValue(new Variant(currentFeed));
+            batch.set(feedActualNode, currentFeed);
+
+            // Achssimulation mit den aktuellen Prozessparametern weiterführen
+            toolpath.setProcessParameters(currentRpm, currentFeed);
 
             // Werkzeugverschleiß: langsam abnehmend
             double toolLife = readDouble(toolLifeNode);
             toolLife = Math.max(0.0, toolLife - (0.1 + rng.nextDouble() * 0.3));
-            toolLifeNode.setValue(new Variant(toolLife));
+            batch.set(toolLifeNode, toolLife);
 
             // Oberflächenqualität: leichte Schwankung um Ziel
             double sfTarget = readDouble(sfTargetNode);
             double sfActual = sfTarget + (rng.nextDouble() - 0.5) * 0.01;
-            sfActualNode.setValue(new Variant(sfActual));
+            batch.set(sfActualNode, sfActual);
 
             // Kühlmitteltemperatur: leichte Schwankungen
             double coolant = readDouble(coolantTempNode);
             coolant += (rng.nextDouble() - 0.5) * 0.2;
-            coolantTempNode.setValue(new Variant(coolant));
+            batch.set(coolantTempNode, coolant);
 
             // einfache Alarm-Logik, anders als in deiner ersten Version
             if (Math.abs(currentRpm - targetRpm) > targetRpm * 0.12) {
-                alarmNode.setValue(new Variant("Spindle deviation detected"));
-                statusNode.setValue(new Variant("Error"));
+                batch.set(alarmNode, "Spindle deviation detected");
+                batch.set(statusNode, "Error");
             } else if (toolLife < 5) {
-                alarmNode.setValue(new Variant("Tool end-of-life"));
-                statusNode.setValue(new Variant("Warning"));
+                batch.set(alarmNode, "Tool end-of-life");
+                batch.set(statusNode, "Warning");
             } else {
-                alarmNode.setValue(new Variant("OK"));
-                statusNode.setValue(new Variant("Running"));
+                batch.set(alarmNode, "OK");
+                batch.set(statusNode, "Running");
             }
 
+            // alle Werte gemeinsam mit einem Zeitstempel übernehmen
+            batch.commit();
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // simulateProduction – Teilezähler, Taktzeit und OEE
+    // -------------------------------------------------------------------------
+    private void initProduction() throws StatusException {
+        production = new ProductionSimulator(readDouble(cycleTimeTarget), this::onPartCompleted);
+        // mit den Startwerten des Adressraums weiterzählen
+        production.setCounters((long) readDouble(goodPartsNode), (long) readDouble(badPartsNode));
+        double quantity = readDouble(quantityNode);
+        production.startOrder(quantity, Math.round(quantity * readDouble(productionProgressNode) / 100.0));
+    }
+
+    /**
+     * Schreitet die Produktion um die seit dem letzten Aufruf vergangene Zeit fort. Der Aufwand
+     * pro Tick ist O(1), unabhängig von der Anzahl bereits gefertigter Teile.
+     */
+    public void simulateProduction() {
+        long now = System.nanoTime();
+        double dt = lastProductionTick == 0 ? 0.0 : (now - lastProductionTick) / 1e9;
+        lastProductionTick = now;
+
+        try {
+            String status = String.valueOf(statusNode.getValue().getValue().getValue());
+            boolean producing = "Running".equals(status) || "Warning".equals(status);
+
+            // Ausschuss steigt mit dem Werkzeugverschleiß
+            double toolLife = readDouble(toolLifeNode);
+            production.setScrapRate(toolLife < 20 ? 0.01 + (20 - toolLife) * 0.01 : 0.01);
+            production.setTargetCycleTime(readDouble(cycleTimeTarget));
+
+            int completed = production.tick(dt, producing);
+
+            double cycleProgress = production.getCycleProgress();
+            String phase = !producing ? "Idle"
+                    : cycleProgress < 0.6 ? "Roughing"
+                    : cycleProgress < 0.9 ? "Finishing"
+                    : "Inspection";
+
+            BatchWrite batch = beginBatch().set(machiningPhaseNode, phase);
+            if (completed > 0) {
+                batch.set(goodPartsNode, (double) production.getGoodParts())
+                        .set(badPartsNode, (double) production.getBadParts())
+                        .set(totalPartsNode, (double) production.getTotalParts())
+                        .set(productionProgressNode, production.getOrderProgress())
+                        .set(cycleTimeActual, production.getLastCycleTime());
+            }
+            batch.set(availabilityNode, 100.0 * production.getAvailability())
+                    .set(performanceNode, 100.0 * production.getPerformance())
+                    .set(qualityNode, 100.0 * production.getQuality())
+                    .set(oeeNode, 100.0 * production.getOee())
+                    .commit();
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    private void onPartCompleted(boolean good, double cycleTime, long totalParts) {
+        BaseEventTypeNode ev = createEvent(BaseEventTypeNode.class);
+        ev.setSource(rootMachine);
+        ev.setSeverity(good ? 100 : 500);
+        ev.setMessage(LocalizedText.english(String.format(Locale.ROOT, "Part %d completed (%s), cycle time %.1f s",
+                totalParts, good ? "good" : "bad", cycleTime)));
+        ev.triggerEvent(null);
+    }
+
+    // -------------------------------------------------------------------------
+    // BatchWrite – serialisiertes Schreiben mehrerer Variablen
+    // -------------------------------------------------------------------------
+
+    /**
+     * Startet ein gebündeltes Schreiben. Die Werte werden erst mit {@link BatchWrite#commit()}
+     * übernommen.
+     */
+    public BatchWrite beginBatch() {
+        return new BatchWrite();
+    }
+
+    /**
+     * Sammelt neue Werte für mehrere Variablen und schreibt sie serialisiert in einem Durchgang.
+     * <p>
+     * Alle Werte eines Commits erhalten denselben Source- und Server-Zeitstempel, und Commits
+     * verschiedener Threads (Tick-Gruppen, Methodenaufrufe) laufen nie verschränkt. Schlägt eine
+     * Variable fehl, werden die bereits geschriebenen Werte zurückgesetzt. Der Commit ist für Leser
+     * jedoch <b>kein</b> atomarer Snapshot: Reads und das Sampling der Subscriptions greifen ohne
+     * Sperre auf die Knoten zu, und jede Variable meldet ihre Änderung einzeln. Zusammengehörige
+     * Werte erkennt ein Client am gemeinsamen Source-Zeitstempel. Unveränderte Werte werden nicht
+     * geschrieben und lösen daher auch keine Data-Change-Benachrichtigung aus.
+     */
+    public class BatchWrite {
+        private final Map<UaVariableNode, Variant> staged = new LinkedHashMap<>();
+
+        private BatchWrite() {
+        }
+
+        /**
+         * Merkt einen neuen Wert vor; ein späterer Wert für dieselbe Variable ersetzt den früheren.
+         */
+        public BatchWrite set(UaVariableNode node, Object value) {
+            staged.put(node, new Variant(value));
+            return this;
+        }
+
+        /**
+         * Übernimmt alle vorgemerkten Werte unter einem gemeinsamen Zeitstempel. Die Werte werden
+         * nacheinander gesetzt; nur andere Commits werden bis zum Ende ausgeschlossen.
+         *
+         * @return Anzahl der tatsächlich geänderten Variablen
+         * @throws IllegalStateException wenn ein Wert nicht gesetzt werden konnte; die bereits
+         *         geschriebenen Werte des Commits sind dann wiederhergestellt
+         */
+        public int commit() {
+            List<UaVariableNode> written = new ArrayList<>(staged.size());
+            List<DataValue> previous = new ArrayList<>(staged.size());
+            try {
+                synchronized (commitLock) {
+                    DateTime now = DateTime.currentTime();
+                    for (Map.Entry<UaVariableNode, Variant> e : staged.entrySet()) {
+                        UaVariableNode node = e.getKey();
+                        DataValue current = node.getValue();
+                        if (current != null && e.getValue().equals(current.getValue())
+                                && StatusCode.GOOD.equals(current.getStatusCode())) {
+                            continue;
+                        }
+                        try {
+                            node.setValue(new DataValue(e.getValue(), StatusCode.GOOD, now, UnsignedShort.ZERO, now,
+                                    UnsignedShort.ZERO));
+                        } catch (StatusException ex) {
+                            IllegalStateException failure = new IllegalStateException(
+                                    "Cannot write " + node.getBrowseName().getName(), ex);
+                            rollback(written, previous, failure);
+                            throw failure;
+                        }
+                        written.add(node);
+                        previous.add(current);
+                    }
+                }
+            } finally {
+                staged.clear();
+            }
+            return written.size();
+        }
+    }
+
+    // setzt die bereits geschriebenen Werte eines fehlgeschlagenen Commits in umgekehrter Reihenfolge zurück
+    private static void rollback(List<UaVariableNode> written, List<DataValue> previous, Exception failure) {
+        for (int i = written.size() - 1; i >= 0; i--) {
+            try {
+                written.get(i).setValue(previous.get(i));
+            } catch (StatusException ex) {
+                failure.addSuppressed(ex);
+            }
+        }
+    }
+
+    // -------------------------------------------------------------------------
+    // simulateAxes / publishWaveforms – hochfrequente Achs- und Kraftsignale
+    // -------------------------------------------------------------------------
+
+    /**
+     * Erzeugt die fälligen Samples (1 kHz) und setzt die Skalare auf den letzten Wert.
+     * Muss von einer einzigen Tick-Gruppe aufgerufen werden (Single-Writer Ringpuffer).
+     */
+    public void simulateAxes() {
+        toolpath.tick();
+        BatchWrite batch = beginBatch();
+        for (ToolpathSimulator.Signal signal : ToolpathSimulator.Signal.values()) {
+            batch.set(signalNodes[signal.ordinal()], toolpath.latest(signal));
+        }
+        batch.commit();
+    }
+
+    /**
+     * Veröffentlicht die Fenster der letzten Samples als Array-Variablen, damit Clients die
+     * Waveforms gesammelt lesen können, statt die Skalare hochfrequent abzutasten.
+     */
+    public void publishWaveforms() {
+        BatchWrite batch = beginBatch();
+        for (ToolpathSimulator.Signal signal : ToolpathSimulator.Signal.values()) {
+            toolpath.getBuffer(signal).copyLatest(waveformBuffer);
+            batch.set(waveformNodes[signal.ordinal()], waveformBuffer.clone());
+        }
+        batch.commit();
+    }
+
     // -------------------------------------------------------------------------
     // Methods
     // -------------------------------------------------------------------------
     private void registerMethods() throws StatusException {
-        int ns = getNamespaceIndex();
         MethodManagerUaNode manager = new MethodManagerUaNode(this);
 
-        Map<String, Runnable> simpleMethods = new LinkedHashMap<>();
-        simpleMethods.put("StartMachine", this::startMachine);
-        simpleMethods.put("StopMachine", this::stopMachine);
-        simpleMethods.put("EnterMaintenanceMode", this::enterMaintenance);
-        simpleMethods.put("ResetCounters", this::resetCounters);
-        simpleMethods.put("HomeAxes", this::homeAxes);
-
-        for (String methodName : simpleMethods.keySet()) {
-
-            UaMethodNode m = new UaMethodNode(
-                    this,
-                    new NodeId(ns, methodName),
-                    new QualifiedName(ns, methodName),
-                    LocalizedText.english(methodName)
-            );
-            m.setExecutable(true);
-            m.setUserExecutable(true);
-            addNodeAndReference(rootMachine, m, Identifiers.HasComponent);
-
-            manager.addCallListener((ctx, objId, obj, mId, method, in, inRes, diag, out) -> {
-                if (mId.equals(m.getNodeId())) {
-                    simpleMethods.get(methodName).run();
-                    return true;
-                }
-                return false;
-            });
+        // ein Listener für alle Methoden, Zuordnung über NodeId -> Handler
+        methodDispatcher = new MethodDispatcher("CncMethods");
+        manager.addCallListener(methodDispatcher);
+
+        methodDispatcher.register(createMethod("StartMachine", null, null), this::startMachine);
+        methodDispatcher.register(createMethod("StopMachine", null, null), this::stopMachine);
+        methodDispatcher.register(createMethod("EnterMaintenanceMode", null, null), this::enterMaintenance);
+        methodDispatcher.register(createMethod("ResetCounters", null, null), this::resetCounters);
+        methodDispatcher.registerAsync(createMethod("HomeAxes", null, null),
+                (in, inRes, diag) -> this::homeAxes);
+
+        methodDispatcher.register(createMethod("SetTargetSpindleSpeed",
+                new Argument[] {argument("TargetSpindleSpeed", Identifiers.Double, "New target spindle speed [rpm]")},
+                new Argument[] {argument("PreviousSpindleSpeed", Identifiers.Double, "Previous target spindle speed [rpm]")}),
+                this::setTargetSpindleSpeed);
+
+        methodDispatcher.registerAsync(createMethod("LoadProductionOrder",
+                new Argument[] {
+                        argument("ProductionOrder", Identifiers.String, "Production order number"),
+                        argument("Article", Identifiers.String, "Article number"),
+                        argument("OrderQuantity", Identifiers.Double, "Number of parts to produce")},
+                null),
+                this::loadProductionOrder);
+    }
+
+    /**
+     * Beendet die Hintergrund-Threads der asynchronen Methoden; laufende Operationen werden noch
+     * abgeschlossen.
+     */
+    public void shutdown() {
+        if (methodDispatcher != null) {
+            methodDispatcher.shutdown();
+        }
+    }
+
+    private NodeId createMethod(String methodName, Argument[] inputs, Argument[] outputs) throws StatusException {
+        int ns = getNamespaceIndex();
+        UaMethodNode m = new UaMethodNode(
+                this,
+                new NodeId(ns, methodName),
+                new QualifiedName(ns, methodName),
+                LocalizedText.english(methodName)
+        );
+        m.setExecutable(true);
+        m.setUserExecutable(true);
+        if (inputs != null) {
+            m.setInputArguments(inputs);
+        }
+        if (outputs != null) {
+            m.setOutputArguments(outputs);
         }
+        addNodeAndReference(rootMachine, m, Identifiers.HasComponent);
+        return m.getNodeId();
+    }
+
+    private static Argument argument(String name, NodeId dataType, String description) {
+        Argument arg = new Argument();
+        arg.setName(name);
+        arg.setDataType(dataType);
+        arg.setValueRank(ValueRanks.Scalar);
+        arg.setArrayDimensions(null);
+        arg.setDescription(LocalizedText.english(description));
+        return arg;
+    }
+
+    private void setTargetSpindleSpeed(ServiceContext ctx, Variant[] in, StatusCode[] inRes, DiagnosticInfo[] diag,
+                                       Variant[] out) throws StatusException {
+        MethodManager.checkInputArguments(new Class[] {Double.class}, in, inRes, diag, false);
+        double rpm = in[0].doubleValue();
+        if (rpm < 0 || rpm > MAX_SPINDLE_SPEED) {
+            throw MethodDispatcher.inputError(0, "TargetSpindleSpeed must be between 0 and " + MAX_SPINDLE_SPEED,
+                    inRes, diag);
+        }
+        out[0] = new Variant(readDouble(spindleTargetNode));
+        safeSet(spindleTargetNode, rpm);
+    }
+
+    private Runnable loadProductionOrder(Variant[] in, StatusCode[] inRes, DiagnosticInfo[] diag)
+            throws StatusException {
+        MethodManager.checkInputArguments(new Class[] {String.class, String.class, Double.class}, in, inRes, diag,
+                false);
+        String order = (String) in[0].getValue();
+        String article = (String) in[1].getValue();
+        double quantity = in[2].doubleValue();
+        if (order == null || order.isEmpty()) {
+            throw MethodDispatcher.inputError(0, "ProductionOrder must not be empty", inRes, diag);
+        }
+        if (quantity <= 0) {
+            throw MethodDispatcher.inputError(2, "OrderQuantity must be positive", inRes, diag);
+        }
+        // Rüsten läuft im Hintergrund, der Methodenaufruf kehrt sofort zurück
+        return () -> {
+            safeSet(statusNode, "Setup");
+            try {
+                Thread.sleep(SETUP_TIME_MS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            production.startOrder(quantity, 0);
+            beginBatch()
+                    .set(orderNode, order)
+                    .set(articleNode, article)
+                    .set(quantityNode, quantity)
+                    .set(productionProgressNode, 0.0)
+                    .set(statusNode, "Running")
+                    .commit();
+        };
     }
 
     private void startMachine() {
@@ -271,24 +653,34 @@ public class CncNodeManager extends NodeManagerUaNode {
     }
 
     private void resetCounters() {
-        safeSet(goodPartsNode, 0.0);
-        safeSet(badPartsNode, 0.0);
-        safeSet(totalPartsNode, 0.0);
-        safeSet(productionProgressNode, 0.0);
+        production.resetCounters();
+        beginBatch()
+                .set(goodPartsNode, 0.0)
+                .set(badPartsNode, 0.0)
+                .set(totalPartsNode, 0.0)
+                .set(productionProgressNode, 0.0)
+                .commit();
     }
 
     private void homeAxes() {
-        safeSet(posX, 0.0);
-        safeSet(posY, 0.0);
-        safeSet(posZ, 0.0);
+        toolpath.home();
+        beginBatch()
+                .set(posX, 0.0)
+                .set(posY, 0.0)
+                .set(posZ, 0.0)
+                .commit();
     }
 
-    // helper
+    // helper – einzelner Wert, ebenfalls unter der Commit-Sperre geschrieben
     private void safeSet(UaVariableNode node, Object value) {
-        try {
-            node.setValue(new Variant(value));
-        } catch (StatusException e) {
-            e.printStackTrace();
+        synchronized (commitLock) {
+            DateTime now = DateTime.currentTime();
+            try {
+                node.setValue(new DataValue(new Variant(value), StatusCode.GOOD, now, UnsignedShort.ZERO, now,
+                        UnsignedShort.ZERO));
+            } catch (StatusException e) {
+                throw new IllegalStateException("Cannot write " + node.getBrowseName().getName(), e);
+            }
         }
     }
 }
@@ -0,0 +1,507 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+
+/**
+ * An in-memory {@link SampleStore} that compresses numeric samples in the style of the Gorilla
+ * time series database.
+ * <p>
+ * The samples are collected in an open block of primitive arrays. When the block is full it is
+ * sealed: the timestamps are encoded as delta-of-deltas and the values as the XOR with the previous
+ * value, both with variable bit lengths. Regular sampling makes most timestamps take one bit and
+ * slowly changing values only a few bits, so a sample typically takes a few bytes instead of the
+ * 30 bytes of a {@link SampleRing}. Sealed blocks are decoded on read; the last decoded block is
+ * cached.
+ * <p>
+ * Every sample gets an increasing position when it is added. Dropping the oldest samples only moves
+ * the position of the first kept sample; a sealed block is released once all of its samples are
+ * before it.
+ * <p>
+ * Only the source timestamp is kept, it is returned as the server timestamp as well. Values that
+ * are not numbers or booleans are stored as null. Samples older than the newest stored sample are
+ * dropped.
+ */
+class CompressedStore implements SampleStore {
+  /** A sealed block. */
+  private static class Block {
+    final long firstTime;
+    final byte kind;
+    final long lastTime;
+    final long start;
+    final int count;
+    final int status;
+    final int[] statuses;
+    final long[] words;
+
+    Block(long start, long firstTime, long lastTime, int count, byte kind, int status, int[] statuses,
+        long[] words) {
+      this.start = start;
+      this.firstTime = firstTime;
+      this.lastTime = lastTime;
+      this.count = count;
+      this.kind = kind;
+      this.status = status;
+      this.statuses = statuses;
+      this.words = words;
+    }
+  }
+
+  /** A decoded block. */
+  private static class Decoded {
+    final Block block;
+    final long[] times;
+    final double[] values;
+
+    Decoded(Block block, long[] times, double[] values) {
+      this.block = block;
+      this.times = times;
+      this.values = values;
+    }
+  }
+
+  private static final int BLOCK_SIZE = 1024;
+
+  /** The position of the first kept sample. */
+  private long base;
+  /** The sealed blocks from {@link #head} on; the ones before are released. */
+  private final List<Block> blocks = new ArrayList<Block>();
+  private volatile Decoded cache;
+  private int capacity;
+  private int head;
+  private byte openKind;
+  private int openSize;
+  private final int[] openStatuses = new int[BLOCK_SIZE];
+  private final long[] openTimes = new long[BLOCK_SIZE];
+  private final double[] openValues = new double[BLOCK_SIZE];
+  /** The position of the first sample of the open block. */
+  private long sealedEnd;
+
+  /**
+   * @param capacity the number of samples to keep
+   */
+  CompressedStore(int capacity) {
+    this.capacity = capacity;
+  }
+
+  @Override
+  public void add(DataValue value) {
+    long t = SampleStore.timeOf(value);
+    if ((size() > 0) && (t < time(size() - 1))) {
+      return;
+    }
+    Object v = value.getValue() == null ? null : value.getValue().getValue();
+    byte kind = SampleStore.kindOf(v);
+    if (kind == KIND_OBJECT) {
+      kind = KIND_NULL;
+    }
+    if ((openSize == BLOCK_SIZE) || ((openSize > 0) && (kind != openKind))) {
+      seal();
+    }
+    openKind = kind;
+    openTimes[openSize] = t;
+    openValues[openSize] = SampleStore.encode(kind, v);
+    openStatuses[openSize] = SampleStore.statusBits(value);
+    openSize++;
+    if (size() > capacity) {
+      remove(0, size() - capacity);
+    }
+  }
+
+  @Override
+  public DataValue get(int i) {
+    long t;
+    byte kind;
+    double v;
+    int status;
+    long p = position(i);
+    if (p >= sealedEnd) {
+      int r = (int) (p - sealedEnd);
+      t = openTimes[r];
+      kind = openKind;
+      v = openValues[r];
+      status = openStatuses[r];
+    } else {
+      Block block = blocks.get(blockOf(p));
+      Decoded d = decoded(block);
+      int r = (int) (p - block.start);
+      t = d.times[r];
+      kind = block.kind;
+      v = d.values[r];
+      status = block.statuses == null ? block.status : block.statuses[r];
+    }
+    DateTime time = new DateTime(t);
+    return new DataValue(SampleStore.decode(kind, v), SampleStore.statusOf(status), time, UnsignedShort.ZERO, time,
+        UnsignedShort.ZERO);
+  }
+
+  @Override
+  public int lowerBound(long t) {
+    int first = firstOpen();
+    if ((openSize > first) && (openTimes[first] < t)) {
+      int r = Arrays.binarySearch(openTimes, first, openSize, t);
+      if (r < 0) {
+        r = -r - 1;
+      } else {
+        while ((r > first) && (openTimes[r - 1] == t)) {
+          r--;
+        }
+      }
+      return (int) (sealedEnd + r - base);
+    }
+    // The first block whose last sample is not before t
+    int lo = head;
+    int hi = blocks.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (blocks.get(mid).lastTime < t) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == blocks.size()) {
+      return sealedSize();
+    }
+    Block block = blocks.get(lo);
+    long[] times = decoded(block).times;
+    int l = (int) Math.max(0, base - block.start);
+    int h = block.count;
+    while (l < h) {
+      int mid = (l + h) >>> 1;
+      if (times[mid] < t) {
+        l = mid + 1;
+      } else {
+        h = mid;
+      }
+    }
+    return (int) (block.start + l - base);
+  }
+
+  @Override
+  public void remove(int from, int to) {
+    from = Math.max(from, 0);
+    to = Math.min(to, size());
+    if (to <= from) {
+      return;
+    }
+    if (from == 0) {
+      // Trimming the front only moves the first kept position
+      base += to;
+      releaseExpired();
+      return;
+    }
+    // Otherwise truncate at the range and append the newer samples again, re-encoding them
+    List<DataValue> tail = new ArrayList<DataValue>(size() - to);
+    for (int i = to; i < size(); i++) {
+      tail.add(get(i));
+    }
+    truncate(from);
+    for (DataValue value : tail) {
+      add(value);
+    }
+  }
+
+  /**
+   * Changes the number of samples to keep, dropping the oldest ones.
+   */
+  @Override
+  public void resize(int capacity) {
+    this.capacity = capacity;
+    if (size() > capacity) {
+      remove(0, size() - capacity);
+    }
+  }
+
+  @Override
+  public int size() {
+    return (int) (sealedEnd + openSize - base);
+  }
+
+  @Override
+  public long time(int i) {
+    long p = position(i);
+    if (p >= sealedEnd) {
+      return openTimes[(int) (p - sealedEnd)];
+    }
+    Block block = blocks.get(blockOf(p));
+    return decoded(block).times[(int) (p - block.start)];
+  }
+
+  @Override
+  public int upperBound(long t) {
+    return t == Long.MAX_VALUE ? size() : lowerBound(t + 1);
+  }
+
+  /**
+   * @return the index of the block holding the sealed sample at the position
+   */
+  private int blockOf(long p) {
+    int lo = head;
+    int hi = blocks.size() - 1;
+    while (lo < hi) {
+      int mid = (lo + hi + 1) >>> 1;
+      if (blocks.get(mid).start <= p) {
+        lo = mid;
+      } else {
+        hi = mid - 1;
+      }
+    }
+    return lo;
+  }
+
+  private Decoded decode(Block block) {
+    long[] times = new long[block.count];
+    double[] values = new double[block.count];
+    BitReader in = new BitReader(block.words);
+    long t = block.firstTime;
+    long delta = 0;
+    long bits = in.read(64);
+    int leading = 0;
+    int trailing = 0;
+    times[0] = t;
+    values[0] = Double.longBitsToDouble(bits);
+    for (int r = 1; r < block.count; r++) {
+      // Timestamp: delta-of-delta
+      long dod;
+      if (in.read(1) == 0) {
+        dod = 0;
+      } else if (in.read(1) == 0) {
+        dod = in.readSigned(16);
+      } else if (in.read(1) == 0) {
+        dod = in.readSigned(24);
+      } else if (in.read(1) == 0) {
+        dod = in.readSigned(32);
+      } else {
+        dod = in.read(64);
+      }
+      delta += dod;
+      t += delta;
+      times[r] = t;
+      // Value: XOR with the previous value
+      if (in.read(1) == 1) {
+        if (in.read(1) == 1) {
+          leading = (int) in.read(5);
+          int length = (int) in.read(6) + 1;
+          trailing = 64 - leading - length;
+        }
+        int length = 64 - leading - trailing;
+        bits ^= in.read(length) << trailing;
+      }
+      values[r] = Double.longBitsToDouble(bits);
+    }
+    return new Decoded(block, times, values);
+  }
+
+  private Decoded decoded(Block block) {
+    Decoded d = cache;
+    if ((d == null) || (d.block != block)) {
+      d = decode(block);
+      cache = d;
+    }
+    return d;
+  }
+
+  private Block encode(long start, long[] times, double[] values, int[] statuses, int count, byte kind) {
+    BitWriter out = new BitWriter(count);
+    long prevBits = Double.doubleToRawLongBits(values[0]);
+    long delta = 0;
+    int leading = -1;
+    int trailing = 0;
+    out.write(prevBits, 64);
+    boolean uniformStatus = true;
+    for (int r = 1; r < count; r++) {
+      long d = times[r] - times[r - 1];
+      long dod = d - delta;
+      delta = d;
+      if (dod == 0) {
+        out.write(0, 1);
+      } else if (fits(dod, 16)) {
+        out.write(0b10, 2);
+        out.write(dod, 16);
+      } else if (fits(dod, 24)) {
+        out.write(0b110, 3);
+        out.write(dod, 24);
+      } else if (fits(dod, 32)) {
+        out.write(0b1110, 4);
+        out.write(dod, 32);
+      } else {
+        out.write(0b1111, 4);
+        out.write(dod, 64);
+      }
+      long bits = Double.doubleToRawLongBits(values[r]);
+      long xor = bits ^ prevBits;
+      prevBits = bits;
+      if (xor == 0) {
+        out.write(0, 1);
+      } else {
+        int l = Math.min(31, Long.numberOfLeadingZeros(xor));
+        int tz = Long.numberOfTrailingZeros(xor);
+        if ((leading >= 0) && (l >= leading) && (tz >= trailing)) {
+          // The meaningful bits fit in the window of the previous value
+          out.write(0b10, 2);
+          out.write(xor >>> trailing, 64 - leading - trailing);
+        } else {
+          leading = l;
+          trailing = tz;
+          int length = 64 - leading - trailing;
+          out.write(0b11, 2);
+          out.write(leading, 5);
+          out.write(length - 1, 6);
+          out.write(xor >>> trailing, length);
+        }
+      }
+      uniformStatus &= statuses[r] == statuses[0];
+    }
+    return new Block(start, times[0], times[count - 1], count, kind, statuses[0],
+        uniformStatus ? null : Arrays.copyOf(statuses, count), out.toWords());
+  }
+
+  private static boolean fits(long v, int bits) {
+    long limit = 1L << (bits - 1);
+    return (v >= -limit) && (v < limit);
+  }
+
+  /**
+   * @return the index of the first kept sample of the open block
+   */
+  private int firstOpen() {
+    return (int) Math.max(0, base - sealedEnd);
+  }
+
+  /**
+   * @return the position of the sample at the index
+   */
+  private long position(int i) {
+    if ((i < 0) || (i >= size())) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size());
+    }
+    return base + i;
+  }
+
+  /**
+   * Releases the blocks whose samples are all before the first kept position. The list is
+   * compacted once the released blocks are at least half of it.
+   */
+  private void releaseExpired() {
+    while ((head < blocks.size()) && (blocks.get(head).start + blocks.get(head).count <= base)) {
+      blocks.set(head++, null);
+    }
+    if ((head > 0) && (head * 2 >= blocks.size())) {
+      blocks.subList(0, head).clear();
+      head = 0;
+    }
+  }
+
+  private void seal() {
+    int first = Math.min(firstOpen(), openSize);
+    if (first < openSize) {
+      if (first > 0) {
+        // Samples trimmed while the block was open are not encoded
+        System.arraycopy(openTimes, first, openTimes, 0, openSize - first);
+        System.arraycopy(openValues, first, openValues, 0, openSize - first);
+        System.arraycopy(openStatuses, first, openStatuses, 0, openSize - first);
+      }
+      blocks.add(encode(sealedEnd + first, openTimes, openValues, openStatuses, openSize - first, openKind));
+    }
+    sealedEnd += openSize;
+    openSize = 0;
+  }
+
+  private int sealedSize() {
+    return (int) Math.max(0, sealedEnd - base);
+  }
+
+  /**
+   * Removes all samples from the index on.
+   */
+  private void truncate(int from) {
+    long p = base + from;
+    if (p >= sealedEnd) {
+      openSize = (int) (p - sealedEnd);
+      return;
+    }
+    int b = blockOf(p);
+    Block block = blocks.get(b);
+    Decoded d = decoded(block);
+    int keep = (int) (p - block.start);
+    blocks.subList(b, blocks.size()).clear();
+    cache = null;
+    // The head of the block becomes the open block, including the samples before the first kept one
+    sealedEnd = block.start;
+    openKind = block.kind;
+    for (int r = 0; r < keep; r++) {
+      openTimes[r] = d.times[r];
+      openValues[r] = d.values[r];
+      openStatuses[r] = block.statuses == null ? block.status : block.statuses[r];
+    }
+    openSize = keep;
+  }
+
+  private static class BitReader {
+    private int position;
+    private final long[] words;
+
+    BitReader(long[] words) {
+      this.words = words;
+    }
+
+    long read(int bits) {
+      if (bits == 0) {
+        return 0;
+      }
+      int word = position >>> 6;
+      int offset = position & 63;
+      position += bits;
+      long v = words[word] << offset;
+      if (offset + bits > 64) {
+        v |= words[word + 1] >>> (64 - offset);
+      }
+      return bits == 64 ? v : v >>> (64 - bits);
+    }
+
+    long readSigned(int bits) {
+      return (read(bits) << (64 - bits)) >> (64 - bits);
+    }
+  }
+
+  private static class BitWriter {
+    private int position;
+    private long[] words;
+
+    BitWriter(int samples) {
+      words = new long[Math.max(2, samples / 4)];
+    }
+
+    long[] toWords() {
+      return Arrays.copyOf(words, (position + 63) >>> 6);
+    }
+
+    void write(long v, int bits) {
+      if (bits == 0) {
+        return;
+      }
+      if (position + bits > words.length * 64) {
+        words = Arrays.copyOf(words, words.length * 2);
+      }
+      if (bits < 64) {
+        v &= (1L << bits) - 1;
+      }
+      int word = position >>> 6;
+      int offset = position & 63;
+      int free = 64 - offset;
+      if (bits <= free) {
+        words[word] |= v << (free - bits);
+      } else {
+        words[word] |= v >>> (bits - free);
+        words[word + 1] |= v << (64 - (bits - free));
+      }
+      position += bits;
+    }
+  }
+}
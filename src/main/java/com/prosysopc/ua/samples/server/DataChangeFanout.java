@@ -0,0 +1,171 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.server.MonitoredDataItem;
+import com.prosysopc.ua.server.MonitoredItem;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+
+/**
+ * Delivers the data changes of the nodes of a node manager, which does not use UaNode objects, to
+ * the monitored data items of the nodes.
+ * <p>
+ * A change is published as one DataValue, which is shared by all monitored items of the node, so it
+ * must not be modified after publishing. Each monitored item receives changes at most once per its
+ * sampling interval: changes that come faster are coalesced, and the latest of them is delivered
+ * when the interval has elapsed. A removed monitored item receives no more changes, also not a
+ * coalesced one that was waiting for its interval.
+ *
+ * @param <K> the key of the nodes, e.g. the name of a data item
+ */
+public class DataChangeFanout<K> {
+
+  /**
+   * A monitored item and the state of its sampling.
+   */
+  private static class Subscriber {
+    final MonitoredDataItem item;
+    /** The time of the last delivery (System.nanoTime) */
+    long lastNanos;
+    /** The latest coalesced change, delivered by a scheduled flush; guarded by this */
+    DataValue pending;
+    /** The scheduled flush of the pending change; guarded by this */
+    ScheduledFuture<?> scheduled;
+    boolean removed;
+    boolean sent;
+
+    Subscriber(MonitoredDataItem item) {
+      this.item = item;
+    }
+
+    /**
+     * Drop the pending change and its scheduled flush, and ignore the later changes.
+     */
+    synchronized void cancel() {
+      removed = true;
+      pending = null;
+      if (scheduled != null) {
+        scheduled.cancel(false);
+        scheduled = null;
+      }
+    }
+
+    synchronized void flush() {
+      DataValue value = pending;
+      pending = null;
+      scheduled = null;
+      if ((value != null) && !removed) {
+        deliver(value, System.nanoTime());
+      }
+    }
+
+    synchronized void offer(DataValue value, long now) {
+      if (removed) {
+        // Removed while the change was being published
+        return;
+      }
+      if (pending != null) {
+        // A flush is already scheduled
+        pending = value;
+        return;
+      }
+      long interval = (long) (item.getSamplingInterval() * 1000000);
+      long wait = lastNanos + interval - now;
+      if (!sent || (interval <= 0) || (wait <= 0)) {
+        deliver(value, now);
+      } else {
+        pending = value;
+        scheduled = TIMER.schedule(this::flush, wait, TimeUnit.NANOSECONDS);
+      }
+    }
+
+    private void deliver(DataValue value, long now) {
+      lastNanos = now;
+      sent = true;
+      try {
+        item.notifyDataChange(value);
+      } catch (RuntimeException e) {
+        logger.error("Data change notification of {} failed", item.getNodeId(), e);
+      }
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(DataChangeFanout.class);
+
+  private static final ScheduledThreadPoolExecutor TIMER = new ScheduledThreadPoolExecutor(1, r -> {
+    Thread t = new Thread(r, "DataChangeFanout");
+    t.setDaemon(true);
+    return t;
+  });
+
+  static {
+    // The flushes of removed monitored items do not stay in the queue until their time
+    TIMER.setRemoveOnCancelPolicy(true);
+  }
+
+  private final MonitoredItemRegistry<K, Subscriber> subscribers = new MonitoredItemRegistry<K, Subscriber>();
+
+  /**
+   * Add a monitored item of a node.
+   *
+   * @param key the key of the node
+   * @param item the monitored item
+   * @return the number of monitored items of the node
+   */
+  public int add(K key, MonitoredDataItem item) {
+    return subscribers.add(key, item, new Subscriber(item));
+  }
+
+  /**
+   * @return whether the node has monitored items
+   */
+  public boolean isMonitored(K key) {
+    return subscribers.contains(key);
+  }
+
+  /**
+   * Publish a change of the node to its monitored items.
+   *
+   * @param key the key of the node
+   * @param value the new value, which must not be modified afterwards
+   */
+  public void publish(K key, DataValue value) {
+    long now = System.nanoTime();
+    for (Subscriber s : subscribers.get(key)) {
+      s.offer(value, now);
+    }
+  }
+
+  /**
+   * Remove a monitored item of a node.
+   *
+   * @param key the key of the node
+   * @param item the monitored item
+   * @return whether the node still has monitored items
+   */
+  public boolean remove(K key, MonitoredItem item) {
+    Subscriber subscriber = subscribers.remove(key, item);
+    if (subscriber != null) {
+      subscriber.cancel();
+    }
+    return subscribers.contains(key);
+  }
+
+  /**
+   * @return the number of nodes that have monitored items
+   */
+  public int size() {
+    return subscribers.size();
+  }
+}
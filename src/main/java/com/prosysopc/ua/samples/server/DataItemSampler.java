@@ -0,0 +1,264 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.server.MonitoredDataItem;
+import com.prosysopc.ua.server.MonitoredItem;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.core.DataChangeFilter;
+import com.prosysopc.ua.stack.core.DataChangeTrigger;
+import com.prosysopc.ua.stack.core.DeadbandType;
+
+/**
+ * Samples the data items of a {@link DataItemStore} for their monitored items.
+ * <p>
+ * The monitored items are grouped by their revised sampling interval, and each group runs on a timer
+ * of that period. On each tick the group reads the current value of its items from the store and
+ * notifies only the items whose value passes their data change filter, so the cost of sampling
+ * depends on the number of monitored items and their sampling intervals, not on how often the
+ * values change. The trigger and the absolute deadband of a DataChangeFilter are applied here; a
+ * percent deadband would need an EURange, which the data items do not have.
+ * <p>
+ * The monitored items of the same data item in a group share the DataValue of a tick. The groups
+ * run on a small pool of timer threads, so a slow group does not delay the others.
+ */
+class DataItemSampler {
+
+  /**
+   * A monitored item and the last values notified to it.
+   */
+  private static class Sample {
+    double deadband;
+    Object filter;
+    /** The sampling interval of the group of the item */
+    volatile long interval;
+    final MonitoredDataItem item;
+    double lastValue;
+    int lastStatus;
+    long lastTimestamp;
+    boolean sent;
+    final int slot;
+    DataChangeTrigger trigger = DataChangeTrigger.StatusValue;
+
+    Sample(MonitoredDataItem item, int slot) {
+      this.item = item;
+      this.slot = slot;
+      updateFilter();
+    }
+
+    /**
+     * Reads the data change filter again if it has been modified.
+     */
+    void updateFilter() {
+      DataChangeFilter f = item.getDataChangeFilter();
+      if (f == filter) {
+        return;
+      }
+      filter = f;
+      trigger = DataChangeTrigger.StatusValue;
+      deadband = 0;
+      if (f != null) {
+        if (f.getTrigger() != null) {
+          trigger = f.getTrigger();
+        }
+        if ((f.getDeadbandType() != null) && (f.getDeadbandType().intValue() == DeadbandType.Absolute.getValue())
+            && (f.getDeadbandValue() != null)) {
+          deadband = f.getDeadbandValue();
+        }
+      }
+    }
+  }
+
+  /**
+   * The monitored items that have the same sampling interval.
+   */
+  private class SamplingGroup implements Runnable {
+    private ScheduledFuture<?> future;
+    private final long intervalMillis;
+    /** The DataValues of the current tick by slot; only used by the thread running the tick */
+    private final Map<Integer, DataValue> tickValues = new HashMap<Integer, DataValue>();
+
+    SamplingGroup(long intervalMillis) {
+      this.intervalMillis = intervalMillis;
+    }
+
+    @Override
+    public void run() {
+      tickValues.clear();
+      for (Sample sample : byInterval.get(intervalMillis)) {
+        try {
+          if (intervalOf(sample.item) != intervalMillis) {
+            // The sampling interval was modified
+            byInterval.remove(intervalMillis, sample.item);
+            add(sample);
+            continue;
+          }
+          sample(sample);
+        } catch (RuntimeException e) {
+          logger.error("Sampling of {} failed", sample.item.getNodeId(), e);
+        }
+      }
+      if (!byInterval.contains(intervalMillis)) {
+        stop(this);
+      }
+    }
+
+    private void sample(Sample sample) {
+      sample.updateFilter();
+      int slot = sample.slot;
+      double value = store.getValue(slot);
+      int status = store.getStatusBits(slot);
+      long timestamp = store.getTimestamp(slot);
+      if (sample.sent && !changed(sample, value, status, timestamp)) {
+        return;
+      }
+      sample.lastValue = value;
+      sample.lastStatus = status;
+      sample.lastTimestamp = timestamp;
+      sample.sent = true;
+      // The DataValue is not modified after this, so the items of the slot can share it
+      DataValue dataValue = tickValues.get(slot);
+      if (dataValue == null) {
+        dataValue = new DataValue();
+        store.getDataValue(slot, dataValue);
+        tickValues.put(slot, dataValue);
+      }
+      sample.item.notifyDataChange(dataValue);
+    }
+  }
+
+  /**
+   * The shortest sampling interval, used also for the items that request the fastest practical
+   * rate (0).
+   */
+  static final long MIN_SAMPLING_INTERVAL = 10;
+
+  private static final Logger logger = LoggerFactory.getLogger(DataItemSampler.class);
+
+  /**
+   * The number of timer threads that run the sampling groups.
+   */
+  private static final int THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+  private static boolean changed(Sample sample, double value, int status, long timestamp) {
+    if (status != sample.lastStatus) {
+      return true;
+    }
+    switch (sample.trigger) {
+      case Status:
+        return false;
+      case StatusValueTimestamp:
+        if (timestamp != sample.lastTimestamp) {
+          return true;
+        }
+        // Fall through to compare the values
+      default:
+        return sample.deadband > 0 ? Math.abs(value - sample.lastValue) > sample.deadband
+            : Double.doubleToLongBits(value) != Double.doubleToLongBits(sample.lastValue);
+    }
+  }
+
+  private static long intervalOf(MonitoredDataItem item) {
+    return Math.max(MIN_SAMPLING_INTERVAL, Math.round(item.getSamplingInterval()));
+  }
+
+  private final MonitoredItemRegistry<Long, Sample> byInterval = new MonitoredItemRegistry<Long, Sample>();
+  private final Map<Long, SamplingGroup> groups = new ConcurrentHashMap<Long, SamplingGroup>();
+  private final Map<MonitoredItem, Sample> samples = new ConcurrentHashMap<MonitoredItem, Sample>();
+  private final DataItemStore store;
+
+  private final AtomicInteger threadCount = new AtomicInteger();
+
+  private final ScheduledExecutorService timer = Executors.newScheduledThreadPool(THREADS, r -> {
+    Thread t = new Thread(r, "DataItemSampler-" + threadCount.incrementAndGet());
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * @param store the data items to sample
+   */
+  DataItemSampler(DataItemStore store) {
+    this.store = store;
+  }
+
+  /**
+   * Start sampling a data item for a monitored item.
+   *
+   * @param item the monitored item
+   * @param slot the slot of the data item in the store
+   */
+  void add(MonitoredDataItem item, int slot) {
+    Sample sample = new Sample(item, slot);
+    samples.put(item, sample);
+    add(sample);
+  }
+
+  /**
+   * @return the number of sampled monitored items
+   */
+  int getSampledItems() {
+    return samples.size();
+  }
+
+  /**
+   * Stop sampling for a monitored item.
+   */
+  void remove(MonitoredItem item) {
+    Sample sample = samples.remove(item);
+    if (sample != null) {
+      byInterval.remove(sample.interval, item);
+    }
+  }
+
+  private void add(Sample sample) {
+    if (samples.get(sample.item) != sample) {
+      // Removed meanwhile
+      return;
+    }
+    long interval = intervalOf(sample.item);
+    sample.interval = interval;
+    byInterval.add(interval, sample.item, sample);
+    if (samples.get(sample.item) != sample) {
+      // Removed while it was being added
+      byInterval.remove(interval, sample.item);
+      return;
+    }
+    groups.computeIfAbsent(interval, this::startGroup);
+  }
+
+  private SamplingGroup startGroup(long interval) {
+    SamplingGroup group = new SamplingGroup(interval);
+    group.future = timer.scheduleAtFixedRate(group, 0, interval, TimeUnit.MILLISECONDS);
+    logger.debug("Sampling group of {} ms started", interval);
+    return group;
+  }
+
+  private void stop(SamplingGroup group) {
+    // Keep the group if an item was added meanwhile
+    groups.computeIfPresent(group.intervalMillis, (interval, g) -> {
+      if ((g != group) || byInterval.contains(interval)) {
+        return g;
+      }
+      g.future.cancel(false);
+      logger.debug("Sampling group of {} ms stopped", interval);
+      return null;
+    });
+  }
+}
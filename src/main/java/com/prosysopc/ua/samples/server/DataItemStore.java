@@ -0,0 +1,290 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.Arrays;
+import java.util.function.IntFunction;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The data items of {@link MyBigNodeManager} in struct-of-arrays form.
+ * <p>
+ * Each item has a dense int slot. The value, the source timestamp (as raw DateTime ticks) and the
+ * status code of the items are kept in parallel primitive arrays, so an item costs a few dozen
+ * bytes besides its name and the memory use is predictable also for millions of items. The names
+ * are mapped to the slots with an open addressing hash table with linear probing, so a lookup is
+ * O(1) and does not allocate.
+ * <p>
+ * Items are added during the initialization of the node manager; after that the arrays do not
+ * change size, and the values can be updated and read concurrently like the fields of plain
+ * objects.
+ * <p>
+ * A store of numbered items has no hash table: the items are addressed by the slot only, and their
+ * names are generated on first use and cached.
+ */
+class DataItemStore {
+  private static final int EMPTY = -1;
+  private static final int WAITING_FOR_INITIAL_DATA = StatusCodes.Bad_WaitingForInitialData.intValue();
+
+  /** Only allocated if some item is not a Double */
+  private NodeId[] dataTypes;
+  /** Generates the names of numbered items, null if the items are added by name */
+  private final IntFunction<String> nameGenerator;
+  private String[] names;
+  private int size;
+  private int[] statuses;
+  /** The open addressing table: the slot of the item with the name, or EMPTY */
+  private int[] table;
+  private long[] timestamps;
+  private double[] values;
+
+  /**
+   * @param expectedSize the number of items to allocate room for
+   */
+  DataItemStore(int expectedSize) {
+    this.nameGenerator = null;
+    allocate(Math.max(expectedSize, 16));
+  }
+
+  /**
+   * Create a store of numbered items with the initial status Bad_WaitingForInitialData.
+   *
+   * @param count the number of items, addressed by the slots 0..count-1
+   * @param nameGenerator generates the name of an item from its slot
+   */
+  DataItemStore(int count, IntFunction<String> nameGenerator) {
+    this.nameGenerator = nameGenerator;
+    names = new String[count];
+    statuses = new int[count];
+    timestamps = new long[count];
+    values = new double[count];
+    Arrays.fill(statuses, WAITING_FOR_INITIAL_DATA);
+    size = count;
+  }
+
+  private static int bits(StatusCode status) {
+    return status == null ? StatusCodes.Bad.intValue() : status.getValue().intValue();
+  }
+
+  private static int hash(String name) {
+    int h = name.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  /**
+   * Add an item with the initial status Bad_WaitingForInitialData.
+   *
+   * @param name the name of the item, which is also the identifier of its NodeId
+   * @return the slot of the item; the existing slot if the name was already added
+   */
+  int add(String name) {
+    if (nameGenerator != null) {
+      throw new IllegalStateException("The items of the store are numbered");
+    }
+    int existing = find(name);
+    if (existing != EMPTY) {
+      return existing;
+    }
+    if (size == values.length) {
+      grow();
+    }
+    int slot = size++;
+    names[slot] = name;
+    statuses[slot] = WAITING_FOR_INITIAL_DATA;
+    insert(name, slot);
+    return slot;
+  }
+
+  /**
+   * @param name the name of the item; anything else than a String is not found
+   * @return the slot of the item, or -1 if there is no such item
+   */
+  int find(Object name) {
+    if ((table == null) || !(name instanceof String)) {
+      return EMPTY;
+    }
+    int mask = table.length - 1;
+    for (int i = hash((String) name) & mask;; i = (i + 1) & mask) {
+      int slot = table[i];
+      if ((slot == EMPTY) || names[slot].equals(name)) {
+        return slot;
+      }
+    }
+  }
+
+  NodeId getDataType(int slot) {
+    NodeId dataType = dataTypes == null ? null : dataTypes[slot];
+    return dataType == null ? Identifiers.Double : dataType;
+  }
+
+  /**
+   * Sets the data of the item to the given DataValue.
+   */
+  void getDataValue(int slot, DataValue dataValue) {
+    long timestamp = timestamps[slot];
+    dataValue.setValue(new Variant(values[slot]));
+    dataValue.setStatusCode(getStatus(slot));
+    dataValue.setServerTimestamp(DateTime.currentTime());
+    dataValue.setSourceTimestamp(timestamp == 0 ? null : new DateTime(timestamp));
+  }
+
+  String getName(int slot) {
+    String name = names[slot];
+    if (name == null) {
+      // Only numbered items; generating the same name twice in a race is harmless
+      name = nameGenerator.apply(slot);
+      names[slot] = name;
+    }
+    return name;
+  }
+
+  /**
+   * @return the status code of the item as an int, which does not allocate
+   */
+  int getStatusBits(int slot) {
+    return statuses[slot];
+  }
+
+  StatusCode getStatus(int slot) {
+    int bits = statuses[slot];
+    return bits == 0 ? StatusCode.GOOD : StatusCode.valueOf(UnsignedInteger.valueOf(bits & 0xFFFFFFFFL));
+  }
+
+  /**
+   * @return the time when the value or status changed, as raw DateTime ticks; 0 if never
+   */
+  long getTimestamp(int slot) {
+    return timestamps[slot];
+  }
+
+  double getValue(int slot) {
+    return values[slot];
+  }
+
+  void setDataType(int slot, NodeId dataType) {
+    if (dataTypes == null) {
+      if (Identifiers.Double.equals(dataType)) {
+        return;
+      }
+      dataTypes = new NodeId[values.length];
+    }
+    dataTypes[slot] = dataType;
+  }
+
+  /**
+   * Sets value and status of the item.
+   *
+   * @param status the status code, null for Bad
+   * @param time the time of the change, as raw DateTime ticks
+   * @return whether the value or status changed
+   */
+  boolean setValue(int slot, double value, StatusCode status, long time) {
+    int bits = bits(status);
+    if ((values[slot] != value) || (statuses[slot] != bits)) {
+      values[slot] = value;
+      statuses[slot] = bits;
+      timestamps[slot] = time;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Sets the same value and status to the items in the slots [from, to).
+   *
+   * @param status the status code, null for Bad
+   * @param time the time of the change, as raw DateTime ticks
+   */
+  void setValues(int from, int to, double value, StatusCode status, long time) {
+    int bits = bits(status);
+    for (int slot = from; slot < to; slot++) {
+      if ((values[slot] != value) || (statuses[slot] != bits)) {
+        values[slot] = value;
+        statuses[slot] = bits;
+        timestamps[slot] = time;
+      }
+    }
+  }
+
+  /**
+   * Sets the values of the items in the given slots, with the same status and time.
+   *
+   * @param status the status code, null for Bad
+   * @param time the time of the change, as raw DateTime ticks
+   * @return the number of items whose value or status changed
+   * @throws IllegalArgumentException if a slot is invalid; no values are set then
+   */
+  int setValues(int[] slots, double[] newValues, int count, StatusCode status, long time) {
+    for (int i = 0; i < count; i++) {
+      if ((slots[i] < 0) || (slots[i] >= size)) {
+        throw new IllegalArgumentException("Invalid slot: " + slots[i]);
+      }
+    }
+    int bits = bits(status);
+    int changed = 0;
+    for (int i = 0; i < count; i++) {
+      int slot = slots[i];
+      double value = newValues[i];
+      if ((values[slot] != value) || (statuses[slot] != bits)) {
+        values[slot] = value;
+        statuses[slot] = bits;
+        timestamps[slot] = time;
+        changed++;
+      }
+    }
+    return changed;
+  }
+
+  int size() {
+    return size;
+  }
+
+  private void allocate(int capacity) {
+    names = new String[capacity];
+    statuses = new int[capacity];
+    timestamps = new long[capacity];
+    values = new double[capacity];
+    // Keep the load factor at most 0.5
+    table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    Arrays.fill(table, EMPTY);
+  }
+
+  private void grow() {
+    String[] oldNames = names;
+    int[] oldStatuses = statuses;
+    long[] oldTimestamps = timestamps;
+    double[] oldValues = values;
+    allocate(oldValues.length * 2);
+    System.arraycopy(oldNames, 0, names, 0, size);
+    System.arraycopy(oldStatuses, 0, statuses, 0, size);
+    System.arraycopy(oldTimestamps, 0, timestamps, 0, size);
+    System.arraycopy(oldValues, 0, values, 0, size);
+    if (dataTypes != null) {
+      dataTypes = Arrays.copyOf(dataTypes, values.length);
+    }
+    for (int slot = 0; slot < size; slot++) {
+      insert(names[slot], slot);
+    }
+  }
+
+  private void insert(String name, int slot) {
+    int mask = table.length - 1;
+    int i = hash(name) & mask;
+    while (table[i] != EMPTY) {
+      i = (i + 1) & mask;
+    }
+    table[i] = slot;
+  }
+}
@@ -7,30 +7,168 @@
 package com.prosysopc.ua.samples.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
 
 import com.prosysopc.ua.EventData;
 import com.prosysopc.ua.EventListener;
+import com.prosysopc.ua.encoding.EncoderContext;
 import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
 import com.prosysopc.ua.server.ContentFilterDefinition;
+import com.prosysopc.ua.server.NodeManagerTable;
 import com.prosysopc.ua.server.nodes.UaObjectNode;
 import com.prosysopc.ua.stack.builtintypes.ByteString;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.ExtensionObject;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
 import com.prosysopc.ua.stack.builtintypes.QualifiedName;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.ContentFilter;
+import com.prosysopc.ua.stack.core.ContentFilterElement;
+import com.prosysopc.ua.stack.core.ElementOperand;
 import com.prosysopc.ua.stack.core.EventFilter;
 import com.prosysopc.ua.stack.core.EventFilterResult;
+import com.prosysopc.ua.stack.core.FilterOperator;
 import com.prosysopc.ua.stack.core.HistoryEventFieldList;
+import com.prosysopc.ua.stack.core.LiteralOperand;
+import com.prosysopc.ua.stack.core.SimpleAttributeOperand;
+import com.prosysopc.ua.stack.core.StatusCodes;
 
 /**
- *
+ * A sample class for keeping the event history of an object node.
+ * <p>
+ * The events are kept in a ring buffer of columns: the time, event type, source node and severity
+ * of each event are stored next to the event, so the common conditions can be checked without
+ * touching the event itself. The times form the time index, and the positions of the events of
+ * each event type and each source node are kept in secondary indexes. A read that filters by
+ * OfType, by SourceNode or by Severity therefore visits only the candidate events of the interval.
+ * An event that arrives late is inserted at its time, so the newer events move by one position.
+ * <p>
+ * Parsing an EventFilter is relatively expensive, so the compiled filters are cached.
  */
 public class EventHistory {
+  /**
+   * A parsed EventFilter and the conditions of its where clause that the indexes can answer.
+   */
+  private static class CompiledFilter {
+    final List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
+    final ContentFilterDefinition filterDefinition = new ContentFilterDefinition();
+    /** Whether each recorded event type is the type of the OfType condition or its subtype */
+    final Map<NodeId, Boolean> matchingTypes = new ConcurrentHashMap<NodeId, Boolean>();
+    int minSeverity = Integer.MIN_VALUE;
+    NodeId ofType;
+    NodeId source;
+  }
+
+  /**
+   * The positions of the events of one event type or source node, oldest first.
+   */
+  private static class PositionList {
+    private int head;
+    private long[] positions = new long[16];
+    private int size;
+
+    void add(long position) {
+      if (size == positions.length) {
+        long[] grown = new long[positions.length * 2];
+        for (int i = 0; i < size; i++) {
+          grown[i] = get(i);
+        }
+        positions = grown;
+        head = 0;
+      }
+      positions[(head + size) % positions.length] = position;
+      size++;
+    }
+
+    long get(int i) {
+      return positions[(head + i) % positions.length];
+    }
+
+    /**
+     * Insert a position, keeping the positions sorted.
+     */
+    void insert(long position) {
+      int i = lowerBound(position);
+      add(position);
+      for (int j = size - 1; j > i; j--) {
+        set(j, get(j - 1));
+      }
+      set(i, position);
+    }
+
+    /**
+     * @return the index of the first position that is greater than or equal to the position
+     */
+    int lowerBound(long position) {
+      int low = 0;
+      int high = size;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (get(mid) < position) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+
+    void set(int i, long position) {
+      positions[(head + i) % positions.length] = position;
+    }
+
+    /**
+     * Move the positions from the given position on by one, after an event was inserted before
+     * them.
+     */
+    void shift(long from) {
+      for (int i = lowerBound(from); i < size; i++) {
+        set(i, get(i) + 1);
+      }
+    }
+
+    /**
+     * Remove the positions before the first position.
+     */
+    void trim(long first) {
+      while ((size > 0) && (positions[head] < first)) {
+        head = (head + 1) % positions.length;
+        size--;
+      }
+    }
+  }
+
+  private static final int FILTER_CACHE_SIZE = 64;
+  private static final List<List<QualifiedName>> INDEXED_FIELDS = Arrays.asList(
+      Collections.singletonList(new QualifiedName("EventType")),
+      Collections.singletonList(new QualifiedName("SourceNode")),
+      Collections.singletonList(new QualifiedName("Severity")));
+
+  private final Map<NodeId, PositionList> bySource = new HashMap<NodeId, PositionList>();
+  private final Map<NodeId, PositionList> byType = new HashMap<NodeId, PositionList>();
   private final int capacity = 10000;
-  private final List<EventData> events = new CopyOnWriteArrayList<EventData>();
+  private final EventData[] events = new EventData[capacity];
+  private final Map<EventFilter, CompiledFilter> filters = new LinkedHashMap<EventFilter, CompiledFilter>(16, 0.75f,
+      true) {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<EventFilter, CompiledFilter> eldest) {
+      return size() > FILTER_CACHE_SIZE;
+    }
+  };
+  /** The absolute position of the oldest event; positions grow by one for each recorded event */
+  private long first;
   private final EventListener listener = new EventListener() {
 
     @Override
@@ -40,13 +178,17 @@ public class EventHistory {
 
     @Override
     public void onEvent(UaNode node, EventData eventData) {
-      events.add(eventData);
-      while (events.size() > capacity) {
-        events.remove(0);
-      }
+      record(eventData);
     }
   };
+  private final StampedLock lock = new StampedLock();
   private final UaObjectNode node;
+  private final int[] severities = new int[capacity];
+  private int size;
+  private final NodeId[] sources = new NodeId[capacity];
+  /** The time of each event, oldest first */
+  private final long[] times = new long[capacity];
+  private final NodeId[] types = new NodeId[capacity];
 
   /**
    * @param node
@@ -64,15 +206,28 @@ public class EventHistory {
    */
   public void deleteEvents(ByteString[] eventIds, StatusCode[] operationResults,
       DiagnosticInfo[] operationDiagnostics) {
-    for (int i = events.size() - 1; i >= 0; i--) {
-      EventData event = events.get(i);
-      ByteString id1 = event.getEventId();
-      for (ByteString eventId : eventIds) {
-        if (eventId.equals(id1)) {
-          events.remove(i);
-          break;
+    long stamp = lock.writeLock();
+    try {
+      for (int i = 0; i < eventIds.length; i++) {
+        operationResults[i] = StatusCode.valueOf(StatusCodes.Bad_NoData);
+      }
+      for (long p = first; p < first + size; p++) {
+        int slot = slot(p);
+        if (events[slot] == null) {
+          continue;
+        }
+        ByteString id1 = events[slot].getEventId();
+        for (int i = 0; i < eventIds.length; i++) {
+          if (eventIds[i].equals(id1)) {
+            // The positions stay in the indexes; deleted events are skipped when reading
+            events[slot] = null;
+            operationResults[i] = StatusCode.GOOD;
+            break;
+          }
         }
       }
+    } finally {
+      lock.unlockWrite(stamp);
     }
   }
 
@@ -81,66 +236,303 @@ public class EventHistory {
    * @param endTime the end of the interval
    * @param maxValues maximum number of values to return
    * @param eventFilter the event filter that defines the fields and events to return
-   * @param firstIndex the index of the first entry in the history data to return (i.e. the
-   *        continuationPoint returned for the previous request)
+   * @param cursor the position after the last event of the previous page (i.e. the
+   *        continuationPoint returned for the previous request), or null for the first page
    * @param history the list of values to fill in
-   * @return the first index that was not added to the history, in case there are more than
-   *         maxValues entries to return (i.e. the continuationPoint to return)
+   * @return the position after the last added event, in case there are more than maxValues
+   *         entries to return (i.e. the continuationPoint to return)
    */
-  public Integer readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
-      List<HistoryEventFieldList> history, int firstIndex) {
-    int i = 0;
+  public HistoryCursor readEvents(DateTime startTime, DateTime endTime, int maxValues, EventFilter eventFilter,
+      List<HistoryEventFieldList> history, HistoryCursor cursor) {
     boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
     boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-    List<List<QualifiedName>> fieldPaths = new ArrayList<List<QualifiedName>>();
-    ContentFilterDefinition filterDefinition = new ContentFilterDefinition();
-    EventFilterResult eventFilterResult = new EventFilterResult();
-    ContentFilterDefinition.parseEventFilter(node.getNodeManager().getNodeManagerTable().getNodeManagerRoot(),
-        eventFilter, fieldPaths, filterDefinition, eventFilterResult);
-    if (startTimeDefined || !endTimeDefined) {
-      for (int j = 0; j < events.size(); j++) {
-        EventData event = events.get(j);
-        DateTime t = event.getTime();
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if (compareToEnd > 0) {
-          break;
+    // Returned starting with the newest if only the end time is defined
+    boolean forward = startTimeDefined || !endTimeDefined;
+    CompiledFilter filter = compile(eventFilter);
+    long stamp = lock.readLock();
+    try {
+      long from = first + (startTimeDefined ? lowerBound(startTime.getValue()) : 0);
+      long to = first + (endTimeDefined ? upperBound(endTime.getValue()) : size);
+      if (cursor != null) {
+        // Seek directly to the event after the cursor
+        if (forward) {
+          from = Math.max(from, first + lowerBound(cursor.getTime()) + cursor.getSeq());
         } else {
-          final int compareToStart = t.compareTo(startTime);
-          if (compareToStart >= 0) {
-            if ((i >= firstIndex) && filterDefinition.evaluate(event, true)) {
-              history.add(new HistoryEventFieldList(Variant.asObjectArray(event.getFieldValues(fieldPaths))));
-            }
-            i++;
-            if (history.size() == maxValues) {
-              // Return continuation point if no more events exist
-              // and both timestamps were defined
-              return endTimeDefined && (j < events.size()) ? i : null;
-            }
-          }
+          to = Math.min(to, first + upperBound(cursor.getTime()) - cursor.getSeq());
         }
       }
-    } else {
-      // !startTimeDefined && endTimeDefined
-      for (int j = events.size() - 1; j >= 0; j--) {
-        EventData event = events.get(j);
-        DateTime t = event.getTime();
-        final int compareToEnd = t.compareTo(endTime);
-        if (compareToEnd > 0) {
+      if (from >= to) {
+        return null;
+      }
+      long[] candidates = candidates(filter, from, to);
+      int count = candidates == null ? (int) (to - from) : candidates.length;
+      for (int k = 0; k < count; k++) {
+        int i = forward ? k : count - 1 - k;
+        long p = candidates == null ? from + i : candidates[i];
+        int slot = slot(p);
+        EventData event = events[slot];
+        if ((event == null) || (severities[slot] < filter.minSeverity)
+            || ((filter.source != null) && !filter.source.equals(sources[slot]))
+            || !filter.filterDefinition.evaluate(event, true)) {
           continue;
-        } else {
-          if (i >= firstIndex) {
-            history.add(new HistoryEventFieldList(event.getFieldValues(fieldPaths)));
-          }
-          i++;
-          if (history.size() == maxValues) {
-            // Return continuation point if no more events exist and
-            // both timestamps were defined
-            return startTimeDefined && (j > 0) ? i : null;
+        }
+        history.add(new HistoryEventFieldList(Variant.asObjectArray(event.getFieldValues(filter.fieldPaths))));
+        if (history.size() == maxValues) {
+          // Return continuation point if more events may exist
+          if (k == count - 1) {
+            return null;
           }
+          long t = times[slot];
+          return new HistoryCursor(t,
+              forward ? (int) (p - first - lowerBound(t)) + 1 : (int) (first + upperBound(t) - p));
+        }
+      }
+      return null;
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Find the events of the interval with the secondary indexes.
+   *
+   * @return the positions of the candidate events in [from, to), oldest first, or null if the
+   *         filter does not use the indexes and all events of the interval are candidates
+   */
+  private long[] candidates(CompiledFilter filter, long from, long to) {
+    List<PositionList> lists = new ArrayList<PositionList>();
+    if (filter.source != null) {
+      PositionList list = bySource.get(filter.source);
+      if (list != null) {
+        lists.add(list);
+      }
+    } else if (filter.ofType != null) {
+      for (Map.Entry<NodeId, PositionList> e : byType.entrySet()) {
+        if (filter.matchingTypes.computeIfAbsent(e.getKey(), t -> isSubtype(t, filter.ofType))) {
+          lists.add(e.getValue());
+        }
+      }
+    } else {
+      return null;
+    }
+    long[] result = new long[16];
+    int n = 0;
+    for (PositionList list : lists) {
+      for (int i = list.lowerBound(from); (i < list.size) && (list.get(i) < to); i++) {
+        if (n == result.length) {
+          result = Arrays.copyOf(result, n * 2);
+        }
+        result[n++] = list.get(i);
+      }
+    }
+    result = Arrays.copyOf(result, n);
+    if (lists.size() > 1) {
+      Arrays.sort(result);
+    }
+    return result;
+  }
+
+  private CompiledFilter compile(EventFilter eventFilter) {
+    synchronized (filters) {
+      CompiledFilter filter = filters.get(eventFilter);
+      if (filter != null) {
+        return filter;
+      }
+    }
+    CompiledFilter filter = new CompiledFilter();
+    NodeManagerTable nodeManagerTable = node.getNodeManager().getNodeManagerTable();
+    ContentFilterDefinition.parseEventFilter(nodeManagerTable.getNodeManagerRoot(), eventFilter, filter.fieldPaths,
+        filter.filterDefinition, new EventFilterResult());
+    ContentFilter whereClause = eventFilter == null ? null : eventFilter.getWhereClause();
+    if ((whereClause != null) && (whereClause.getElements() != null) && (whereClause.getElements().length > 0)) {
+      try {
+        collectConditions(whereClause.getElements(), 0, nodeManagerTable.getEncoderContext(), filter);
+      } catch (Exception e) {
+        // Not understood: the filter is evaluated against all events of the interval
+        filter.ofType = null;
+        filter.source = null;
+        filter.minSeverity = Integer.MIN_VALUE;
+      }
+    }
+    synchronized (filters) {
+      filters.put(eventFilter, filter);
+    }
+    return filter;
+  }
+
+  /**
+   * Collect the conditions that every matching event must fulfill: the operands of the And
+   * elements starting from the first element, and of those the OfType, SourceNode equality and
+   * Severity comparisons.
+   */
+  private void collectConditions(ContentFilterElement[] elements, int index, EncoderContext ctx,
+      CompiledFilter filter) throws Exception {
+    ContentFilterElement element = elements[index];
+    ExtensionObject[] operands = element.getFilterOperands();
+    FilterOperator operator = element.getFilterOperator();
+    if (FilterOperator.And.equals(operator)) {
+      for (ExtensionObject operand : operands) {
+        Object o = operand.decode(ctx);
+        if (o instanceof ElementOperand) {
+          collectConditions(elements, ((ElementOperand) o).getIndex().intValue(), ctx, filter);
+        }
+      }
+    } else if (FilterOperator.OfType.equals(operator)) {
+      Object type = literal(operands[0].decode(ctx));
+      if (type instanceof NodeId) {
+        filter.ofType = (NodeId) type;
+      }
+    } else if ((operands != null) && (operands.length == 2)) {
+      Object a = operands[0].decode(ctx);
+      Object b = operands[1].decode(ctx);
+      String field = fieldName(a);
+      Object value = literal(b);
+      if (FilterOperator.Equals.equals(operator) && "SourceNode".equals(field) && (value instanceof NodeId)) {
+        filter.source = (NodeId) value;
+      } else if ("Severity".equals(field) && (value instanceof Number)) {
+        int severity = ((Number) value).intValue();
+        if (FilterOperator.GreaterThan.equals(operator)) {
+          filter.minSeverity = Math.max(filter.minSeverity, severity + 1);
+        } else if (FilterOperator.GreaterThanOrEqual.equals(operator)) {
+          filter.minSeverity = Math.max(filter.minSeverity, severity);
         }
       }
     }
+  }
+
+  private String fieldName(Object operand) {
+    if (operand instanceof SimpleAttributeOperand) {
+      QualifiedName[] path = ((SimpleAttributeOperand) operand).getBrowsePath();
+      if ((path != null) && (path.length == 1) && (path[0].getNamespaceIndex() == 0)) {
+        return path[0].getName();
+      }
+    }
+    return null;
+  }
+
+  private boolean isSubtype(NodeId type, NodeId superType) {
+    if (type.equals(superType)) {
+      return true;
+    }
+    try {
+      UaType uaType = node.getNodeManager().getNodeManagerTable().getType(type);
+      return (uaType != null) && uaType.inheritsFrom(superType);
+    } catch (Exception e) {
+      // An unknown type cannot match the OfType condition either
+      return false;
+    }
+  }
+
+  private Object literal(Object operand) {
+    if (operand instanceof LiteralOperand) {
+      Variant value = ((LiteralOperand) operand).getValue();
+      return value == null ? null : value.getValue();
+    }
     return null;
   }
 
+  /**
+   * @return the index of the first event at or after the time, relative to the oldest event
+   */
+  private int lowerBound(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (times[slot(first + mid)] < time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  private void record(EventData eventData) {
+    Variant[] fields = eventData.getFieldValues(INDEXED_FIELDS);
+    Object type = fields[0] == null ? null : fields[0].getValue();
+    Object source = fields[1] == null ? null : fields[1].getValue();
+    Object severity = fields[2] == null ? null : fields[2].getValue();
+    long t = eventData.getTime().getValue();
+    long stamp = lock.writeLock();
+    try {
+      if (size == capacity) {
+        // Drop the oldest event and its index entries
+        int oldest = slot(first);
+        first++;
+        size--;
+        unindex(byType, types[oldest]);
+        unindex(bySource, sources[oldest]);
+      }
+      // A late event is inserted after the events of the same time, moving the newer ones by one
+      long p = first + upperBound(t);
+      if (p < first + size) {
+        for (long q = first + size; q > p; q--) {
+          int to = slot(q);
+          int from = slot(q - 1);
+          events[to] = events[from];
+          times[to] = times[from];
+          types[to] = types[from];
+          sources[to] = sources[from];
+          severities[to] = severities[from];
+        }
+        for (PositionList list : byType.values()) {
+          list.shift(p);
+        }
+        for (PositionList list : bySource.values()) {
+          list.shift(p);
+        }
+      }
+      int slot = slot(p);
+      events[slot] = eventData;
+      times[slot] = t;
+      types[slot] = type instanceof NodeId ? (NodeId) type : null;
+      sources[slot] = source instanceof NodeId ? (NodeId) source : null;
+      severities[slot] = severity instanceof Number ? ((Number) severity).intValue() : 0;
+      size++;
+      if (types[slot] != null) {
+        byType.computeIfAbsent(types[slot], k -> new PositionList()).insert(p);
+      }
+      if (sources[slot] != null) {
+        bySource.computeIfAbsent(sources[slot], k -> new PositionList()).insert(p);
+      }
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  private int slot(long position) {
+    return (int) (position % capacity);
+  }
+
+  private void unindex(Map<NodeId, PositionList> index, NodeId key) {
+    if (key == null) {
+      return;
+    }
+    PositionList list = index.get(key);
+    if (list != null) {
+      list.trim(first);
+      if (list.size == 0) {
+        index.remove(key);
+      }
+    }
+  }
+
+  /**
+   * @return the index of the first event after the time, relative to the oldest event
+   */
+  private int upperBound(long time) {
+    int low = 0;
+    int high = size;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (times[slot(first + mid)] <= time) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
 }
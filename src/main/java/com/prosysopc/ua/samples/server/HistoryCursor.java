@@ -0,0 +1,48 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+/**
+ * The position of a paged history read, used as its continuation point.
+ * <p>
+ * Instead of the index of the next entry, the cursor holds the time of the last returned entry and
+ * the number of returned entries with that same time, which breaks the tie between entries with
+ * equal timestamps. The next page is found with a binary search for the time, so resuming does not
+ * depend on the entries that were removed from the history meanwhile.
+ */
+final class HistoryCursor {
+  private final int seq;
+  private final long time;
+
+  /**
+   * @param time the time of the last returned entry, in DateTime ticks
+   * @param seq the number of returned entries with that time
+   */
+  HistoryCursor(long time, int seq) {
+    this.time = time;
+    this.seq = seq;
+  }
+
+  /**
+   * @return the number of returned entries with the time of the cursor
+   */
+  int getSeq() {
+    return seq;
+  }
+
+  /**
+   * @return the time of the last returned entry, in DateTime ticks
+   */
+  long getTime() {
+    return time;
+  }
+
+  @Override
+  public String toString() {
+    return "HistoryCursor[time=" + time + ", seq=" + seq + "]";
+  }
+}
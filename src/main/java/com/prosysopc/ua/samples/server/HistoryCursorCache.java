@@ -0,0 +1,144 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The open {@link HistoryCursor}s of each session.
+ * <p>
+ * A session can hold a limited number of cursors; issuing one more drops the oldest. Cursors that
+ * are older than the expiry time are dropped as well, so abandoned reads and closed sessions do not
+ * accumulate.
+ * <p>
+ * Resuming a read does not consume its cursor, so a client that did not get the response can
+ * repeat the request with the same continuation point. A cursor is dropped once the cursor of the
+ * next page is resumed, as the client then has the page.
+ */
+class HistoryCursorCache {
+  /**
+   * The expiry time of a cursor and the cursor of the previous page.
+   */
+  private static final class Entry {
+    final long deadline;
+    final HistoryCursor previous;
+
+    Entry(long deadline, HistoryCursor previous) {
+      this.deadline = deadline;
+      this.previous = previous;
+    }
+  }
+
+  private static final Object NO_SESSION = new Object();
+
+  private final long expiryMillis;
+  private final int maxPerSession;
+  private final Map<Object, LinkedHashMap<HistoryCursor, Entry>> sessions =
+      new ConcurrentHashMap<Object, LinkedHashMap<HistoryCursor, Entry>>();
+
+  /**
+   * @param maxPerSession the maximum number of open cursors of one session
+   * @param expiryMillis the time after which an unused cursor is dropped
+   */
+  HistoryCursorCache(int maxPerSession, long expiryMillis) {
+    this.maxPerSession = maxPerSession;
+    this.expiryMillis = expiryMillis;
+  }
+
+  /**
+   * Register a new cursor for the session.
+   *
+   * @param session the session of the read
+   * @param previous the cursor the page was read from, null for the first page
+   * @param cursor the cursor to return as the continuation point, may be null
+   * @return the cursor
+   */
+  HistoryCursor issue(Object session, HistoryCursor previous, HistoryCursor cursor) {
+    if (cursor == null) {
+      return null;
+    }
+    long now = System.currentTimeMillis();
+    purge(now);
+    Object key = key(session);
+    while (true) {
+      LinkedHashMap<HistoryCursor, Entry> cursors = sessions.computeIfAbsent(key, k -> newCursors());
+      synchronized (cursors) {
+        // Retry if the map was purged as empty meanwhile
+        if (sessions.get(key) == cursors) {
+          cursors.put(cursor, new Entry(now + expiryMillis, previous));
+          return cursor;
+        }
+      }
+    }
+  }
+
+  /**
+   * Find a cursor of the session for resuming the read. The cursor stays valid, so the same page
+   * can be read again; the cursor of the previous page is dropped.
+   *
+   * @param session the session of the read
+   * @param continuationPoint the continuation point given by the client, null for a new read
+   * @return the cursor, or null for a new read
+   * @throws StatusException Bad_ContinuationPointInvalid if the cursor was not issued to the
+   *         session, has been dropped or has expired
+   */
+  HistoryCursor resume(Object session, Object continuationPoint) throws StatusException {
+    if (continuationPoint == null) {
+      return null;
+    }
+    LinkedHashMap<HistoryCursor, Entry> cursors = sessions.get(key(session));
+    Entry entry = null;
+    if (cursors != null) {
+      synchronized (cursors) {
+        entry = cursors.get(continuationPoint);
+        if ((entry != null) && (entry.previous != null)) {
+          cursors.remove(entry.previous);
+        }
+      }
+    }
+    if ((entry == null) || (entry.deadline < System.currentTimeMillis())) {
+      throw new StatusException(StatusCodes.Bad_ContinuationPointInvalid);
+    }
+    return (HistoryCursor) continuationPoint;
+  }
+
+  private Object key(Object session) {
+    return session == null ? NO_SESSION : session;
+  }
+
+  private LinkedHashMap<HistoryCursor, Entry> newCursors() {
+    return new LinkedHashMap<HistoryCursor, Entry>() {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<HistoryCursor, Entry> eldest) {
+        return size() > maxPerSession;
+      }
+    };
+  }
+
+  private void purge(long now) {
+    for (Map.Entry<Object, LinkedHashMap<HistoryCursor, Entry>> session : sessions.entrySet()) {
+      LinkedHashMap<HistoryCursor, Entry> cursors = session.getValue();
+      synchronized (cursors) {
+        // Oldest first, so the expired cursors are at the head
+        for (Iterator<Entry> c = cursors.values().iterator(); c.hasNext() && (c.next().deadline < now);) {
+          c.remove();
+        }
+        if (cursors.isEmpty()) {
+          sessions.remove(session.getKey(), cursors);
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,261 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.prosysopc.ua.ServiceException;
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.server.HistoryContinuationPoint;
+import com.prosysopc.ua.server.HistoryManagerListener;
+import com.prosysopc.ua.server.HistoryResult;
+import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.stack.builtintypes.ByteString;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+import com.prosysopc.ua.stack.core.EventFilter;
+import com.prosysopc.ua.stack.core.HistoryData;
+import com.prosysopc.ua.stack.core.HistoryEvent;
+import com.prosysopc.ua.stack.core.HistoryModifiedData;
+import com.prosysopc.ua.stack.core.HistoryReadDetails;
+import com.prosysopc.ua.stack.core.HistoryReadValueId;
+import com.prosysopc.ua.stack.core.HistoryUpdateDetails;
+import com.prosysopc.ua.stack.core.HistoryUpdateResult;
+import com.prosysopc.ua.stack.core.PerformUpdateType;
+import com.prosysopc.ua.stack.core.StatusCodes;
+import com.prosysopc.ua.stack.core.TimestampsToReturn;
+import com.prosysopc.ua.stack.utils.NumericRange;
+
+/**
+ * A HistoryManagerListener that passes the history requests of each node to the historian of the
+ * node.
+ * <p>
+ * A HistoryManager has only one listener, so this lets a node manager serve some nodes from one
+ * historian (e.g. the {@link TimescaleHistorian}) and the rest from another one (e.g. the
+ * {@link MyHistorian}). The operation context of each historian is kept separately.
+ */
+public class HistoryListenerRouter implements HistoryManagerListener {
+  private volatile HistoryManagerListener defaultListener;
+  private final Map<UaNode, HistoryManagerListener> listeners = new ConcurrentHashMap<UaNode, HistoryManagerListener>();
+
+  /**
+   * Create a router whose nodes have no history until they are routed.
+   */
+  public HistoryListenerRouter() {
+    this(null);
+  }
+
+  /**
+   * @param defaultListener the historian of the nodes that are not routed explicitly, or null
+   */
+  public HistoryListenerRouter(HistoryManagerListener defaultListener) {
+    this.defaultListener = defaultListener;
+  }
+
+  @Override
+  public Object onBeginHistoryRead(ServiceContext serviceContext, HistoryReadDetails details,
+      TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
+      HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {
+    Map<HistoryManagerListener, Object> contexts = new IdentityHashMap<HistoryManagerListener, Object>();
+    for (HistoryManagerListener listener : getAllListeners()) {
+      contexts.put(listener,
+          listener.onBeginHistoryRead(serviceContext, details, timestampsToReturn, nodesToRead, continuationPoints,
+              results));
+    }
+    return contexts;
+  }
+
+  @Override
+  public Object onBeginHistoryUpdate(ServiceContext serviceContext, HistoryUpdateDetails[] details,
+      HistoryUpdateResult[] results, DiagnosticInfo[] diagnosticInfos) throws ServiceException {
+    Map<HistoryManagerListener, Object> contexts = new IdentityHashMap<HistoryManagerListener, Object>();
+    for (HistoryManagerListener listener : getAllListeners()) {
+      contexts.put(listener, listener.onBeginHistoryUpdate(serviceContext, details, results, diagnosticInfos));
+    }
+    return contexts;
+  }
+
+  @Override
+  public void onDeleteAtTimes(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
+      throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onDeleteAtTimes(serviceContext, contextOf(operationContext, listener), nodeId, node, reqTimes,
+        operationResults, operationDiagnostics);
+  }
+
+  @Override
+  public void onDeleteEvents(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      ByteString[] eventIds, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
+      throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onDeleteEvents(serviceContext, contextOf(operationContext, listener), nodeId, node, eventIds,
+        operationResults, operationDiagnostics);
+  }
+
+  @Override
+  public void onDeleteModified(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime startTime, DateTime endTime) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onDeleteModified(serviceContext, contextOf(operationContext, listener), nodeId, node, startTime,
+        endTime);
+  }
+
+  @Override
+  public void onDeleteRaw(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime startTime, DateTime endTime) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onDeleteRaw(serviceContext, contextOf(operationContext, listener), nodeId, node, startTime, endTime);
+  }
+
+  @Override
+  public void onEndHistoryRead(ServiceContext serviceContext, Object operationContext, HistoryReadDetails details,
+      TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
+      HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {
+    for (HistoryManagerListener listener : getAllListeners()) {
+      listener.onEndHistoryRead(serviceContext, contextOf(operationContext, listener), details, timestampsToReturn,
+          nodesToRead, continuationPoints, results);
+    }
+  }
+
+  @Override
+  public void onEndHistoryUpdate(ServiceContext serviceContext, Object operationContext, HistoryUpdateDetails[] details,
+      HistoryUpdateResult[] results, DiagnosticInfo[] diagnosticInfos) throws ServiceException {
+    for (HistoryManagerListener listener : getAllListeners()) {
+      listener.onEndHistoryUpdate(serviceContext, contextOf(operationContext, listener), details, results,
+          diagnosticInfos);
+    }
+  }
+
+  @Override
+  public Object onReadAtTimes(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime[] reqTimes,
+      Boolean useSimpleBounds, NumericRange indexRange, HistoryData historyData) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    return listener.onReadAtTimes(serviceContext, contextOf(operationContext, listener), timestampsToReturn, nodeId,
+        node, continuationPoint, reqTimes, useSimpleBounds, indexRange, historyData);
+  }
+
+  @Override
+  public Object onReadEvents(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      Object continuationPoint, DateTime startTime, DateTime endTime, UnsignedInteger numValuesPerNode,
+      EventFilter filter, HistoryEvent historyEvent) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    return listener.onReadEvents(serviceContext, contextOf(operationContext, listener), nodeId, node,
+        continuationPoint, startTime, endTime, numValuesPerNode, filter, historyEvent);
+  }
+
+  @Override
+  public Object onReadModified(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime,
+      DateTime endTime, UnsignedInteger numValuesPerNode, NumericRange indexRange, HistoryModifiedData historyData)
+      throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    return listener.onReadModified(serviceContext, contextOf(operationContext, listener), timestampsToReturn, nodeId,
+        node, continuationPoint, startTime, endTime, numValuesPerNode, indexRange, historyData);
+  }
+
+  @Override
+  public Object onReadProcessed(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime,
+      DateTime endTime, Double processingInterval, NodeId aggregateType, AggregateConfiguration aggregateConfiguration,
+      NumericRange indexRange, HistoryData aggregateData) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    return listener.onReadProcessed(serviceContext, contextOf(operationContext, listener), timestampsToReturn, nodeId,
+        node, continuationPoint, startTime, endTime, processingInterval, aggregateType, aggregateConfiguration,
+        indexRange, aggregateData);
+  }
+
+  @Override
+  public Object onReadRaw(ServiceContext serviceContext, Object operationContext, TimestampsToReturn timestampsToReturn,
+      NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime, DateTime endTime,
+      UnsignedInteger numValuesPerNode, Boolean returnBounds, NumericRange indexRange, HistoryData historyData)
+      throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    return listener.onReadRaw(serviceContext, contextOf(operationContext, listener), timestampsToReturn, nodeId, node,
+        continuationPoint, startTime, endTime, numValuesPerNode, returnBounds, indexRange, historyData);
+  }
+
+  @Override
+  public void onUpdateData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DataValue[] updateValues, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onUpdateData(serviceContext, contextOf(operationContext, listener), nodeId, node, updateValues,
+        performInsertReplace, operationResults, operationDiagnostics);
+  }
+
+  @Override
+  public void onUpdateEvent(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      Variant[] eventFields, EventFilter filter, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onUpdateEvent(serviceContext, contextOf(operationContext, listener), nodeId, node, eventFields, filter,
+        performInsertReplace, operationResults, operationDiagnostics);
+  }
+
+  @Override
+  public void onUpdateStructureData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DataValue[] updateValues, PerformUpdateType performUpdateType, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    HistoryManagerListener listener = getListener(node);
+    listener.onUpdateStructureData(serviceContext, contextOf(operationContext, listener), nodeId, node, updateValues,
+        performUpdateType, operationResults, operationDiagnostics);
+  }
+
+  /**
+   * Serve the history of the node from the given historian.
+   *
+   * @param node the node
+   * @param listener the historian of the node
+   */
+  public void route(UaNode node, HistoryManagerListener listener) {
+    listeners.put(node, listener);
+  }
+
+  /**
+   * @param defaultListener the historian of the nodes that are not routed explicitly, or null
+   */
+  public void setDefaultListener(HistoryManagerListener defaultListener) {
+    this.defaultListener = defaultListener;
+  }
+
+  private Object contextOf(Object operationContext, HistoryManagerListener listener) {
+    return operationContext instanceof Map ? ((Map<?, ?>) operationContext).get(listener) : null;
+  }
+
+  private Set<HistoryManagerListener> getAllListeners() {
+    Set<HistoryManagerListener> all = new LinkedHashSet<HistoryManagerListener>(listeners.values());
+    HistoryManagerListener d = defaultListener;
+    if (d != null) {
+      all.add(d);
+    }
+    return all;
+  }
+
+  private HistoryManagerListener getListener(UaNode node) throws StatusException {
+    HistoryManagerListener listener = node == null ? null : listeners.get(node);
+    if (listener == null) {
+      listener = defaultListener;
+    }
+    if (listener == null) {
+      throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+    }
+    return listener;
+  }
+}
@@ -0,0 +1,211 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+
+/**
+ * A write-behind queue between the data change listeners of the historized variables and the
+ * history storage.
+ * <p>
+ * The listeners only enqueue the new value into a lock-free queue, so the thread that writes the
+ * variable does not wait for the storage. A single historian thread drains the queue in batches,
+ * groups each batch by variable and stores the samples of each {@link ValueHistory} under one lock
+ * acquisition. When the queue is full, the {@link OverflowPolicy} decides whether the oldest
+ * queued sample is dropped or the writer waits.
+ */
+public class HistoryWriteQueue {
+  /**
+   * What to do when a sample is added to a full queue.
+   */
+  public enum OverflowPolicy {
+    /** Wait until the historian thread has made room */
+    BLOCK,
+    /** Drop the oldest queued sample */
+    DROP_OLDEST
+  }
+
+  private static class Entry {
+    final ValueHistory history;
+    final DataValue value;
+
+    Entry(ValueHistory history, DataValue value) {
+      this.history = history;
+      this.value = value;
+    }
+  }
+
+  private static final int BATCH_SIZE = 1024;
+  private static Logger logger = LoggerFactory.getLogger(HistoryWriteQueue.class);
+
+  private final AtomicLong blockedWrites = new AtomicLong();
+  private final int capacity;
+  private volatile boolean closed;
+  private final AtomicLong droppedSamples = new AtomicLong();
+  private final OverflowPolicy policy;
+  private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+  private final AtomicInteger size = new AtomicInteger();
+  private final AtomicLong storedSamples = new AtomicLong();
+  private final Thread thread;
+  private volatile boolean waiting;
+
+  /**
+   * Create the queue and start its historian thread.
+   *
+   * @param capacity the maximum number of queued samples
+   * @param policy what to do when the queue is full
+   */
+  public HistoryWriteQueue(int capacity, OverflowPolicy policy) {
+    if (capacity <= 0) {
+      throw new IllegalArgumentException("capacity must be a positive value");
+    }
+    this.capacity = capacity;
+    this.policy = policy;
+    thread = new Thread(this::drain, "Historian");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Stop the historian thread after it has stored the queued samples.
+   */
+  public void close() {
+    closed = true;
+    LockSupport.unpark(thread);
+    try {
+      thread.join(TimeUnit.SECONDS.toMillis(10));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * @return the number of times a writer had to wait for room in the queue
+   */
+  public long getBlockedWrites() {
+    return blockedWrites.get();
+  }
+
+  /**
+   * @return the number of samples dropped because the queue was full
+   */
+  public long getDroppedSamples() {
+    return droppedSamples.get();
+  }
+
+  /**
+   * @return the overflow policy of the queue
+   */
+  public OverflowPolicy getPolicy() {
+    return policy;
+  }
+
+  /**
+   * @return the number of samples waiting to be stored
+   */
+  public int getQueuedSamples() {
+    return size.get();
+  }
+
+  /**
+   * @return the number of samples stored by the historian thread
+   */
+  public long getStoredSamples() {
+    return storedSamples.get();
+  }
+
+  @Override
+  public String toString() {
+    return "HistoryWriteQueue[queued=" + size.get() + ", stored=" + storedSamples.get() + ", dropped="
+        + droppedSamples.get() + ", blocked=" + blockedWrites.get() + "]";
+  }
+
+  /**
+   * Queue a new value of a variable for storing into its history.
+   */
+  void add(ValueHistory history, DataValue value) {
+    if (closed) {
+      // The historian thread is gone, store directly
+      history.record(value);
+      return;
+    }
+    if (size.incrementAndGet() > capacity) {
+      if (policy == OverflowPolicy.DROP_OLDEST) {
+        if (queue.poll() != null) {
+          size.decrementAndGet();
+          droppedSamples.incrementAndGet();
+        }
+      } else {
+        blockedWrites.incrementAndGet();
+        size.decrementAndGet();
+        while (!closed && (size.incrementAndGet() > capacity)) {
+          size.decrementAndGet();
+          LockSupport.unpark(thread);
+          LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+        }
+      }
+    }
+    queue.offer(new Entry(history, value));
+    if (waiting) {
+      LockSupport.unpark(thread);
+    }
+  }
+
+  private void drain() {
+    // The batch grouped per variable, in the order of the samples of each variable
+    Map<ValueHistory, List<DataValue>> batch = new IdentityHashMap<ValueHistory, List<DataValue>>();
+    while (true) {
+      Entry entry = queue.poll();
+      if (entry == null) {
+        if (closed) {
+          return;
+        }
+        waiting = true;
+        // Re-check, a writer may have added a sample before seeing the flag
+        if (queue.isEmpty() && !closed) {
+          LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+        }
+        waiting = false;
+        continue;
+      }
+      int polled = 0;
+      do {
+        size.decrementAndGet();
+        List<DataValue> values = batch.get(entry.history);
+        if (values == null) {
+          values = new ArrayList<DataValue>();
+          batch.put(entry.history, values);
+        }
+        values.add(entry.value);
+        polled++;
+      } while ((polled < BATCH_SIZE) && ((entry = queue.poll()) != null));
+      // Store the samples of each variable with one lock acquisition
+      for (Map.Entry<ValueHistory, List<DataValue>> e : batch.entrySet()) {
+        try {
+          e.getKey().record(e.getValue());
+          storedSamples.addAndGet(e.getValue().size());
+        } catch (RuntimeException ex) {
+          logger.error("Storing the history of {} failed", e.getKey().getVariable().getNodeId(), ex);
+        }
+      }
+      batch.clear();
+    }
+  }
+}
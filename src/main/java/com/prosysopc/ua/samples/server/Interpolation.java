@@ -0,0 +1,61 @@
+package com.prosysopc.ua.samples.server;
+
+/**
+ * Batched linear interpolation of history samples.
+ * <p>
+ * The requested times are located against the samples in a single merge pass, after which the
+ * bounding samples are gathered into primitive arrays and the interpolation itself runs as a
+ * straight loop over them. The loop has no branches or calls, so the JIT compiler can vectorize it
+ * with the SIMD instructions of the CPU.
+ */
+final class Interpolation {
+
+  /**
+   * Interpolate the samples linearly at the requested times.
+   *
+   * @param times the times of the samples, sorted
+   * @param values the values of the samples, NaN for samples that cannot be interpolated (e.g. bad
+   *        ones)
+   * @param n the number of samples
+   * @param reqTimes the requested times, sorted
+   * @param m the number of requested times
+   * @param index filled with the index of the last sample at or before each requested time, -1 if
+   *        there is none
+   * @param out filled with the interpolated values, NaN if the requested time is not between two
+   *        samples that can be interpolated
+   */
+  static void interpolate(long[] times, double[] values, int n, long[] reqTimes, int m, int[] index, double[] out) {
+    // Merge the requested times against the samples
+    int j = 0;
+    for (int k = 0; k < m; k++) {
+      while ((j < n) && (times[j] <= reqTimes[k])) {
+        j++;
+      }
+      index[k] = j - 1;
+    }
+    // Gather the bounding samples
+    double[] v0 = new double[m];
+    double[] v1 = new double[m];
+    double[] dt = new double[m];
+    double[] span = new double[m];
+    for (int k = 0; k < m; k++) {
+      int i = index[k];
+      if ((i < 0) || (i + 1 >= n)) {
+        v0[k] = Double.NaN;
+        v1[k] = Double.NaN;
+        span[k] = 1;
+      } else {
+        v0[k] = values[i];
+        v1[k] = values[i + 1];
+        dt[k] = reqTimes[k] - times[i];
+        span[k] = times[i + 1] - times[i];
+      }
+    }
+    // The kernel; a NaN bound propagates to the result
+    for (int k = 0; k < m; k++) {
+      out[k] = v0[k] + (v1[k] - v0[k]) * (dt[k] / span[k]);
+    }
+  }
+
+  private Interpolation() {}
+}
@@ -0,0 +1,177 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaMethod;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.server.CallableListener;
+import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * A single CallableListener that dispatches method calls through a NodeId to handler map.
+ * <p>
+ * Unlike one listener per method, the cost of a call does not grow with the number of registered
+ * methods. Long operations can be registered as asynchronous: the call returns as soon as the
+ * inputs are validated and the operation continues in the background.
+ */
+public class MethodDispatcher implements CallableListener {
+
+  /**
+   * Handles the calls of one method.
+   */
+  @FunctionalInterface
+  public interface MethodHandler {
+    /**
+     * @param serviceContext the context of the call
+     * @param inputArguments the input arguments of the call
+     * @param inputArgumentResults the results for each input argument to fill in
+     * @param inputArgumentDiagnosticInfos the diagnostics for each input argument to fill in
+     * @param outputs the output arguments to fill in; the array is already allocated
+     * @throws StatusException if the call fails
+     */
+    void call(ServiceContext serviceContext, Variant[] inputArguments, StatusCode[] inputArgumentResults,
+        DiagnosticInfo[] inputArgumentDiagnosticInfos, Variant[] outputs) throws StatusException;
+  }
+
+  /**
+   * An operation that runs in the background after the call has returned.
+   */
+  @FunctionalInterface
+  public interface AsyncOperation {
+    /**
+     * Validates the inputs synchronously and returns the work to run in the background.
+     *
+     * @return the background work
+     * @throws StatusException if the inputs are invalid; the call fails and nothing is started
+     */
+    Runnable prepare(Variant[] inputArguments, StatusCode[] inputArgumentResults,
+        DiagnosticInfo[] inputArgumentDiagnosticInfos) throws StatusException;
+  }
+
+  private static Logger logger = LoggerFactory.getLogger(MethodDispatcher.class);
+
+  /**
+   * Create a StatusException for an invalid input and record it in the result arrays.
+   *
+   * @param index index of the failing input
+   * @param message error message
+   * @param inputArgumentResults the results array to fill in
+   * @param inputArgumentDiagnosticInfos the diagnostics array to fill in
+   * @return StatusException that can be thrown to break further method handling
+   */
+  public static StatusException inputError(final int index, final String message, StatusCode[] inputArgumentResults,
+      DiagnosticInfo[] inputArgumentDiagnosticInfos) {
+    logger.info("inputError: #{} message={}", index, message);
+    inputArgumentResults[index] = StatusCode.valueOf(StatusCodes.Bad_InvalidArgument);
+    final DiagnosticInfo di = new DiagnosticInfo();
+    di.setAdditionalInfo(message);
+    inputArgumentDiagnosticInfos[index] = di;
+    return new StatusException(StatusCodes.Bad_InvalidArgument);
+  }
+
+  private final ExecutorService asyncExecutor;
+  private final Map<NodeId, MethodHandler> handlers = new ConcurrentHashMap<NodeId, MethodHandler>();
+
+  /**
+   * @param name the name prefix of the background threads for the asynchronous operations
+   */
+  public MethodDispatcher(String name) {
+    // Each asynchronous method runs at most once at a time, so the pool is bounded by the number
+    // of those methods, and a long operation never delays the operations of the other methods
+    final AtomicInteger threads = new AtomicInteger();
+    asyncExecutor = Executors.newCachedThreadPool(r -> {
+      Thread t = new Thread(r, name + "-" + threads.incrementAndGet());
+      t.setDaemon(true);
+      return t;
+    });
+  }
+
+  @Override
+  public boolean onCall(ServiceContext serviceContext, NodeId objectId, UaNode object, NodeId methodId, UaMethod method,
+      Variant[] inputArguments, StatusCode[] inputArgumentResults, DiagnosticInfo[] inputArgumentDiagnosticInfos,
+      Variant[] outputs) throws StatusException {
+    MethodHandler handler = handlers.get(methodId);
+    if (handler == null) {
+      // Not ours, let the other listeners handle it
+      return false;
+    }
+    handler.call(serviceContext, inputArguments, inputArgumentResults, inputArgumentDiagnosticInfos, outputs);
+    return true;
+  }
+
+  /**
+   * Registers a handler that is executed in the calling thread.
+   *
+   * @param methodId the NodeId of the method node
+   * @param handler the handler for the calls
+   */
+  public void register(NodeId methodId, MethodHandler handler) {
+    if (handlers.putIfAbsent(methodId, handler) != null) {
+      throw new IllegalArgumentException("A handler is already registered for " + methodId);
+    }
+  }
+
+  /**
+   * Registers a method without arguments that is executed in the calling thread.
+   *
+   * @param methodId the NodeId of the method node
+   * @param operation the operation to run
+   */
+  public void register(NodeId methodId, Runnable operation) {
+    register(methodId, (ctx, in, inRes, diag, out) -> operation.run());
+  }
+
+  /**
+   * Registers a long running operation. The call returns once the inputs are validated, and the
+   * operation is executed in the background. A new call is rejected with Bad_InvalidState until
+   * the previous operation of the same method has finished.
+   *
+   * @param methodId the NodeId of the method node
+   * @param operation the operation to run
+   */
+  public void registerAsync(NodeId methodId, AsyncOperation operation) {
+    final AtomicBoolean busy = new AtomicBoolean();
+    register(methodId, (ctx, in, inRes, diag, out) -> {
+      Runnable work = operation.prepare(in, inRes, diag);
+      if (!busy.compareAndSet(false, true)) {
+        throw new StatusException(StatusCodes.Bad_InvalidState);
+      }
+      try {
+        asyncExecutor.execute(() -> {
+          try {
+            work.run();
+          } catch (RuntimeException e) {
+            logger.error("Asynchronous method {} failed", methodId, e);
+          } finally {
+            busy.set(false);
+          }
+        });
+      } catch (RejectedExecutionException e) {
+        busy.set(false);
+        throw new StatusException(StatusCodes.Bad_Shutdown);
+      }
+    });
+  }
+
+  /**
+   * Stops the background threads. Running operations are completed, new ones are rejected.
+   */
+  public void shutdown() {
+    asyncExecutor.shutdown();
+  }
+}
@@ -0,0 +1,92 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.prosysopc.ua.server.MonitoredItem;
+
+/**
+ * The monitored items of the nodes of a node manager, which does not use UaNode objects.
+ * <p>
+ * The items of each node are kept in a concurrent map, so adding or removing an item does not copy
+ * the other items of the node, and a burst of subscriptions to the same node (e.g. when clients
+ * reconnect) does not degrade to quadratic time. The entry of a node is created and removed
+ * atomically with its first and last item, so concurrent registrations are never lost. Iterating
+ * the items of a node does not block the registrations.
+ *
+ * @param <K> the key of the nodes, e.g. the slot of a data item
+ * @param <V> the state kept for each monitored item
+ */
+class MonitoredItemRegistry<K, V> {
+  private final Map<K, Map<MonitoredItem, V>> nodes = new ConcurrentHashMap<K, Map<MonitoredItem, V>>();
+
+  /**
+   * Register a monitored item of a node.
+   *
+   * @param key the key of the node
+   * @param item the monitored item
+   * @param value the state of the item
+   * @return the number of monitored items of the node, including the new one
+   */
+  int add(K key, MonitoredItem item, V value) {
+    int[] count = new int[1];
+    nodes.compute(key, (k, items) -> {
+      if (items == null) {
+        items = new ConcurrentHashMap<MonitoredItem, V>();
+      }
+      items.put(item, value);
+      count[0] = items.size();
+      return items;
+    });
+    return count[0];
+  }
+
+  /**
+   * @return whether the node has monitored items
+   */
+  boolean contains(K key) {
+    return nodes.containsKey(key);
+  }
+
+  /**
+   * @return the states of the monitored items of the node, a live view; empty if the node is not
+   *         monitored
+   */
+  Collection<V> get(K key) {
+    Map<MonitoredItem, V> items = nodes.get(key);
+    return items == null ? Collections.<V>emptyList() : items.values();
+  }
+
+  /**
+   * Unregister a monitored item of a node.
+   *
+   * @param key the key of the node
+   * @param item the monitored item
+   * @return the state of the removed item, or null if it was not registered for the node
+   */
+  V remove(K key, MonitoredItem item) {
+    Object[] removed = new Object[1];
+    nodes.computeIfPresent(key, (k, items) -> {
+      removed[0] = items.remove(item);
+      return items.isEmpty() ? null : items;
+    });
+    @SuppressWarnings("unchecked")
+    V value = (V) removed[0];
+    return value;
+  }
+
+  /**
+   * @return the number of monitored nodes
+   */
+  int size() {
+    return nodes.size();
+  }
+}
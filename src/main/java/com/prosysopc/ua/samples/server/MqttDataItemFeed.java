@@ -0,0 +1,291 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.paho.client.mqttv3.IMqttDeliveryToken;
+import org.eclipse.paho.client.mqttv3.MqttCallbackExtended;
+import org.eclipse.paho.client.mqttv3.MqttClient;
+import org.eclipse.paho.client.mqttv3.MqttConnectOptions;
+import org.eclipse.paho.client.mqttv3.MqttException;
+import org.eclipse.paho.client.mqttv3.MqttMessage;
+import org.eclipse.paho.client.mqttv3.persist.MemoryPersistence;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+
+/**
+ * Feeds the machine data published on MQTT into the data items of a {@link MyBigNodeManager}.
+ * <p>
+ * Each message is a JSON object of one machine, as published on the topic cnc_machine/data, or a
+ * JSON array of such objects for a whole fleet. Every numeric field of a machine is mapped to a data
+ * item on first sight, and all values of a message are written with one
+ * {@link MyBigNodeManager#updateValues} call and the timestamp of the message. The Description of a
+ * mapped data item names its machine field. The same payloads can be fed from another source, e.g.
+ * a Kafka consumer of cnc_data, with {@link #accept(String)}.
+ * <p>
+ * The mapping is saved into a slot file and loaded again on start, so a machine field keeps its
+ * data item, and the NodeId that clients use for it, across restarts, independent of the order the
+ * fields arrive in.
+ * <p>
+ * The client keeps a persistent session and reconnects automatically, so the messages published
+ * while the connection is down are delivered after the reconnect. The broker knows the session by
+ * the client ID, so each server instance needs its own.
+ */
+public class MqttDataItemFeed implements AutoCloseable {
+  /**
+   * The default topic of the machine data.
+   */
+  public static final String TOPIC = "cnc_machine/data";
+
+  private static final Logger logger = LoggerFactory.getLogger(MqttDataItemFeed.class);
+
+  private MqttClient client;
+  private volatile boolean full;
+  private int nextSlot;
+  private final MyBigNodeManager nodeManager;
+  private final File slotFile;
+  private final Map<String, Integer> slots = new ConcurrentHashMap<String, Integer>();
+
+  /**
+   * Create a feed that maps the machine fields in the order they arrive, without saving the
+   * mapping.
+   *
+   * @param nodeManager the node manager whose data items receive the values
+   */
+  public MqttDataItemFeed(MyBigNodeManager nodeManager) {
+    this(nodeManager, null);
+  }
+
+  /**
+   * Create a feed that keeps the mapping of the machine fields in a slot file. The mapping in an
+   * existing file is loaded; the new mappings are saved into it.
+   *
+   * @param nodeManager the node manager whose data items receive the values
+   * @param slotFile the file of the mapping, or null to not save it
+   */
+  public MqttDataItemFeed(MyBigNodeManager nodeManager, File slotFile) {
+    this.nodeManager = nodeManager;
+    this.slotFile = slotFile;
+    if ((slotFile != null) && slotFile.exists()) {
+      loadSlots();
+    }
+  }
+
+  /**
+   * Write the values of a message into the data items.
+   *
+   * @param payload a JSON object of one machine or a JSON array of them
+   * @return the number of data items whose value changed
+   * @throws JSONException if the payload is not valid JSON
+   */
+  public int accept(String payload) {
+    JSONArray machines;
+    if (payload.trim().startsWith("[")) {
+      machines = new JSONArray(payload);
+    } else {
+      machines = new JSONArray().put(new JSONObject(payload));
+    }
+    int capacity = 0;
+    for (int i = 0; i < machines.length(); i++) {
+      capacity += machines.getJSONObject(i).length();
+    }
+    int[] itemSlots = new int[capacity];
+    double[] values = new double[capacity];
+    int count = 0;
+    long timestamp = 0;
+    for (int i = 0; i < machines.length(); i++) {
+      JSONObject machine = machines.getJSONObject(i);
+      String name = machine.optString("machine", "unknown");
+      timestamp = Math.max(timestamp, machine.optLong("timestamp"));
+      for (String field : machine.keySet()) {
+        Object value = machine.get(field);
+        if (!(value instanceof Number) || field.equals("timestamp")) {
+          continue;
+        }
+        int slot = getSlot(name + "/" + field);
+        if (slot >= 0) {
+          itemSlots[count] = slot;
+          values[count] = ((Number) value).doubleValue();
+          count++;
+        }
+      }
+    }
+    DateTime time = timestamp == 0 ? DateTime.currentTime() : DateTime.fromMillis(timestamp);
+    return nodeManager.updateValues(itemSlots, values, count, StatusCode.GOOD, time);
+  }
+
+  @Override
+  public void close() {
+    if (client != null) {
+      try {
+        if (client.isConnected()) {
+          client.disconnect();
+        }
+        client.close();
+      } catch (MqttException e) {
+        logger.warn("Closing the MQTT feed failed", e);
+      }
+      client = null;
+    }
+  }
+
+  /**
+   * @return the data item of each machine field, by "machine/field"
+   */
+  public Map<String, Integer> getSlots() {
+    return slots;
+  }
+
+  /**
+   * Connect to the broker and start feeding the messages of the topic. After the first connection
+   * the client reconnects by itself.
+   *
+   * @param brokerUrl the URL of the broker, e.g. tcp://mqtt_broker:1883
+   * @param topic the topic of the machine data
+   * @param clientId the client ID of the persistent session, unique for each server instance
+   * @throws MqttException if the first connection fails; the feed is closed then
+   */
+  public void start(String brokerUrl, String topic, String clientId) throws MqttException {
+    client = new MqttClient(brokerUrl, clientId, new MemoryPersistence());
+    client.setCallback(new MqttCallbackExtended() {
+
+      @Override
+      public void connectComplete(boolean reconnect, String serverURI) {
+        if (reconnect) {
+          logger.info("MQTT feed reconnected to {}", serverURI);
+        }
+      }
+
+      @Override
+      public void connectionLost(Throwable cause) {
+        logger.warn("MQTT feed lost the connection, reconnecting: {}", cause.getMessage());
+      }
+
+      @Override
+      public void deliveryComplete(IMqttDeliveryToken token) {
+        // Nothing is published
+      }
+
+      @Override
+      public void messageArrived(String t, MqttMessage message) {
+        try {
+          accept(new String(message.getPayload(), StandardCharsets.UTF_8));
+        } catch (RuntimeException e) {
+          logger.warn("Invalid message on {}: {}", t, e.getMessage());
+        }
+      }
+    });
+    MqttConnectOptions options = new MqttConnectOptions();
+    options.setAutomaticReconnect(true);
+    // The broker keeps the subscription and queues the QoS 1 messages while the server is away
+    options.setCleanSession(false);
+    try {
+      client.connect(options);
+      client.subscribe(topic, 1);
+    } catch (MqttException e) {
+      close();
+      throw e;
+    }
+    logger.info("Feeding {} from {} into {} data items as {}", topic, brokerUrl, nodeManager.getDataItemCount(),
+        clientId);
+  }
+
+  private int getSlot(String key) {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      return slot;
+    }
+    return full ? -1 : map(key);
+  }
+
+  private void loadSlots() {
+    Properties properties = new Properties();
+    try (Reader in = Files.newBufferedReader(slotFile.toPath(), StandardCharsets.UTF_8)) {
+      properties.load(in);
+    } catch (IOException e) {
+      logger.error("Reading the MQTT slot file {} failed, mapping the fields again", slotFile, e);
+      return;
+    }
+    for (String key : properties.stringPropertyNames()) {
+      int slot;
+      try {
+        slot = Integer.parseInt(properties.getProperty(key).trim());
+      } catch (NumberFormatException e) {
+        slot = -1;
+      }
+      if ((slot < 0) || (slot >= nodeManager.getDataItemCount())) {
+        logger.warn("Ignoring the mapping of {} to slot {} in {}", key, properties.getProperty(key), slotFile);
+        continue;
+      }
+      slots.put(key, slot);
+      nodeManager.setDataItemDescription(slot, key);
+      nextSlot = Math.max(nextSlot, slot + 1);
+    }
+    full = nextSlot >= nodeManager.getDataItemCount();
+    logger.info("Loaded the mapping of {} machine fields from {}", slots.size(), slotFile);
+  }
+
+  /**
+   * Map a new machine field to the next free data item. New fields are rare, so they are mapped
+   * one at a time and the slot file is written before the mapping is used.
+   */
+  private synchronized int map(String key) {
+    Integer slot = slots.get(key);
+    if (slot != null) {
+      return slot;
+    }
+    if (nextSlot >= nodeManager.getDataItemCount()) {
+      if (!full) {
+        full = true;
+        logger.warn("No data item left for {}, increase the number of data items", key);
+      }
+      return -1;
+    }
+    int next = nextSlot++;
+    logger.info("Mapped {} to DataItem slot {}", key, next);
+    nodeManager.setDataItemDescription(next, key);
+    slots.put(key, next);
+    if (slotFile != null) {
+      saveSlots();
+    }
+    return next;
+  }
+
+  private void saveSlots() {
+    Properties properties = new Properties();
+    for (Map.Entry<String, Integer> e : slots.entrySet()) {
+      properties.setProperty(e.getKey(), e.getValue().toString());
+    }
+    // Replace the file at once, so a crash never leaves a partial mapping
+    File temp = new File(slotFile.getPath() + ".tmp");
+    try {
+      try (Writer out = Files.newBufferedWriter(temp.toPath(), StandardCharsets.UTF_8)) {
+        properties.store(out, "DataItem slots of the MQTT machine fields");
+      }
+      Files.move(temp.toPath(), slotFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      logger.error("Writing the MQTT slot file {} failed", slotFile, e);
+    }
+  }
+}
@@ -6,12 +6,10 @@
  */
 package com.prosysopc.ua.samples.server;
 
-import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
-import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RecursiveAction;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -51,81 +49,17 @@ import com.prosysopc.ua.stack.utils.NumericRange;
 /**
  * A sample implementation of a NodeManager which does not use UaNode objects, but connects to an
  * underlying system for the data.
+ * <p>
+ * The data items are identified either by their names (e.g. "DataItem_0042") or, with numeric
+ * NodeIds, by their slot numbers in the data item store. With numeric NodeIds resolving a NodeId is
+ * a range check, and the names of the items are only generated when a client asks for them.
+ * <p>
+ * When there are more than {@link #ITEMS_PER_FOLDER} data items, they are organized into
+ * sub-folders of that many items each. The references of a folder are generated when it is first
+ * browsed and then reused, as they never change.
  */
 public class MyBigNodeManager extends NodeManager {
 
-  /**
-   * Helper for holding data. This simulates cases where the real-world-data would have been stored
-   * elsewhere e.g. in a database.
-   */
-  public class DataItem {
-    private NodeId dataType = Identifiers.Double;
-    private final String name;
-    private StatusCode status = StatusCode.valueOf(StatusCodes.Bad_WaitingForInitialData);
-    private DateTime timestamp;
-    private double value;
-
-    public DataItem(String name) {
-      super();
-      this.name = name;
-    }
-
-    public NodeId getDataType() {
-      return dataType;
-    }
-
-    /**
-     * Sets the data of this item to the given DataValue.
-     */
-    public void getDataValue(DataValue dataValue) {
-      dataValue.setValue(new Variant(getValue()));
-      dataValue.setStatusCode(getStatus());
-      dataValue.setServerTimestamp(DateTime.currentTime());
-      dataValue.setSourceTimestamp(timestamp);
-    }
-
-    public String getName() {
-      return name;
-    }
-
-    public StatusCode getStatus() {
-      return status;
-    }
-
-    /**
-     * The timestamp when the value or status changed.
-     */
-    public DateTime getTimestamp() {
-      return timestamp;
-    }
-
-    public double getValue() {
-      return value;
-    }
-
-    public void setDataType(NodeId dataType) {
-      this.dataType = dataType;
-    }
-
-    public void setValue(double value) {
-      setValue(value, StatusCode.GOOD);
-    }
-
-    /**
-     * Sets value and status of this item.
-     */
-    public void setValue(double value, StatusCode status) {
-      if (status == null) {
-        status = StatusCode.BAD;
-      }
-      if ((this.value != value) || !this.status.equals(status)) {
-        this.value = value;
-        this.status = status;
-        this.timestamp = DateTime.currentTime();
-      }
-    }
-  }
-
   /**
    * An IO Manager which provides the values for the attributes of the nodes.
    */
@@ -151,46 +85,27 @@ public class MyBigNodeManager extends NodeManager {
     @Override
     protected void readNonValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
         UnsignedInteger attributeId, DataValue dataValue) throws StatusException {
-      Object value = null;
-      UnsignedInteger status = StatusCodes.Bad_AttributeIdInvalid;
-
-      DataItem dataItem = getDataItem(nodeId);
-      final ExpandedNodeId expandedNodeId = getNamespaceTable().toExpandedNodeId(nodeId);
-      if (attributeId.equals(Attributes.NodeId)) {
-        value = nodeId;
-      } else if (attributeId.equals(Attributes.BrowseName)) {
-        value = getBrowseName(expandedNodeId, node);
-      } else if (attributeId.equals(Attributes.DisplayName)) {
-        value = getDisplayName(expandedNodeId, node, null);
-      } else if (attributeId.equals(Attributes.Description)) {
-        status = StatusCodes.Bad_AttributeIdInvalid;
-      } else if (attributeId.equals(Attributes.NodeClass)) {
-        value = getNodeClass(expandedNodeId, node);
-      } else if (attributeId.equals(Attributes.WriteMask)) {
-        value = UnsignedInteger.ZERO;
-      } else if (dataItem != null) {
-        if (attributeId.equals(Attributes.DataType)) {
-          value = Identifiers.Double;
-        } else if (attributeId.equals(Attributes.ValueRank)) {
-          value = ValueRanks.Scalar;
-        } else if (attributeId.equals(Attributes.ArrayDimensions)) {
-          status = StatusCodes.Bad_AttributeIdInvalid;
-        } else if (attributeId.equals(Attributes.AccessLevel)) {
-          value = AccessLevels.READ_ONLY.asBuiltInType();
-        } else if (attributeId.equals(Attributes.UserAccessLevel)) {
-          value = AccessLevels.READ_ONLY.asBuiltInType();
-        } else if (attributeId.equals(Attributes.Historizing)) {
-          value = false;
+      Variant value = null;
+      int slot = getSlot(nodeId);
+      if (slot >= 0) {
+        value = getItemAttributes(nodeId, slot).get(attributeId);
+        if (value == null) {
+          value = dataItemAttributes.get(attributeId);
+        }
+      } else {
+        AttributeTable attributes = getNodeAttributes(nodeId);
+        if (attributes == null) {
+          dataValue.setStatusCode(StatusCodes.Bad_NodeIdUnknown);
+          dataValue.setServerTimestamp(DateTime.currentTime());
+          return;
         }
-      } else if (attributeId.equals(Attributes.EventNotifier)) {
-        // this is only requested for the folder
-        value = EventNotifierType.of();
+        value = attributes.get(attributeId);
       }
 
       if (value == null) {
-        dataValue.setStatusCode(status);
+        dataValue.setStatusCode(StatusCodes.Bad_AttributeIdInvalid);
       } else {
-        dataValue.setValue(new Variant(value));
+        dataValue.setValue(value);
       }
       dataValue.setServerTimestamp(DateTime.currentTime());
     }
@@ -207,39 +122,41 @@ public class MyBigNodeManager extends NodeManager {
     protected void readValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaValueNode node,
         NumericRange indexRange, TimestampsToReturn timestampsToReturn, DateTime minTimestamp, DataValue dataValue)
         throws StatusException {
-      DataItem dataItem = getDataItem(nodeId);
-      if (dataItem == null) {
+      int slot = getSlot(nodeId);
+      if (slot < 0) {
         throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
       }
-      dataItem.getDataValue(dataValue);
-
-    }
-
-    // If you wish to enable writing, also disable simulation in
-    // MyBigNodeManager.simulate() and check the value of WriteMask returned
-    // (above).
-    // /*
-    // * (non-Javadoc)
-    // *
-    // * @see
-    // *
-    // com.prosysopc.ua.server.IoManager#writeValue(com.prosysopc.ua.server
-    // * .ServiceContext, org.opcfoundation.ua.builtintypes.NodeId,
-    // * com.prosysopc.ua.nodes.UaVariable,
-    // * org.opcfoundation.ua.utils.NumericRange,
-    // * org.opcfoundation.ua.builtintypes.DataValue)
-    // */
-    // @Override
-    // protected boolean writeValue(ServiceContext serviceContext,
-    // NodeId nodeId, UaVariable node, NumericRange indexRange,
-    // DataValue dataValue) throws StatusException {
-    // DataItem dataItem = getDataItem(nodeId);
-    // if (dataItem == null)
-    // throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
-    // dataItem.setValue(dataValue.getValue().doubleValue(),
-    // dataValue.getStatusCode());
-    // return true;
-    // }
+      dataItems.getDataValue(slot, dataValue);
+
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see com.prosysopc.ua.server.IoManager#writeValue(com.prosysopc.ua.server .ServiceContext,
+     * org.opcfoundation.ua.builtintypes.NodeId, com.prosysopc.ua.nodes.UaVariable,
+     * org.opcfoundation.ua.utils.NumericRange, org.opcfoundation.ua.builtintypes.DataValue)
+     */
+    @Override
+    protected boolean writeValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId,
+        UaValueNode node, NumericRange indexRange, DataValue dataValue) throws StatusException {
+      // Writing is only enabled when the data items are not simulated
+      if (!writable) {
+        throw new StatusException(StatusCodes.Bad_NotWritable);
+      }
+      int slot = getSlot(nodeId);
+      if (slot < 0) {
+        throw new StatusException(StatusCodes.Bad_NodeIdInvalid);
+      }
+      Object value = dataValue.getValue() == null ? null : dataValue.getValue().getValue();
+      if (!(value instanceof Number)) {
+        throw new StatusException(StatusCodes.Bad_TypeMismatch);
+      }
+      DateTime timestamp = dataValue.getSourceTimestamp();
+      dataItems.setValue(slot, ((Number) value).doubleValue(), dataValue.getStatusCode(),
+          (timestamp == null ? DateTime.currentTime() : timestamp).getValue());
+      return true;
+    }
   }
 
   /**
@@ -328,22 +245,98 @@ public class MyBigNodeManager extends NodeManager {
 
   }
 
+  /**
+   * Simulates the data items in a range of slots, splitting it in halves until it fits in one chunk.
+   * The ranges start at multiples of 64, so the chunks do not share cache lines.
+   */
+  private class SimulationChunk extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final long now;
+    private final int to;
+    private final double value;
+
+    SimulationChunk(int from, int to, double value, long now) {
+      this.from = from;
+      this.to = to;
+      this.value = value;
+      this.now = now;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= SIMULATION_CHUNK) {
+        simulate(from, to, value, now);
+      } else {
+        int mid = (from + ((to - from) >>> 1)) & ~63;
+        invokeAll(new SimulationChunk(from, mid, value, now), new SimulationChunk(mid, to, value, now));
+      }
+    }
+  }
+
+  /**
+   * The maximum number of data items in a folder.
+   */
+  public static final int ITEMS_PER_FOLDER = 1000;
+
   private static ExpandedNodeId dataItemType;
 
+  private static final String FOLDER_PREFIX = "DataItems_";
+
+  private static final String ITEM_NAME_PREFIX = "DataItem_";
+
+  /**
+   * The number of data items that one worker simulates at a time.
+   */
+  private static final int SIMULATION_CHUNK = 16 * 1024;
+
   private static final Logger logger = LoggerFactory.getLogger(MyBigNodeManager.class);
 
+  /**
+   * The attributes that all data items share. Replaced when the access level changes.
+   */
+  private volatile AttributeTable dataItemAttributes;
+
   private final ExpandedNodeId dataItemFolder;
 
-  private final Map<String, DataItem> dataItems;
+  /**
+   * The descriptions of the data items that have one, by slot.
+   */
+  private final Map<Integer, String> descriptions = new ConcurrentHashMap<Integer, String>();
+
+  private final DataItemStore dataItems;
 
-  private final Map<String, Collection<MonitoredDataItem>> monitoredItems =
-      new ConcurrentHashMap<String, Collection<MonitoredDataItem>>();
+  /**
+   * The attributes of the main folder, followed by those of the sub-folders, created on first read.
+   */
+  private final AttributeTable[] folderAttributes;
+
+  /**
+   * The references of the main folder, created on first browse. The references of the sub-folders
+   * are created on each browse, so they do not stay in memory for every folder that was browsed
+   * once.
+   */
+  private volatile UaReference[] mainFolderReferences;
+
+  /**
+   * The attributes of each data item that are not shared with the other items, created on first
+   * read, so browsing a data item repeatedly does not allocate.
+   */
+  private final AttributeTable[] itemAttributes;
+
+  private final DataItemSampler sampler;
 
   @SuppressWarnings("unused")
   private final MyBigIoManager myBigIoManager;
 
+  private final boolean numericNodeIds;
+
   private double simulationtime = 0;
 
+  private volatile AttributeTable typeAttributes;
+
+  private volatile boolean writable;
+
   /**
    * Default constructor.
    *
@@ -352,7 +345,21 @@ public class MyBigNodeManager extends NodeManager {
    * @param nofItems number of data items to create for the manager
    */
   public MyBigNodeManager(UaServer server, String namespaceUri, int nofItems) {
+    this(server, namespaceUri, nofItems, false);
+  }
+
+  /**
+   * Constructor, which can use numeric NodeIds for the data items.
+   *
+   * @param server the UaServer, which owns the NodeManager
+   * @param namespaceUri the namespace which this node manager handles
+   * @param nofItems number of data items to create for the manager
+   * @param numericNodeIds whether the NodeIds of the data items are their slot numbers instead of
+   *        their names
+   */
+  public MyBigNodeManager(UaServer server, String namespaceUri, int nofItems, boolean numericNodeIds) {
     super(server, namespaceUri);
+    this.numericNodeIds = numericNodeIds;
     dataItemType = new ExpandedNodeId(null, getNamespaceIndex(), "DataItemType");
     dataItemFolder = new ExpandedNodeId(null, getNamespaceIndex(), "MyBigNodeManager");
     try {
@@ -361,10 +368,18 @@ public class MyBigNodeManager extends NodeManager {
     } catch (ServiceResultException e) {
       throw new RuntimeException(e);
     }
-    dataItems = new TreeMap<String, DataItem>();
-    for (int i = 0; i < nofItems; i++) {
-      addDataItem(String.format("DataItem_%04d", i));
+    if (numericNodeIds) {
+      dataItems = new DataItemStore(nofItems, slot -> String.format(ITEM_NAME_PREFIX + "%04d", slot));
+    } else {
+      dataItems = new DataItemStore(nofItems);
+      for (int i = 0; i < nofItems; i++) {
+        addDataItem(String.format(ITEM_NAME_PREFIX + "%04d", i));
+      }
     }
+    sampler = new DataItemSampler(dataItems);
+    folderAttributes = new AttributeTable[getFolderCount() + 1];
+    itemAttributes = new AttributeTable[dataItems.size()];
+    setWritable(false);
 
     myBigIoManager = new MyBigIoManager(this);
   }
@@ -383,42 +398,224 @@ public class MyBigNodeManager extends NodeManager {
     return null;
   }
 
+  /**
+   * @return the number of data items
+   */
+  public int getDataItemCount() {
+    return dataItems.size();
+  }
+
+  /**
+   * Finds the slot of a data item, for use with {@link #updateValues}.
+   *
+   * @param name the name of the data item, e.g. "DataItem_0042"
+   * @return the slot of the item, or -1 if there is no such item
+   */
+  public int getDataItemSlot(String name) {
+    if (numericNodeIds) {
+      // Numbered items are named by their slot
+      if ((name == null) || !name.startsWith(ITEM_NAME_PREFIX)) {
+        return -1;
+      }
+      try {
+        int slot = Integer.parseInt(name.substring(ITEM_NAME_PREFIX.length()));
+        return (slot >= 0) && (slot < dataItems.size()) && dataItems.getName(slot).equals(name) ? slot : -1;
+      } catch (NumberFormatException e) {
+        return -1;
+      }
+    }
+    return dataItems.find(name);
+  }
+
   @Override
   public NodeId getVariableDataType(NodeId nodeId, UaValueNode variable) throws StatusException {
-    DataItem item = getDataItem(nodeId);
-    return item.getDataType();
+    int slot = getSlot(nodeId);
+    if (slot < 0) {
+      throw new StatusException(StatusCodes.Bad_NodeIdUnknown);
+    }
+    return dataItems.getDataType(slot);
+  }
+
+  /**
+   * Sets the Description of a data item, e.g. the source of its values.
+   *
+   * @param slot the slot of the data item, see {@link #getDataItemSlot(String)}
+   * @param description the description
+   */
+  public void setDataItemDescription(int slot, String description) {
+    descriptions.put(slot, description);
+  }
+
+  /**
+   * @return whether the clients can write the values of the data items
+   */
+  public boolean isWritable() {
+    return writable;
+  }
+
+  /**
+   * Defines whether the clients can write the values of the data items. Enable it only when the
+   * values are not simulated, since the simulation overwrites them.
+   */
+  public void setWritable(boolean writable) {
+    dataItemAttributes = AttributeTable.EMPTY.with(Attributes.ValueRank, ValueRanks.Scalar)
+        .with(Attributes.AccessLevel, (writable ? AccessLevels.READ_WRITE : AccessLevels.READ_ONLY).asBuiltInType())
+        .with(Attributes.UserAccessLevel, (writable ? AccessLevels.READ_WRITE : AccessLevels.READ_ONLY).asBuiltInType())
+        .with(Attributes.Historizing, false);
+    this.writable = writable;
+  }
+
+  /**
+   * Updates the values of many data items at once, e.g. from an external feed. All values get the
+   * same status and timestamp, and the monitored items are notified by the sampler, so the cost of
+   * the call does not depend on the number of subscribers.
+   *
+   * @param slots the slots of the data items to update, see {@link #getDataItemSlot(String)}
+   * @param values the new values, in the same order as the slots
+   * @param count the number of values to update
+   * @param status the status of the values, null for Bad
+   * @param timestamp the source timestamp of the values
+   * @return the number of data items whose value or status changed
+   * @throws IllegalArgumentException if a slot is invalid; no values are updated then
+   */
+  public int updateValues(int[] slots, double[] values, int count, StatusCode status, DateTime timestamp) {
+    return dataItems.setValues(slots, values, count, status, timestamp.getValue());
   }
 
   @Override
   public boolean hasNode(NodeId nodeId) {
     return nodeId.getValue().equals("MyBigNodeManager") || getNamespaceTable().nodeIdEquals(nodeId, dataItemType)
-        || (getDataItem(nodeId) != null);
+        || (getSlot(nodeId) >= 0) || (getFolderIndex(nodeId.getValue()) >= 0);
   }
 
   private void addDataItem(String name) {
-    dataItems.put(name, new DataItem(name));
+    dataItems.add(name);
+  }
+
+  /**
+   * Creates the attributes that all nodes have.
+   */
+  private AttributeTable createAttributes(NodeId nodeId) {
+    ExpandedNodeId expandedNodeId = getNamespaceTable().toExpandedNodeId(nodeId);
+    return AttributeTable.EMPTY.with(Attributes.NodeId, nodeId)
+        .with(Attributes.BrowseName, getBrowseName(expandedNodeId, null))
+        .with(Attributes.DisplayName, getDisplayName(expandedNodeId, null, null))
+        .with(Attributes.NodeClass, getNodeClass(nodeId, null)).with(Attributes.WriteMask, UnsignedInteger.ZERO);
+  }
+
+  /**
+   * @return the number of sub-folders of the data items, 0 if they are all in the main folder
+   */
+  private int getFolderCount() {
+    int size = dataItems.size();
+    return size > ITEMS_PER_FOLDER ? (size + ITEMS_PER_FOLDER - 1) / ITEMS_PER_FOLDER : 0;
+  }
+
+  private ExpandedNodeId getFolderId(int folder) {
+    return new ExpandedNodeId(null, getNamespaceIndex(), FOLDER_PREFIX + folder);
+  }
+
+  /**
+   * Finds the sub-folder corresponding to the Value part of a NodeId.
+   *
+   * @return the index of the sub-folder, or -1 if there is no such sub-folder
+   */
+  private int getFolderIndex(Object value) {
+    if (!(value instanceof String) || !((String) value).startsWith(FOLDER_PREFIX)) {
+      return -1;
+    }
+    try {
+      int folder = Integer.parseInt(((String) value).substring(FOLDER_PREFIX.length()));
+      return (folder >= 0) && (folder < getFolderCount()) ? folder : -1;
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  /**
+   * @return the NodeId of the data item in the slot
+   */
+  private ExpandedNodeId getItemId(int slot) {
+    Object value = numericNodeIds ? UnsignedInteger.valueOf(slot) : dataItems.getName(slot);
+    return new ExpandedNodeId(null, getNamespaceIndex(), value);
   }
 
   /**
-   * Finds the DataItem corresponding to the NodeId.
+   * Finds the data item corresponding to the NodeId.
    *
-   * @param nodeId ID of the node - the Value part corresponds to the name of the item
-   * @return the DataItem object
+   * @param nodeId ID of the node - the Value part corresponds to the name or the slot of the item
+   * @return the slot of the item in the store, or -1 if there is no such item
    */
-  private DataItem getDataItem(ExpandedNodeId nodeId) {
-    String name = (String) nodeId.getValue();
-    return dataItems.get(name);
+  private int getSlot(ExpandedNodeId nodeId) {
+    return getSlot(nodeId.getValue());
   }
 
   /**
-   * Finds the DataItem corresponding to the NodeId.
+   * Finds the data item corresponding to the NodeId.
    *
-   * @param nodeId ID of the node - the Value part corresponds to the name of the item
-   * @return the DataItem object
+   * @param nodeId ID of the node - the Value part corresponds to the name or the slot of the item
+   * @return the slot of the item in the store, or -1 if there is no such item
    */
-  private DataItem getDataItem(NodeId nodeId) {
-    String name = (String) nodeId.getValue();
-    return dataItems.get(name);
+  private int getSlot(NodeId nodeId) {
+    return getSlot(nodeId.getValue());
+  }
+
+  private int getSlot(Object value) {
+    if (!numericNodeIds) {
+      return dataItems.find(value);
+    }
+    if (value instanceof UnsignedInteger) {
+      long slot = ((UnsignedInteger) value).longValue();
+      return slot < dataItems.size() ? (int) slot : -1;
+    }
+    return -1;
+  }
+
+  /**
+   * @return the attributes of the data item that are not in {@link #dataItemAttributes}
+   */
+  private AttributeTable getItemAttributes(NodeId nodeId, int slot) {
+    // The tables are immutable, so a race only creates the same table twice
+    AttributeTable attributes = itemAttributes[slot];
+    String description = descriptions.get(slot);
+    // A description is only set once, so a table without it is replaced once
+    if ((attributes == null) || ((description != null) && !attributes.has(Attributes.Description))) {
+      attributes = createAttributes(nodeId).with(Attributes.DataType, dataItems.getDataType(slot));
+      if (description != null) {
+        attributes = attributes.with(Attributes.Description, new LocalizedText(description, LocalizedText.NO_LOCALE));
+      }
+      itemAttributes[slot] = attributes;
+    }
+    return attributes;
+  }
+
+  /**
+   * @return the attributes of the folder or the type node, or null if there is no such node
+   */
+  private AttributeTable getNodeAttributes(NodeId nodeId) {
+    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemType)) {
+      AttributeTable attributes = typeAttributes;
+      if (attributes == null) {
+        attributes = createAttributes(nodeId);
+        typeAttributes = attributes;
+      }
+      return attributes;
+    }
+    int folder;
+    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder)) {
+      folder = 0;
+    } else {
+      folder = getFolderIndex(nodeId.getValue()) + 1;
+      if (folder == 0) {
+        return null;
+      }
+    }
+    AttributeTable attributes = folderAttributes[folder];
+    if (attributes == null) {
+      attributes = createAttributes(nodeId).with(Attributes.EventNotifier, EventNotifierType.of());
+      folderAttributes[folder] = attributes;
+    }
+    return attributes;
   }
 
   private String getNodeName(ExpandedNodeId nodeId) {
@@ -429,60 +626,41 @@ public class MyBigNodeManager extends NodeManager {
     if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder)) {
       name = "MyBigNodeManager";
     } else {
-      DataItem dataItem = getDataItem(nodeId);
+      int slot = getSlot(nodeId);
       // Use the namespaceIndex of the NodeManager name space also for the
       // browse names
-      if (dataItem != null) {
-        name = dataItem.getName();
+      if (slot >= 0) {
+        name = dataItems.getName(slot);
+      } else {
+        int folder = getFolderIndex(nodeId.getValue());
+        if (folder >= 0) {
+          int first = folder * ITEMS_PER_FOLDER;
+          int last = Math.min(first + ITEMS_PER_FOLDER, dataItems.size()) - 1;
+          name = dataItems.getName(first) + ".." + dataItems.getName(last);
+        }
       }
     }
     return name;
   }
 
-  /**
-   * Send a data change notification for all monitored data items that are monitoring the dataItem.
-   */
-  private void notifyMonitoredDataItems(DataItem dataItem) {
-    // Get the list of items watching dataItem
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
-    if (c != null) {
-      for (MonitoredDataItem item : c) {
-        DataValue dataValue = new DataValue();
-        dataItem.getDataValue(dataValue);
-        item.notifyDataChange(dataValue);
-      }
-    }
-  }
-
   @Override
   protected void afterCreateMonitoredDataItem(ServiceContext serviceContext, Subscription subscription,
       MonitoredDataItem item) {
-    // Add all items that monitor the same node to the same collection
-    final Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c == null) {
-      c = new CopyOnWriteArrayList<MonitoredDataItem>();
-      monitoredItems.put((String) dataItemName, c);
-    }
-    c.add(item);
-    logger.debug("afterCreateMonitoredDataItem: nodeId={} c.size()={}", item.getNodeId(), c.size());
+    // Sample the data item at the revised sampling interval of the monitored item
+    final int slot = getSlot(item.getNodeId());
+    if (slot < 0) {
+      return;
+    }
+    sampler.add(item, slot);
+    logger.debug("afterCreateMonitoredDataItem: nodeId={} sampledItems={}", item.getNodeId(),
+        sampler.getSampledItems());
   }
 
   @Override
   protected void deleteMonitoredItem(ServiceContext serviceContext, Subscription subscription, MonitoredItem item)
       throws StatusException {
-    // Find the collection in which the monitoredItem is
-    // and remove the item from the collection
-    Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c != null) {
-      logger.debug("deleteMonitoredItem: collection size={}", c.size());
-      c.remove(item);
-      if (c.isEmpty()) {
-        monitoredItems.remove(dataItemName);
-        logger.debug("deleteMonitoredItem: monitoredItems size={}", monitoredItems.size());
-      }
-    }
+    sampler.remove(item);
+    logger.debug("deleteMonitoredItem: sampledItems={}", sampler.getSampledItems());
   }
 
   @Override
@@ -502,7 +680,7 @@ public class MyBigNodeManager extends NodeManager {
     if (getNamespaceTable().nodeIdEquals(nodeId, dataItemType)) {
       return NodeClass.VariableType;
     }
-    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder)) {
+    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder) || (getFolderIndex(nodeId.getValue()) >= 0)) {
       return NodeClass.Object;
     }
     // All data items are variables
@@ -519,39 +697,85 @@ public class MyBigNodeManager extends NodeManager {
       }
       // Define reference from and to our Folder for the DataItems
       if (nodeId.equals(getNamespaceTable().toNodeId(dataItemFolder))) {
-        UaReference[] folderItems = new UaReference[dataItems.size() + 2];
-        // Inverse reference to the ObjectsFolder
-        folderItems[0] =
-            new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), dataItemFolder, Identifiers.Organizes);
-        // Type definition reference
-        folderItems[1] = new MyReference(dataItemFolder,
-            getTypeDefinition(getNamespaceTable().toExpandedNodeId(nodeId), node), Identifiers.HasTypeDefinition);
-        int i = 2;
-        // Reference to all items in the folder
-        for (DataItem d : dataItems.values()) {
-          folderItems[i] = new MyReference(dataItemFolder, new ExpandedNodeId(null, getNamespaceIndex(), d.getName()),
-              Identifiers.HasComponent);
-          i++;
+        // The references never change, so a race only creates the same array twice
+        UaReference[] references = mainFolderReferences;
+        if (references == null) {
+          references = getMainFolderReferences();
+          mainFolderReferences = references;
         }
-        return folderItems;
+        return references;
       }
     } catch (ServiceResultException e) {
       throw new RuntimeException(e);
     }
 
+    // Define references from and to a sub-folder
+    int folder = getFolderIndex(nodeId.getValue());
+    if (folder >= 0) {
+      int first = folder * ITEMS_PER_FOLDER;
+      return getFolderReferences(getFolderId(folder), dataItemFolder, Identifiers.Organizes, first,
+          Math.min(first + ITEMS_PER_FOLDER, dataItems.size()));
+    }
+
     // Define references from our DataItems
-    DataItem dataItem = getDataItem(nodeId);
-    if (dataItem == null) {
+    int slot = getSlot(nodeId);
+    if (slot < 0) {
       return null;
     }
-    final ExpandedNodeId dataItemId = new ExpandedNodeId(null, getNamespaceIndex(), dataItem.getName());
+    final ExpandedNodeId dataItemId = getItemId(slot);
+    final ExpandedNodeId parentId =
+        getFolderCount() == 0 ? dataItemFolder : getFolderId(slot / ITEMS_PER_FOLDER);
     return new UaReference[] {
         // Inverse reference to the folder
-        new MyReference(dataItemFolder, dataItemId, Identifiers.HasComponent),
+        new MyReference(parentId, dataItemId, Identifiers.HasComponent),
         // Type definition
         new MyReference(dataItemId, dataItemType, Identifiers.HasTypeDefinition)};
   }
 
+  /**
+   * Creates the references of the main folder: to the sub-folders, or to the data items if there
+   * are no sub-folders.
+   */
+  private UaReference[] getMainFolderReferences() {
+    final int folderCount = getFolderCount();
+    if (folderCount == 0) {
+      return getFolderReferences(dataItemFolder, new ExpandedNodeId(Identifiers.ObjectsFolder),
+          Identifiers.Organizes, 0, dataItems.size());
+    }
+    UaReference[] folderItems = new UaReference[folderCount + 2];
+    // Inverse reference to the ObjectsFolder
+    folderItems[0] =
+        new MyReference(new ExpandedNodeId(Identifiers.ObjectsFolder), dataItemFolder, Identifiers.Organizes);
+    // Type definition reference
+    folderItems[1] = new MyReference(dataItemFolder, getNamespaceTable().toExpandedNodeId(Identifiers.FolderType),
+        Identifiers.HasTypeDefinition);
+    // Reference to the sub-folders
+    for (int folder = 0; folder < folderCount; folder++) {
+      folderItems[folder + 2] = new MyReference(dataItemFolder, getFolderId(folder), Identifiers.Organizes);
+    }
+    return folderItems;
+  }
+
+  /**
+   * Creates the references of a folder that contains the data items in the slots [from, to).
+   */
+  private UaReference[] getFolderReferences(ExpandedNodeId folderId, ExpandedNodeId parentId, NodeId parentReference,
+      int from, int to) {
+    UaReference[] folderItems = new UaReference[to - from + 2];
+    // Inverse reference to the parent
+    folderItems[0] = new MyReference(parentId, folderId, parentReference);
+    // Type definition reference
+    folderItems[1] = new MyReference(folderId, getNamespaceTable().toExpandedNodeId(Identifiers.FolderType),
+        Identifiers.HasTypeDefinition);
+    int i = 2;
+    // Reference to all items in the folder
+    for (int slot = from; slot < to; slot++) {
+      folderItems[i] = new MyReference(folderId, getItemId(slot), Identifiers.HasComponent);
+      i++;
+    }
+    return folderItems;
+  }
+
   @Override
   protected ExpandedNodeId getTypeDefinition(ExpandedNodeId nodeId, UaNode node) {
     // ExpandedNodeId.equals cannot be trusted, since some IDs are defined
@@ -559,19 +783,26 @@ public class MyBigNodeManager extends NodeManager {
     if (getNamespaceTable().nodeIdEquals(nodeId, dataItemType)) {
       return null;
     }
-    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder)) {
+    if (getNamespaceTable().nodeIdEquals(nodeId, dataItemFolder) || (getFolderIndex(nodeId.getValue()) >= 0)) {
       return getNamespaceTable().toExpandedNodeId(Identifiers.FolderType);
     }
     return dataItemType;
   }
 
+  /**
+   * Simulates one tick of all data items. Large address spaces are updated in parallel chunks in the
+   * ForkJoinPool of the calling thread (the common pool if it is not a worker). The monitored items
+   * are notified by the sampler.
+   */
   void simulate() {
     simulationtime = simulationtime + (Math.PI / 180);
     double value = 100 * Math.sin(simulationtime);
-    for (DataItem d : dataItems.values()) {
-      d.setValue(value);
-      notifyMonitoredDataItems(d);
-    }
+    long now = DateTime.currentTime().getValue();
+    new SimulationChunk(0, dataItems.size(), value, now).invoke();
+  }
+
+  private void simulate(int from, int to, double value, long now) {
+    dataItems.setValues(from, to, value, StatusCode.GOOD, now);
   }
 
 }
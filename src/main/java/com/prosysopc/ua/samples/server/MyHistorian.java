@@ -6,12 +6,18 @@
  */
 package com.prosysopc.ua.samples.server;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +28,7 @@ import com.prosysopc.ua.AggregateCalculator.AggregateCalculatorContinuationPoint
 import com.prosysopc.ua.ServiceException;
 import com.prosysopc.ua.StatusException;
 import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.nodes.UaType;
 import com.prosysopc.ua.server.HistoryContinuationPoint;
 import com.prosysopc.ua.server.HistoryManagerListener;
 import com.prosysopc.ua.server.HistoryResult;
@@ -58,13 +65,29 @@ import com.prosysopc.ua.types.opcua.HistoricalDataConfigurationType;
  * A sample implementation of a data historian.
  * <p>
  * It is implemented as a HistoryManagerListener. It could as well be a HistoryManager, instead.
+ * <p>
+ * By default the history is kept in memory. After {@link #setStorage(File, long)} the numeric and
+ * Boolean variables are historized to segment files on disk, which survive restarts. After
+ * {@link #setCompression(int)} they are kept in memory in compressed form.
  */
 public class MyHistorian implements HistoryManagerListener {
+  /** The time span of one segment file. */
+  private static final long SEGMENT_PARTITION_MILLIS = TimeUnit.HOURS.toMillis(1);
+  /** The maximum number of samples in one segment file (2 MB). */
+  private static final int SEGMENT_RECORDS = 65536;
   private static Logger logger = LoggerFactory.getLogger(MyHistorian.class);
+  private int compressedCapacity;
+  /** The continuation points of the raw and event reads: at most 10 per session, for 5 minutes. */
+  private final HistoryCursorCache cursors = new HistoryCursorCache(10, TimeUnit.MINUTES.toMillis(5));
   private final Map<UaObjectNode, EventHistory> eventHistories = new HashMap<UaObjectNode, EventHistory>();
+  private ScheduledExecutorService maintenance;
+  private long retentionMillis;
+  private File storageDirectory;
+  private HistoryWriteQueue writeQueue;
 
   // The variable histories
-  private final Map<UaVariableNode, ValueHistory> variableHistories = new HashMap<UaVariableNode, ValueHistory>();
+  private final Map<UaVariableNode, ValueHistory> variableHistories =
+      new ConcurrentHashMap<UaVariableNode, ValueHistory>();
   private final AggregateCalculator aggregateCalculator;
 
   public MyHistorian(AggregateCalculator aggregateCalculator) {
@@ -96,7 +119,25 @@ public class MyHistorian implements HistoryManagerListener {
    * @param variable the variable to initialize
    */
   public void addVariableHistory(UaVariableNode variable) {
-    ValueHistory history = new ValueHistory(variable);
+    ValueHistory history = null;
+    if ((storageDirectory != null) && isNumeric(variable)) {
+      String name = variable.getNodeManager().getNamespaceUri() + "/" + variable.getNodeId().getValue();
+      File directory = new File(storageDirectory, name.replaceAll("[^A-Za-z0-9._-]", "_"));
+      try {
+        history = new ValueHistory(variable,
+            new SegmentStore(directory, SEGMENT_PARTITION_MILLIS, SEGMENT_RECORDS, retentionMillis));
+      } catch (IOException e) {
+        logger.error("Cannot open the history of {}, keeping it in memory", variable.getNodeId(), e);
+      }
+    }
+    if ((history == null) && (compressedCapacity > 0) && isNumeric(variable)) {
+      history = new ValueHistory(variable, new CompressedStore(compressedCapacity));
+      history.setCapacity(compressedCapacity);
+    }
+    if (history == null) {
+      history = new ValueHistory(variable);
+    }
+    history.setWriteQueue(writeQueue);
     // History is being collected
     variable.setHistorizing(true);
     // History can be read
@@ -116,6 +157,20 @@ public class MyHistorian implements HistoryManagerListener {
     variableHistories.put(variable, history);
   }
 
+  /**
+   * @return the write-behind queue of the history, or null if the samples are recorded directly
+   */
+  public HistoryWriteQueue getWriteQueue() {
+    return writeQueue;
+  }
+
+  /**
+   * @return the directory of the persistent history, or null if the history is kept in memory
+   */
+  public File getStorageDirectory() {
+    return storageDirectory;
+  }
+
   @Override
   public Object onBeginHistoryRead(ServiceContext serviceContext, HistoryReadDetails details,
       TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
@@ -203,11 +258,11 @@ public class MyHistorian implements HistoryManagerListener {
     EventHistory history = eventHistories.get(node);
     if (history != null) {
       List<HistoryEventFieldList> events = new ArrayList<HistoryEventFieldList>();
-      int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-      Integer newContinuationPoint =
-          history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter, events, firstIndex);
+      HistoryCursor cursor = cursors.resume(serviceContext.getSession(), continuationPoint);
+      HistoryCursor newContinuationPoint =
+          history.readEvents(startTime, endTime, numValuesPerNode.intValue(), filter, events, cursor);
       historyEvent.setEvents(events.toArray(new HistoryEventFieldList[events.size()]));
-      return newContinuationPoint;
+      return cursors.issue(serviceContext.getSession(), cursor, newContinuationPoint);
     } else {
       throw new StatusException(StatusCodes.Bad_NoData);
     }
@@ -246,6 +301,15 @@ public class MyHistorian implements HistoryManagerListener {
     Boolean useSteppedInterpolation = historicalDataConf == null ? true : historicalDataConf.isStepped();
     ValueHistory history = variableHistories.get(node);
     if (history != null) {
+      if ((continuationPoint == null) && ((aggregateConfiguration == null)
+          || !Boolean.FALSE.equals(aggregateConfiguration.getUseServerCapabilitiesDefaults()))) {
+        // Aligned intervals of the common aggregates are answered from the rollups
+        DataValue[] rollupValues = history.readProcessed(startTime, endTime, processingInterval, aggregateType);
+        if (rollupValues != null) {
+          aggregateData.setDataValues(rollupValues);
+          return null;
+        }
+      }
       AggregateCalculatorContinuationPoint newContinuationPoint = aggregateCalculator.calculateAggregates(startTime,
           endTime, processingInterval, aggregateType, aggregateConfiguration, useSteppedInterpolation, history,
           (AggregateCalculatorContinuationPoint) continuationPoint, aggregateData);
@@ -266,17 +330,80 @@ public class MyHistorian implements HistoryManagerListener {
     ValueHistory history = variableHistories.get(node);
     if (history != null) {
       List<DataValue> values = new ArrayList<DataValue>();
-      int firstIndex = continuationPoint == null ? 0 : (Integer) continuationPoint;
-      Integer newContinuationPoint =
-          history.readRaw(startTime, endTime, numValuesPerNode.intValue(), returnBounds, firstIndex, values);
+      HistoryCursor cursor = cursors.resume(serviceContext.getSession(), continuationPoint);
+      HistoryCursor newContinuationPoint =
+          history.readRaw(startTime, endTime, numValuesPerNode.intValue(), returnBounds, cursor, values);
       historyData.setDataValues(values.toArray(new DataValue[values.size()]));
 
-      return newContinuationPoint;
+      return cursors.issue(serviceContext.getSession(), cursor, newContinuationPoint);
 
     }
     return null;
   }
 
+  /**
+   * Keep the in-memory history of the numeric and Boolean variables added after this call
+   * compressed. A compressed sample takes typically a few bytes, so much longer histories fit in
+   * the same heap. Persistent storage, if set, takes precedence.
+   *
+   * @param capacity the number of samples to keep for each variable, 0 to disable compression
+   */
+  public void setCompression(int capacity) {
+    this.compressedCapacity = capacity;
+  }
+
+  /**
+   * Keep the history of the variables added after this call in segment files under the directory.
+   * The files of earlier runs are loaded, so the history survives restarts. Expired segments are
+   * deleted and small segments merged by a background task.
+   *
+   * @param directory the root directory of the history files
+   * @param retentionMillis the age after which the history is deleted, 0 to keep it forever
+   */
+  public synchronized void setStorage(File directory, long retentionMillis) {
+    this.storageDirectory = directory;
+    this.retentionMillis = retentionMillis;
+    if (maintenance == null) {
+      maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "HistoryMaintenance");
+        t.setDaemon(true);
+        return t;
+      });
+      maintenance.scheduleWithFixedDelay(this::maintain, 1, 1, TimeUnit.MINUTES);
+    }
+  }
+
+  /**
+   * Record the samples of the variables added after this call through a write-behind queue. The
+   * thread that changes the value then only queues the sample, and a historian thread stores the
+   * queued samples in batches.
+   *
+   * @param capacity the maximum number of queued samples
+   * @param policy what to do when the queue is full
+   */
+  public synchronized void setWriteBehind(int capacity, HistoryWriteQueue.OverflowPolicy policy) {
+    if (writeQueue == null) {
+      writeQueue = new HistoryWriteQueue(capacity, policy);
+    }
+  }
+
+  /**
+   * Stop the background maintenance, store the queued samples and flush the persistent histories.
+   */
+  public synchronized void shutdown() {
+    if (maintenance != null) {
+      maintenance.shutdown();
+      maintenance = null;
+    }
+    if (writeQueue != null) {
+      writeQueue.close();
+      logger.info("History write queue closed: {}", writeQueue);
+    }
+    for (ValueHistory history : variableHistories.values()) {
+      history.close();
+    }
+  }
+
   @Override
   public void onUpdateData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
       DataValue[] updateValues, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
@@ -298,4 +425,20 @@ public class MyHistorian implements HistoryManagerListener {
     throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
   }
 
+  private boolean isNumeric(UaVariableNode variable) {
+    UaType dataType = variable.getDataType();
+    return (dataType != null)
+        && (dataType.inheritsFrom(Identifiers.Number) || dataType.inheritsFrom(Identifiers.Boolean));
+  }
+
+  private void maintain() {
+    for (ValueHistory history : variableHistories.values()) {
+      try {
+        history.maintain();
+      } catch (RuntimeException e) {
+        logger.error("History maintenance of {} failed", history.getVariable().getNodeId(), e);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,230 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Event driven simulation of the production of a machine.
+ * <p>
+ * Each call of {@link #tick(double, boolean)} advances the current machining cycle by the elapsed
+ * time. When a cycle is complete, the part is counted as good or bad and reported to the
+ * {@link PartListener}. The OEE factors are kept as running sums, so every tick costs O(1) no
+ * matter how many parts have been produced.
+ */
+public class ProductionSimulator {
+
+    /**
+     * Receives the completed parts.
+     */
+    public interface PartListener {
+        /**
+         * @param good whether the part passed the quality check
+         * @param cycleTime the actual cycle time of the part in seconds
+         * @param totalParts the total number of parts including this one
+         */
+        void onPartCompleted(boolean good, double cycleTime, long totalParts);
+    }
+
+    private static class CompletedPart {
+        final boolean good;
+        final double cycleTime;
+        final long totalParts;
+
+        CompletedPart(boolean good, double cycleTime, long totalParts) {
+            this.good = good;
+            this.cycleTime = cycleTime;
+            this.totalParts = totalParts;
+        }
+    }
+
+    /** The shortest accepted cycle time in seconds; shorter ones would complete parts without end. */
+    public static final double MIN_CYCLE_TIME = 0.1;
+
+    private static double clampCycleTime(double cycleTime) {
+        // !(a >= b) is also true for NaN
+        return !(cycleTime >= MIN_CYCLE_TIME) ? MIN_CYCLE_TIME : cycleTime;
+    }
+
+    private long badParts;
+    private double currentCycleTime;
+    private double cycleElapsed;
+    private long goodParts;
+    private double lastCycleTime;
+    private final PartListener listener;
+    private long orderGoodParts;
+    private double orderQuantity;
+    private double plannedTime;
+    private final Random rng = new Random();
+    private double runTime;
+    private double scrapRate = 0.01;
+    private double targetCycleTime;
+
+    /**
+     * @param targetCycleTime the ideal cycle time in seconds, at least {@link #MIN_CYCLE_TIME}
+     * @param listener receives the completed parts
+     */
+    public ProductionSimulator(double targetCycleTime, PartListener listener) {
+        this.targetCycleTime = clampCycleTime(targetCycleTime);
+        this.listener = listener;
+        this.currentCycleTime = nextCycleTime();
+    }
+
+    /**
+     * Advances the simulation. The completed parts are reported to the listener after the state
+     * has been updated and outside of the lock of the simulator, so the listener may take its time
+     * (e.g. to send events) and may call back into the simulator.
+     *
+     * @param dt elapsed time in seconds
+     * @param producing whether the machine is producing; planned time still elapses when it is not
+     * @return the number of parts completed in this tick
+     */
+    public int tick(double dt, boolean producing) {
+        List<CompletedPart> parts;
+        synchronized (this) {
+            plannedTime += dt;
+            if (!producing) {
+                return 0;
+            }
+            runTime += dt;
+            cycleElapsed += dt;
+            if (cycleElapsed < currentCycleTime) {
+                return 0;
+            }
+            parts = new ArrayList<>();
+            while (cycleElapsed >= currentCycleTime) {
+                cycleElapsed -= currentCycleTime;
+                lastCycleTime = currentCycleTime;
+                boolean good = rng.nextDouble() >= scrapRate;
+                if (good) {
+                    goodParts++;
+                    orderGoodParts++;
+                } else {
+                    badParts++;
+                }
+                parts.add(new CompletedPart(good, lastCycleTime, getTotalParts()));
+                currentCycleTime = nextCycleTime();
+            }
+        }
+        for (CompletedPart part : parts) {
+            listener.onPartCompleted(part.good, part.cycleTime, part.totalParts);
+        }
+        return parts.size();
+    }
+
+    /**
+     * Sets the counters, e.g. to continue from the values of the address space.
+     */
+    public synchronized void setCounters(long goodParts, long badParts) {
+        this.goodParts = goodParts;
+        this.badParts = badParts;
+        // Assume the earlier parts were produced at the ideal rate
+        this.runTime = getTotalParts() * targetCycleTime;
+        this.plannedTime = runTime;
+    }
+
+    /**
+     * Resets the part counters and the OEE statistics.
+     */
+    public synchronized void resetCounters() {
+        goodParts = 0;
+        badParts = 0;
+        orderGoodParts = 0;
+        runTime = 0;
+        plannedTime = 0;
+    }
+
+    /**
+     * Starts a new production order.
+     *
+     * @param quantity the number of good parts to produce
+     * @param alreadyProduced the good parts of the order that are already done
+     */
+    public synchronized void startOrder(double quantity, long alreadyProduced) {
+        this.orderQuantity = quantity;
+        this.orderGoodParts = alreadyProduced;
+        this.cycleElapsed = 0;
+    }
+
+    /**
+     * @param scrapRate the probability of a bad part, 0..1
+     */
+    public synchronized void setScrapRate(double scrapRate) {
+        this.scrapRate = Math.max(0.0, Math.min(1.0, scrapRate));
+    }
+
+    /**
+     * @param targetCycleTime the ideal cycle time in seconds; values below
+     *        {@link #MIN_CYCLE_TIME} (including 0 and NaN) are raised to it
+     */
+    public synchronized void setTargetCycleTime(double targetCycleTime) {
+        this.targetCycleTime = clampCycleTime(targetCycleTime);
+    }
+
+    /**
+     * @return Availability = run time / planned time, 0..1
+     */
+    public synchronized double getAvailability() {
+        return plannedTime > 0 ? runTime / plannedTime : 1.0;
+    }
+
+    public synchronized long getBadParts() {
+        return badParts;
+    }
+
+    /**
+     * @return the progress of the current cycle, 0..1
+     */
+    public synchronized double getCycleProgress() {
+        return currentCycleTime > 0 ? Math.min(1.0, cycleElapsed / currentCycleTime) : 0.0;
+    }
+
+    public synchronized long getGoodParts() {
+        return goodParts;
+    }
+
+    /**
+     * @return the cycle time of the last completed part in seconds
+     */
+    public synchronized double getLastCycleTime() {
+        return lastCycleTime;
+    }
+
+    /**
+     * @return OEE = Availability * Performance * Quality, 0..1
+     */
+    public synchronized double getOee() {
+        return getAvailability() * getPerformance() * getQuality();
+    }
+
+    /**
+     * @return the progress of the production order in percent, 0..100
+     */
+    public synchronized double getOrderProgress() {
+        return orderQuantity > 0 ? Math.min(100.0, 100.0 * orderGoodParts / orderQuantity) : 0.0;
+    }
+
+    /**
+     * @return Performance = ideal cycle time * total parts / run time, 0..1
+     */
+    public synchronized double getPerformance() {
+        return runTime > 0 ? Math.min(1.0, targetCycleTime * getTotalParts() / runTime) : 1.0;
+    }
+
+    /**
+     * @return Quality = good parts / total parts, 0..1
+     */
+    public synchronized double getQuality() {
+        long total = getTotalParts();
+        return total > 0 ? (double) goodParts / total : 1.0;
+    }
+
+    public synchronized long getTotalParts() {
+        return goodParts + badParts;
+    }
+
+    private double nextCycleTime() {
+        // Actual cycle times scatter slightly above the ideal cycle time
+        return targetCycleTime * (1.0 + Math.abs(rng.nextGaussian()) * 0.03);
+    }
+}
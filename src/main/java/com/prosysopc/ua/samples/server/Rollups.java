@@ -0,0 +1,359 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.Arrays;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Pre-aggregated rollups of a {@link ValueHistory} at the resolutions of 1 second, 1 minute and 1
+ * hour.
+ * <p>
+ * Each sample updates the minimum, maximum, sum, count, first and last value of its bucket in each
+ * tier, and the area under the value curve of the buckets it spans, so the update is O(1). A
+ * processed read whose interval is a multiple of a tier resolution and whose start time is aligned
+ * to it is answered by combining the buckets of the coarsest such tier, instead of rescanning the
+ * raw samples. The buckets also count the samples that are not Good and the time spans they
+ * last; a read over such a bucket falls back to the raw data, where the AggregateCalculator
+ * applies the status rules of the aggregates.
+ * <p>
+ * The rollups are only built forward in time. After a delete or a sample older than the newest
+ * one, the buckets up to then are no longer used and such reads fall back to the raw data. The
+ * same applies to samples that were already in a persistent store at startup and to a change of
+ * the data type of the values. Int64 values keep all their bits for Minimum, Maximum, Start and
+ * End. Like the samples, the rollups are guarded by the lock of the ValueHistory.
+ * <p>
+ * The results have the same historian bits as those of the AggregateCalculator: Raw for Start and
+ * End, which return a sample, and Calculated for the other aggregates.
+ */
+class Rollups {
+  private static class Tier {
+    final double[] area;
+    final int[] bad;
+    final int[] count;
+    final long[] covered;
+    final double[] first;
+    final long[] firstTime;
+    final long[] index;
+    final double[] last;
+    final long[] lastTime;
+    final double[] max;
+    final double[] min;
+    final long resolution;
+    final double[] sum;
+    long validFrom = Long.MIN_VALUE;
+
+    Tier(long resolutionMillis, int capacity) {
+      this.resolution = resolutionMillis * TICKS_PER_MILLI;
+      area = new double[capacity];
+      bad = new int[capacity];
+      count = new int[capacity];
+      covered = new long[capacity];
+      first = new double[capacity];
+      firstTime = new long[capacity];
+      index = new long[capacity];
+      last = new double[capacity];
+      lastTime = new long[capacity];
+      max = new double[capacity];
+      min = new double[capacity];
+      sum = new double[capacity];
+      Arrays.fill(index, Long.MIN_VALUE);
+    }
+
+    /**
+     * @return the slot of the bucket, reset if it held an older bucket
+     */
+    int bucket(long b) {
+      int slot = slot(b);
+      if (index[slot] != b) {
+        index[slot] = b;
+        area[slot] = 0;
+        bad[slot] = 0;
+        count[slot] = 0;
+        covered[slot] = 0;
+        sum[slot] = 0;
+      }
+      return slot;
+    }
+
+    int capacity() {
+      return index.length;
+    }
+
+    int slot(long b) {
+      return (int) Math.floorMod(b, (long) index.length);
+    }
+  }
+
+  /** Good, with the InfoType DataValue and the historian bits Calculated */
+  private static final int STATUS_CALCULATED = 0x00000401;
+  private static final long TICKS_PER_MILLI = 10000L;
+
+  /**
+   * @return whether the aggregate can be answered from the rollups
+   */
+  static boolean isSupported(NodeId aggregateType) {
+    return Identifiers.AggregateFunction_Minimum.equals(aggregateType)
+        || Identifiers.AggregateFunction_Maximum.equals(aggregateType)
+        || Identifiers.AggregateFunction_Count.equals(aggregateType)
+        || Identifiers.AggregateFunction_Start.equals(aggregateType)
+        || Identifiers.AggregateFunction_End.equals(aggregateType)
+        || Identifiers.AggregateFunction_Average.equals(aggregateType)
+        || Identifiers.AggregateFunction_TimeAverage.equals(aggregateType);
+  }
+
+  private boolean hasPrevious;
+  private byte kind = SampleStore.KIND_NULL;
+  private long lastTime = Long.MIN_VALUE;
+  private boolean previousGood;
+  private long previousTime;
+  private double previousValue;
+  private final boolean stepped;
+  // From the finest to the coarsest: 1 hour of seconds, 1 day of minutes, 30 days of hours
+  private final Tier[] tiers = {new Tier(1000L, 3600), new Tier(60000L, 1440), new Tier(3600000L, 720)};
+
+  /**
+   * @param stepped whether the value stays constant between the samples (true) or changes
+   *        linearly (false); defines the area for the TimeAverage
+   */
+  Rollups(boolean stepped) {
+    this.stepped = stepped;
+  }
+
+  /**
+   * Update the rollups with a new sample.
+   */
+  void add(DataValue value) {
+    long t = SampleStore.timeOf(value);
+    if (t < lastTime) {
+      invalidate();
+      return;
+    }
+    lastTime = t;
+    Object o = value.getValue() == null ? null : value.getValue().getValue();
+    byte k = SampleStore.kindOf(o);
+    StatusCode status = value.getStatusCode();
+    boolean good = ((status == null) || status.isGood()) && (k != SampleStore.KIND_NULL)
+        && (k != SampleStore.KIND_OBJECT);
+    if (good && (kind != SampleStore.KIND_NULL) && (k != kind)) {
+      // The buckets hold the values of one data type only
+      invalidate();
+    }
+    // The encoded value is kept for Minimum, Maximum, Start and End, the number for the sums
+    double v = good ? SampleStore.encode(k, o) : 0.0;
+    double x = k == SampleStore.KIND_LONG ? (double) Double.doubleToRawLongBits(v) : v;
+    if (hasPrevious) {
+      // The previous value lasts until this sample; a bad sample ends it
+      double end = stepped || !good ? previousValue : x;
+      for (Tier tier : tiers) {
+        accumulate(tier, previousTime, t, previousValue, end, previousGood);
+      }
+    }
+    if (good) {
+      kind = k;
+    }
+    for (Tier tier : tiers) {
+      int slot = tier.bucket(Math.floorDiv(t, tier.resolution));
+      if (!good) {
+        tier.bad[slot]++;
+        continue;
+      }
+      if (tier.count[slot] == 0) {
+        tier.first[slot] = v;
+        tier.firstTime[slot] = t;
+        tier.min[slot] = v;
+        tier.max[slot] = v;
+      } else {
+        tier.min[slot] = min(tier.min[slot], v);
+        tier.max[slot] = max(tier.max[slot], v);
+      }
+      tier.count[slot]++;
+      tier.sum[slot] += x;
+      tier.last[slot] = v;
+      tier.lastTime[slot] = t;
+    }
+    hasPrevious = true;
+    previousGood = good;
+    previousTime = t;
+    previousValue = x;
+  }
+
+  /**
+   * Start the rollups after the samples that the history already has, e.g. in a persistent store.
+   * The buckets up to the given time are not used.
+   *
+   * @param time the time of the newest existing sample, as raw DateTime ticks
+   */
+  void startAfter(long time) {
+    lastTime = Math.max(lastTime, time);
+    invalidate();
+  }
+
+  /**
+   * Stop using the buckets up to the newest sample, e.g. after the samples were deleted.
+   */
+  void invalidate() {
+    for (Tier tier : tiers) {
+      tier.validFrom = lastTime == Long.MIN_VALUE ? Long.MIN_VALUE : Math.floorDiv(lastTime, tier.resolution) + 1;
+    }
+    hasPrevious = false;
+  }
+
+  /**
+   * Calculate an aggregate from the rollups.
+   *
+   * @param start the start of the first interval
+   * @param end the end of the last interval
+   * @param intervalMillis the processing interval
+   * @param aggregateType the aggregate to calculate
+   * @return the aggregate of each interval, or null if the rollups cannot answer the request
+   */
+  DataValue[] read(DateTime start, DateTime end, double intervalMillis, NodeId aggregateType) {
+    long interval = Math.round(intervalMillis * TICKS_PER_MILLI);
+    long s = start.getValue();
+    long e = end.getValue();
+    if (!isSupported(aggregateType) || (interval <= 0) || (e <= s) || ((e - s) % interval != 0)) {
+      return null;
+    }
+    Tier tier = null;
+    for (Tier t : tiers) {
+      if ((interval % t.resolution == 0) && (s % t.resolution == 0)) {
+        tier = t;
+      }
+    }
+    if (tier == null) {
+      return null;
+    }
+    long firstBucket = s / tier.resolution;
+    long endBucket = e / tier.resolution;
+    long newestBucket = Math.floorDiv(lastTime, tier.resolution);
+    // Only complete and retained buckets can be used
+    if ((lastTime == Long.MIN_VALUE) || (firstBucket < tier.validFrom) || (endBucket > newestBucket)
+        || (firstBucket <= newestBucket - tier.capacity())) {
+      return null;
+    }
+    int perInterval = (int) (interval / tier.resolution);
+    DataValue[] result = new DataValue[(int) ((e - s) / interval)];
+    for (int i = 0; i < result.length; i++) {
+      long from = firstBucket + (long) i * perInterval;
+      result[i] = aggregate(tier, from, from + perInterval, new DateTime(s + i * interval), aggregateType);
+      if (result[i] == null) {
+        return null;
+      }
+    }
+    return result;
+  }
+
+  private void accumulate(Tier tier, long t0, long t1, double v0, double v1, boolean good) {
+    if (t1 <= t0) {
+      return;
+    }
+    long r = tier.resolution;
+    long lastBucket = Math.floorDiv(t1 - 1, r);
+    // Older buckets would be overwritten anyway
+    long b = Math.max(Math.floorDiv(t0, r), lastBucket - tier.capacity() + 1);
+    for (; b <= lastBucket; b++) {
+      long a = Math.max(t0, b * r);
+      long z = Math.min(t1, (b + 1) * r);
+      double va = v0 + (v1 - v0) * (a - t0) / (t1 - t0);
+      double vz = v0 + (v1 - v0) * (z - t0) / (t1 - t0);
+      int slot = tier.bucket(b);
+      if (good) {
+        tier.area[slot] += (va + vz) / 2 * (z - a);
+        tier.covered[slot] += z - a;
+      } else {
+        // The time after a bad sample is bad as well
+        tier.bad[slot]++;
+      }
+    }
+  }
+
+  /**
+   * @return the aggregate of the buckets, or null if a bucket has a sample that is not Good
+   */
+  private DataValue aggregate(Tier tier, long from, long to, DateTime time, NodeId aggregateType) {
+    int count = 0;
+    double sum = 0;
+    double min = 0;
+    double max = 0;
+    double area = 0;
+    long covered = 0;
+    int firstSlot = -1;
+    int lastSlot = -1;
+    for (long b = from; b < to; b++) {
+      int slot = tier.slot(b);
+      if (tier.index[slot] != b) {
+        continue;
+      }
+      if (tier.bad[slot] > 0) {
+        return null;
+      }
+      area += tier.area[slot];
+      covered += tier.covered[slot];
+      if (tier.count[slot] == 0) {
+        continue;
+      }
+      if (firstSlot < 0) {
+        firstSlot = slot;
+        min = tier.min[slot];
+        max = tier.max[slot];
+      } else {
+        min = min(min, tier.min[slot]);
+        max = max(max, tier.max[slot]);
+      }
+      lastSlot = slot;
+      count += tier.count[slot];
+      sum += tier.sum[slot];
+    }
+    if (Identifiers.AggregateFunction_Count.equals(aggregateType)) {
+      return calculated(new Variant(count), time);
+    } else if (Identifiers.AggregateFunction_TimeAverage.equals(aggregateType)) {
+      return covered == 0 ? noData(time) : calculated(new Variant(area / covered), time);
+    } else if (count == 0) {
+      return noData(time);
+    } else if (Identifiers.AggregateFunction_Minimum.equals(aggregateType)) {
+      return calculated(SampleStore.decode(kind, min), time);
+    } else if (Identifiers.AggregateFunction_Maximum.equals(aggregateType)) {
+      return calculated(SampleStore.decode(kind, max), time);
+    } else if (Identifiers.AggregateFunction_Start.equals(aggregateType)) {
+      return raw(SampleStore.decode(kind, tier.first[firstSlot]), new DateTime(tier.firstTime[firstSlot]));
+    } else if (Identifiers.AggregateFunction_End.equals(aggregateType)) {
+      return raw(SampleStore.decode(kind, tier.last[lastSlot]), new DateTime(tier.lastTime[lastSlot]));
+    }
+    // Average
+    return calculated(new Variant(sum / count), time);
+  }
+
+  private double max(double a, double b) {
+    if (kind == SampleStore.KIND_LONG) {
+      return Double.doubleToRawLongBits(a) >= Double.doubleToRawLongBits(b) ? a : b;
+    }
+    return Math.max(a, b);
+  }
+
+  private double min(double a, double b) {
+    if (kind == SampleStore.KIND_LONG) {
+      return Double.doubleToRawLongBits(a) <= Double.doubleToRawLongBits(b) ? a : b;
+    }
+    return Math.min(a, b);
+  }
+
+  private static DataValue calculated(Variant value, DateTime time) {
+    return new DataValue(value, SampleStore.statusOf(STATUS_CALCULATED), time, UnsignedShort.ZERO, null, null);
+  }
+
+  private static DataValue noData(DateTime time) {
+    return new DataValue(Variant.NULL, StatusCode.valueOf(StatusCodes.Bad_NoData), time, UnsignedShort.ZERO, null,
+        null);
+  }
+
+  private static DataValue raw(Variant value, DateTime time) {
+    return new DataValue(value, StatusCode.GOOD, time, UnsignedShort.ZERO, null, null);
+  }
+}
@@ -14,12 +14,11 @@ import java.net.URL;
 import java.security.cert.CertificateException;
 import java.util.*;
 import java.util.Map.Entry;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 
 
 import com.prosysopc.ua.server.nodes.PlainVariable;
+import org.eclipse.paho.client.mqttv3.MqttException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -32,14 +31,14 @@ import com.prosysopc.ua.UserTokenPolicies;
 import com.prosysopc.ua.nodes.UaProperty;
 import com.prosysopc.ua.samples.server.compliancenodes.ComplianceNodeManager;
 import com.prosysopc.ua.samples.server.compliancenodes.NonUaNodeComplianceNodeManager;
+import com.prosysopc.ua.samples.util.JdbcConnectionPool;
+import com.prosysopc.ua.samples.util.TimescaleUtil;
 import com.prosysopc.ua.server.NodeBuilderException;
 import com.prosysopc.ua.server.NodeManagerListener;
 import com.prosysopc.ua.server.UaInstantiationException;
 import com.prosysopc.ua.server.UaServer;
 import com.prosysopc.ua.server.UaServerException;
 import com.prosysopc.ua.server.UserValidator;
-import com.prosysopc.ua.server.nodes.UaObjectNode;
-import com.prosysopc.ua.server.nodes.UaVariableNode;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.LocalizedText;
 import com.prosysopc.ua.stack.builtintypes.QualifiedName;
@@ -223,6 +222,50 @@ public class SampleConsoleServer {
    * Number of nodes to create for the Big Node Manager. This can be modified from the command line.
    */
   private static int bigAddressSpaceNodes = 1000;
+  /**
+   * Whether the nodes of the Big Node Manager use numeric NodeIds. This can be modified from the
+   * command line.
+   */
+  private static boolean bigAddressSpaceNumericIds = false;
+  /**
+   * Number of worker threads for the simulation. This can be modified from the command line.
+   */
+  private static int simulationThreads = Runtime.getRuntime().availableProcessors();
+  /**
+   * Directory of the persistent history, null to keep the history in memory. This can be modified
+   * from the command line.
+   */
+  private static String historyDirectory = null;
+  /**
+   * Days to keep the persistent history, 0 to keep it forever. This can be modified from the
+   * command line.
+   */
+  private static int historyRetentionDays = 0;
+  /**
+   * Number of samples to keep in the compressed in-memory history of each numeric variable, 0 for
+   * the uncompressed history. This can be modified from the command line.
+   */
+  private static int compressedHistorySamples = 0;
+  /**
+   * Serve the history of the energy variables from TimescaleDB. This can be modified from the
+   * command line.
+   */
+  private static boolean timescaleHistory = false;
+  /**
+   * Feed the Big Node Manager from MQTT instead of simulating it. This can be modified from the
+   * command line.
+   */
+  private static boolean bigAddressSpaceFeed = false;
+  /**
+   * Capacity of the write-behind queue of the history, 0 to record the samples directly. This can
+   * be modified from the command line.
+   */
+  private static int historyQueueCapacity = 0;
+  /**
+   * Overflow policy of the write-behind queue of the history. This can be modified from the command
+   * line.
+   */
+  private static HistoryWriteQueue.OverflowPolicy historyQueuePolicy = HistoryWriteQueue.OverflowPolicy.DROP_OLDEST;
   private static Logger logger = LoggerFactory.getLogger(SampleConsoleServer.class);
   private static boolean stackTraceOnException = false;
   protected static int certKeySize = 2048;
@@ -326,6 +369,25 @@ public class SampleConsoleServer {
         stackTraceOnException = true;
       } else if (args[i].equals("-b")) {
         bigAddressSpaceNodes = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-n")) {
+        bigAddressSpaceNumericIds = true;
+      } else if (args[i].equals("-s")) {
+        simulationThreads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-h")) {
+        historyDirectory = args[++i];
+      } else if (args[i].equals("-r")) {
+        historyRetentionDays = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-c")) {
+        compressedHistorySamples = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-q")) {
+        historyQueueCapacity = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("-Q")) {
+        historyQueueCapacity = Integer.parseInt(args[++i]);
+        historyQueuePolicy = HistoryWriteQueue.OverflowPolicy.BLOCK;
+      } else if (args[i].equals("-T")) {
+        timescaleHistory = true;
+      } else if (args[i].equals("-m")) {
+        bigAddressSpaceFeed = true;
       } else if (args[i].equals("-k")) {
         certKeySize = Integer.parseInt(args[++i]);
       } else if (args[i].equals("-d")) {
@@ -357,6 +419,16 @@ public class SampleConsoleServer {
   protected static void usage() {
     println("Usage: " + APP_NAME + " [-b] [-t] [serverUri]");
     println("   -b n       Define number of nodes to create in the BigNodeManager (default=1000)");
+    println("   -n         Use numeric NodeIds for the nodes of the BigNodeManager");
+    println("   -m         Feed the BigNodeManager from MQTT (broker from MQTT_BROKER) instead of simulating it");
+    println("              The client ID is taken from MQTT_CLIENT_ID, the field mapping file from MQTT_SLOT_FILE");
+    println("   -s n       Define number of simulation worker threads (default=number of processors)");
+    println("   -h dir     Define the directory for persistent history (default=history in memory)");
+    println("   -r days    Define the number of days to keep the persistent history (default=0 (forever))");
+    println("   -c n       Keep n samples of compressed in-memory history for each numeric variable");
+    println("   -q n       Record the history through a write-behind queue of n samples (drop oldest when full)");
+    println("   -Q n       Like -q, but wait for room when the queue is full");
+    println("   -T         Serve the history of the energy variables from TimescaleDB (URL from TIMESCALE_URL)");
     println("   -k keySize Define the size of the public key of the "
             + "application certificate (default 2048; other valid values 1024, 4096)");
     println("   -d url     Define the DiscoveryServerUrl to register the application to");
@@ -391,14 +463,17 @@ public class SampleConsoleServer {
       }
     }
   };
-  private final ScheduledExecutorService simulator = Executors.newScheduledThreadPool(10);
+  private final SimulationScheduler simulator = new SimulationScheduler(simulationThreads);
   protected ComplianceNodeManager complianceNodeManager;
   protected MyBigNodeManager myBigNodeManager;
+  protected MqttDataItemFeed myBigNodeManagerFeed;
   protected MyHistorian myHistorian;
   protected MyNodeManager myNodeManager;
   protected NodeManagerListener myNodeManagerListener = new MyNodeManagerListener();
   protected NonUaNodeComplianceNodeManager nonUaNodeComplianceManager;
   protected UaServer server;
+  protected TimescaleHistorian timescaleHistorian;
+  protected JdbcConnectionPool timescalePool;
   protected UserValidator userValidator;
   protected final DefaultCertificateValidatorListener validationListener = new MyCertificateValidationListener();
   protected final DefaultCertificateValidatorListener userCertificateValidationListener =
@@ -415,7 +490,27 @@ public class SampleConsoleServer {
    */
   private void createBigNodeManager() {
     myBigNodeManager =
-            new MyBigNodeManager(server, "http://www.prosysopc.com/OPCUA/SampleBigAddressSpace", bigAddressSpaceNodes);
+            new MyBigNodeManager(server, "http://www.prosysopc.com/OPCUA/SampleBigAddressSpace", bigAddressSpaceNodes,
+                bigAddressSpaceNumericIds);
+    if (bigAddressSpaceFeed) {
+      myBigNodeManager.setWritable(true);
+      // The mapping of the machine fields to the data items is kept over restarts
+      myBigNodeManagerFeed = new MqttDataItemFeed(myBigNodeManager,
+          new File(System.getenv().getOrDefault("MQTT_SLOT_FILE", "mqtt_slots.properties")));
+      String brokerUrl = System.getenv().getOrDefault("MQTT_BROKER", "tcp://mqtt_broker:1883");
+      // The persistent session belongs to one server instance
+      String clientId = System.getenv().getOrDefault("MQTT_CLIENT_ID",
+          APP_NAME + "-" + ApplicationIdentity.getActualHostNameWithoutDomain());
+      try {
+        myBigNodeManagerFeed.start(brokerUrl, MqttDataItemFeed.TOPIC, clientId);
+      } catch (MqttException e) {
+        // Without the feed the data items are simulated, see startSimulation()
+        logger.error("Connecting the BigNodeManager feed to {} failed, simulating the data items instead", brokerUrl,
+            e);
+        myBigNodeManagerFeed = null;
+        myBigNodeManager.setWritable(false);
+      }
+    }
   }
 
   private void printConnectionAddresses() {
@@ -460,8 +555,12 @@ public class SampleConsoleServer {
     // My I/O Manager Listener
     //myNodeManager.getIoManager().addListeners(new MyIoManagerListener());
 
-    // My HistoryManager
-    //myNodeManager.getHistoryManager().setListener(myHistorian);
+    if (timescaleHistory) {
+      timescalePool = new JdbcConnectionPool(System.getenv().getOrDefault("TIMESCALE_URL", TimescaleUtil.JDBC_URL),
+          TimescaleUtil.JDBC_USER, TimescaleUtil.JDBC_PWD, 8, 5000);
+      timescaleHistorian = new TimescaleHistorian(timescalePool);
+      cncNodeManager.enableTimescaleHistory(timescaleHistorian);
+    }
 
     // ComplianceNodeManagers
     complianceNodeManager = new ComplianceNodeManager(server, "http://www.prosysopc.com/OPCUA/ComplianceNodes");
@@ -585,15 +684,11 @@ public class SampleConsoleServer {
 
 
   /**
-   * Initialize History Collection as configured in {@link MyNodeManager}.
+   * Initialize History Collection of the machine variables and events, see
+   * {@link CncNodeManager#enableHistory(MyHistorian)}.
    */
   protected void initHistory() {
-    for (UaVariableNode v : myNodeManager.getHistorizableVariables()) {
-      myHistorian.addVariableHistory(v);
-    }
-    for (UaObjectNode o : myNodeManager.getHistorizableEvents()) {
-      myHistorian.addEventHistory(o);
-    }
+    cncNodeManager.enableHistory(myHistorian);
   }
 
   /**
@@ -685,6 +780,13 @@ public class SampleConsoleServer {
     server = new UaServer();
 
     myHistorian = new MyHistorian(server.getAggregateCalculator());
+    myHistorian.setCompression(compressedHistorySamples);
+    if (historyQueueCapacity > 0) {
+      myHistorian.setWriteBehind(historyQueueCapacity, historyQueuePolicy);
+    }
+    if (historyDirectory != null) {
+      myHistorian.setStorage(new File(historyDirectory), TimeUnit.DAYS.toMillis(historyRetentionDays));
+    }
 
     /*
      * Enable or disable IPv6 networking (enabled by default).
@@ -942,7 +1044,7 @@ public class SampleConsoleServer {
    */
   protected void run() throws UaServerException, StatusException {
     server.start();
-    //initHistory();
+    initHistory();
     if (enableServerDiagnostics) {
       server.getNodeManagerRoot().getServerData().getServerDiagnosticsNode().setEnabled(true);
     }
@@ -969,6 +1071,16 @@ public class SampleConsoleServer {
         break;
       }
     }
+    myHistorian.shutdown();
+    if (cncNodeManager != null) {
+      cncNodeManager.shutdown();
+    }
+    if (myBigNodeManagerFeed != null) {
+      myBigNodeManagerFeed.close();
+    }
+    if (timescalePool != null) {
+      timescalePool.close();
+    }
 
   }
 
@@ -991,10 +1103,18 @@ public class SampleConsoleServer {
 
 
   /**
-   * Starts the simulation of the level measurement.
+   * Starts the simulation. Each machine adds its tasks to the tick groups of the scheduler.
    */
   protected void startSimulation() {
-    simulator.scheduleAtFixedRate(simulationTask, 1000, 1000, TimeUnit.MILLISECONDS);
+    simulator.addTask("process", 1000, simulationTask);
+    if (cncNodeManager != null) {
+      simulator.addTask("axes", 10, cncNodeManager::simulateAxes);
+      simulator.addTask("waveforms", 100, cncNodeManager::publishWaveforms);
+      simulator.addTask("production", 100, cncNodeManager::simulateProduction);
+    }
+    if ((myBigNodeManager != null) && (myBigNodeManagerFeed == null)) {
+      simulator.addTask("bignodes", 100, myBigNodeManager::simulate);
+    }
     logger.info("Simulation started.");
   }
 
@@ -1003,6 +1123,10 @@ public class SampleConsoleServer {
    */
   protected void stopSimulation() {
     simulator.shutdown();
+    for (SimulationScheduler.TickGroup group : simulator.getGroups()) {
+      logger.info("Simulation group {}: {} ticks, {} overruns", group.getName(), group.getTicks(),
+          group.getOverruns());
+    }
     logger.info("Simulation stopped.");
   }
 }
\ No newline at end of file
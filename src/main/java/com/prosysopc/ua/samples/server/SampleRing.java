@@ -0,0 +1,190 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+
+/**
+ * A fixed-capacity circular buffer of history samples stored in primitive arrays.
+ * <p>
+ * Timestamps are kept as raw DateTime values (100 ns intervals since 1601), numeric values as
+ * doubles and status codes as ints. Only values that are not numbers or booleans are kept as
+ * objects. Appending overwrites the oldest sample once the buffer is full, so it is O(1). The
+ * samples are sorted by time, so time bounds can be found with a binary search.
+ */
+class SampleRing implements SampleStore {
+  private int head;
+  private byte[] kinds;
+  private Object[] objects;
+  private long[] serverTimes;
+  private int size;
+  private int[] statuses;
+  private long[] times;
+  private double[] values;
+
+  SampleRing(int capacity) {
+    allocate(capacity);
+  }
+
+  /**
+   * Appends a sample, overwriting the oldest one if the buffer is full.
+   * <p>
+   * The samples are kept sorted by time: a sample that is older than the newest one is inserted at
+   * its place, which shifts the newer samples. A sample older than all samples of a full buffer is
+   * dropped.
+   */
+  @Override
+  public void add(DataValue value) {
+    int capacity = times.length;
+    if (capacity == 0) {
+      return;
+    }
+    long t = SampleStore.timeOf(value);
+    if ((size > 0) && (t < time(size - 1))) {
+      insert(t, value);
+      return;
+    }
+    int slot;
+    if (size < capacity) {
+      slot = physical(size);
+      size++;
+    } else {
+      slot = head;
+      head = (head + 1) % capacity;
+    }
+    set(slot, value);
+  }
+
+  int capacity() {
+    return times.length;
+  }
+
+  @Override
+  public DataValue get(int i) {
+    int p = physical(i);
+    long serverTime = serverTimes[p];
+    Variant value = kinds[p] == KIND_OBJECT ? new Variant(objects[p]) : SampleStore.decode(kinds[p], values[p]);
+    return new DataValue(value, SampleStore.statusOf(statuses[p]), new DateTime(times[p]), UnsignedShort.ZERO,
+        serverTime == 0 ? null : new DateTime(serverTime), UnsignedShort.ZERO);
+  }
+
+  @Override
+  public double numericValue(int i) {
+    int p = physical(i);
+    return SampleStore.numeric(kinds[p], statuses[p], values[p]);
+  }
+
+  @Override
+  public void remove(int from, int to) {
+    int count = to - from;
+    if (count <= 0) {
+      return;
+    }
+    // Shift the newer samples down over the removed range
+    for (int i = from; i + count < size; i++) {
+      move(physical(i + count), physical(i));
+    }
+    for (int i = size - count; i < size; i++) {
+      if (objects != null) {
+        objects[physical(i)] = null;
+      }
+    }
+    size -= count;
+  }
+
+  /**
+   * Changes the capacity, keeping the newest samples.
+   */
+  @Override
+  public void resize(int capacity) {
+    SampleRing old = new SampleRing(0);
+    old.head = head;
+    old.size = size;
+    old.kinds = kinds;
+    old.objects = objects;
+    old.serverTimes = serverTimes;
+    old.statuses = statuses;
+    old.times = times;
+    old.values = values;
+    allocate(capacity);
+    for (int i = Math.max(0, old.size - capacity); i < old.size; i++) {
+      add(old.get(i));
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long time(int i) {
+    return times[physical(i)];
+  }
+
+  private void allocate(int capacity) {
+    head = 0;
+    size = 0;
+    kinds = new byte[capacity];
+    objects = null;
+    serverTimes = new long[capacity];
+    statuses = new int[capacity];
+    times = new long[capacity];
+    values = new double[capacity];
+  }
+
+  private void insert(long t, DataValue value) {
+    int at = upperBound(t);
+    if (size == times.length) {
+      if (at == 0) {
+        return;
+      }
+      // Drop the oldest sample to make room
+      head = physical(1);
+      size--;
+      at--;
+    }
+    for (int i = size; i > at; i--) {
+      move(physical(i - 1), physical(i));
+    }
+    size++;
+    set(physical(at), value);
+  }
+
+  private void move(int from, int to) {
+    kinds[to] = kinds[from];
+    serverTimes[to] = serverTimes[from];
+    statuses[to] = statuses[from];
+    times[to] = times[from];
+    values[to] = values[from];
+    if (objects != null) {
+      objects[to] = objects[from];
+    }
+  }
+
+  private int physical(int i) {
+    int p = head + i;
+    return p >= times.length ? p - times.length : p;
+  }
+
+  private void set(int slot, DataValue value) {
+    times[slot] = SampleStore.timeOf(value);
+    serverTimes[slot] = value.getServerTimestamp() == null ? 0 : value.getServerTimestamp().getValue();
+    statuses[slot] = SampleStore.statusBits(value);
+    if (objects != null) {
+      objects[slot] = null;
+    }
+    Object v = value.getValue() == null ? null : value.getValue().getValue();
+    byte kind = SampleStore.kindOf(v);
+    kinds[slot] = kind;
+    if (kind == KIND_OBJECT) {
+      if (objects == null) {
+        objects = new Object[times.length];
+      }
+      objects[slot] = v;
+    } else {
+      values[slot] = SampleStore.encode(kind, v);
+    }
+  }
+}
@@ -0,0 +1,211 @@
+package com.prosysopc.ua.samples.server;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+
+/**
+ * Storage of the samples of a {@link ValueHistory}, sorted by time.
+ * <p>
+ * The samples are addressed by a logical index, 0 being the oldest. Times are raw DateTime values
+ * (100 ns intervals since 1601). Numbers and booleans are encoded into a double together with a
+ * kind byte, so the stores can keep them in primitive form.
+ * <p>
+ * The stores are not thread-safe; {@link ValueHistory} guards them with a lock.
+ */
+interface SampleStore {
+  byte KIND_BOOLEAN = 7;
+  byte KIND_BYTE = 6;
+  byte KIND_DOUBLE = 1;
+  byte KIND_FLOAT = 2;
+  byte KIND_INT = 3;
+  byte KIND_LONG = 4;
+  byte KIND_NULL = 0;
+  byte KIND_OBJECT = 8;
+  byte KIND_SHORT = 5;
+
+  /**
+   * @return the primitive value of a sample of the given kind
+   */
+  static Variant decode(byte kind, double v) {
+    switch (kind) {
+      case KIND_DOUBLE:
+        return new Variant(v);
+      case KIND_FLOAT:
+        return new Variant((float) v);
+      case KIND_INT:
+        return new Variant((int) v);
+      case KIND_LONG:
+        return new Variant(Double.doubleToRawLongBits(v));
+      case KIND_SHORT:
+        return new Variant((short) v);
+      case KIND_BYTE:
+        return new Variant((byte) v);
+      case KIND_BOOLEAN:
+        return new Variant(v != 0.0);
+      default:
+        return Variant.NULL;
+    }
+  }
+
+  /**
+   * @return the value encoded as a double; only meaningful for the primitive kinds
+   */
+  static double encode(byte kind, Object v) {
+    switch (kind) {
+      case KIND_DOUBLE:
+      case KIND_FLOAT:
+      case KIND_INT:
+      case KIND_SHORT:
+      case KIND_BYTE:
+        return ((Number) v).doubleValue();
+      case KIND_LONG:
+        // Keep all 64 bits
+        return Double.longBitsToDouble((Long) v);
+      case KIND_BOOLEAN:
+        return ((Boolean) v) ? 1.0 : 0.0;
+      default:
+        return 0.0;
+    }
+  }
+
+  /**
+   * @return the kind of the value
+   */
+  static byte kindOf(Object v) {
+    if (v == null) {
+      return KIND_NULL;
+    } else if (v instanceof Double) {
+      return KIND_DOUBLE;
+    } else if (v instanceof Float) {
+      return KIND_FLOAT;
+    } else if (v instanceof Integer) {
+      return KIND_INT;
+    } else if (v instanceof Long) {
+      return KIND_LONG;
+    } else if (v instanceof Short) {
+      return KIND_SHORT;
+    } else if (v instanceof Byte) {
+      return KIND_BYTE;
+    } else if (v instanceof Boolean) {
+      return KIND_BOOLEAN;
+    }
+    return KIND_OBJECT;
+  }
+
+  /**
+   * @return the value for interpolation: the number, or NaN if the status is not good or the kind
+   *         is not a number
+   */
+  static double numeric(byte kind, int status, double v) {
+    boolean number = (kind == KIND_DOUBLE) || (kind == KIND_FLOAT) || (kind == KIND_INT) || (kind == KIND_SHORT)
+        || (kind == KIND_BYTE);
+    // The two highest bits are the severity, 0 for Good
+    return number && ((status & 0xC0000000) == 0) ? v : Double.NaN;
+  }
+
+  static StatusCode statusOf(int bits) {
+    return StatusCode.valueOf(UnsignedInteger.valueOf(bits & 0xFFFFFFFFL));
+  }
+
+  static int statusBits(DataValue value) {
+    StatusCode status = value.getStatusCode();
+    return status == null ? 0 : status.getValue().intValue();
+  }
+
+  /**
+   * @return the time the sample is indexed by: the source timestamp, or the server timestamp if
+   *         there is no source timestamp
+   */
+  static long timeOf(DataValue value) {
+    DateTime t = value.getSourceTimestamp();
+    if (t == null) {
+      t = value.getServerTimestamp();
+    }
+    return t == null ? 0 : t.getValue();
+  }
+
+  /**
+   * Adds a sample at its place in time order.
+   */
+  void add(DataValue value);
+
+  /**
+   * Releases the resources of the store.
+   */
+  default void close() {}
+
+  /**
+   * @return the sample at the logical index as a DataValue
+   */
+  DataValue get(int i);
+
+  /**
+   * @return the logical index of the first sample with a time &gt;= t, or size() if there is none
+   */
+  default int lowerBound(long t) {
+    int lo = 0;
+    int hi = size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (time(mid) < t) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+
+  /**
+   * Housekeeping, e.g. retention and compaction, called periodically under the write lock.
+   */
+  default void maintain() {}
+
+  /**
+   * @return the value of the sample at the logical index for interpolation, see
+   *         {@link #numeric(byte, int, double)}
+   */
+  default double numericValue(int i) {
+    DataValue value = get(i);
+    Object o = value.getValue() == null ? null : value.getValue().getValue();
+    byte kind = kindOf(o);
+    return numeric(kind, statusBits(value), encode(kind, o));
+  }
+
+  /**
+   * Removes the samples in the logical range [from, to).
+   */
+  void remove(int from, int to);
+
+  /**
+   * Changes the number of samples to keep, dropping the oldest ones.
+   */
+  void resize(int capacity);
+
+  int size();
+
+  /**
+   * @return the time of the sample at the logical index
+   */
+  long time(int i);
+
+  /**
+   * @return the logical index of the first sample with a time &gt; t, or size() if there is none
+   */
+  default int upperBound(long t) {
+    int lo = 0;
+    int hi = size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (time(mid) <= t) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    return lo;
+  }
+}
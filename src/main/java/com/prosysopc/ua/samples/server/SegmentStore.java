@@ -0,0 +1,599 @@
+package com.prosysopc.ua.samples.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+
+/**
+ * A persistent {@link SampleStore} that keeps the samples of one variable in append-only segment
+ * files.
+ * <p>
+ * Each segment holds the samples of one time partition (e.g. one hour) as fixed-size records, so a
+ * record is located by its index and read directly from the memory-mapped file. The first and last
+ * time of each segment form a sparse time index: a time is located by a binary search over the
+ * segments followed by a binary search inside the segment. The history depth is therefore bounded
+ * by the disk and not by the heap.
+ * <p>
+ * Samples that are older than the newest stored sample are dropped, since the segments are
+ * append-only. Only numbers and booleans are stored; other values are stored as null.
+ * <p>
+ * Only the segment that is being written and a few recently read segments are mapped at a time.
+ * The others are closed and mapped again when a read needs them, so the number of mappings does
+ * not grow with the history depth (the mapping of a closed segment is released by the garbage
+ * collector, since Java cannot unmap a file explicitly). Sealed segments are mapped again read-only;
+ * they are only mapped for writing when a delete or a merge changes them, under the write lock of
+ * the history. A segment that has been deleted is never mapped again: an optimistic reader that
+ * still holds it gets an exception and retries under the read lock.
+ * <p>
+ * {@link #maintain()} deletes the segments that are older than the retention time and merges
+ * segments that have become small after deletes or restarts. A merge is recorded in a journal
+ * file first, so a crash in the middle of it neither loses nor duplicates samples: the next
+ * start completes or discards the merge.
+ */
+class SegmentStore implements SampleStore {
+  private class Segment {
+    /** The mapping of the file, null while the segment is closed. */
+    volatile MappedByteBuffer buffer;
+    int count;
+    /** Set when the file is deleted, so the segment is never mapped again. */
+    volatile boolean deleted;
+    final File file;
+    int first;
+    /** The time of the first sample, kept also while the segment is closed. */
+    long firstTime;
+    /** The time of the last sample, kept also while the segment is closed. */
+    long lastTime;
+    final long partitionStart;
+
+    Segment(File file, MappedByteBuffer buffer, long partitionStart) {
+      this.file = file;
+      this.buffer = buffer;
+      this.partitionStart = partitionStart;
+    }
+
+    /**
+     * @return the mapping of the file, opening the segment read-only if it is closed
+     * @throws IllegalStateException if the segment has been deleted
+     */
+    MappedByteBuffer buffer() {
+      MappedByteBuffer b = buffer;
+      return b != null ? b : openBuffer(this, false);
+    }
+
+    long firstTime() {
+      return firstTime;
+    }
+
+    long lastTime() {
+      return lastTime;
+    }
+
+    int offset(int r) {
+      return HEADER_SIZE + (first + r) * RECORD_SIZE;
+    }
+
+    long time(int r) {
+      return buffer().getLong(offset(r));
+    }
+
+    /**
+     * Reads the times of the first and last sample again after the samples have been modified.
+     */
+    void updateTimes() {
+      if (count > 0) {
+        firstTime = time(0);
+        lastTime = time(count - 1);
+      }
+    }
+
+    void writeHeader() {
+      MappedByteBuffer b = writableBuffer();
+      b.putInt(4, first);
+      b.putInt(8, count);
+    }
+
+    /**
+     * @return the mapping of the file for writing, mapping it again if it is closed or read-only
+     */
+    MappedByteBuffer writableBuffer() {
+      MappedByteBuffer b = buffer;
+      return (b != null) && !b.isReadOnly() ? b : openBuffer(this, true);
+    }
+  }
+
+  private static final int HEADER_SIZE = 16;
+  /** The journal of the merge in progress: the merged segment, followed by its sources. */
+  private static final String JOURNAL = "merge.journal";
+  private static Logger logger = LoggerFactory.getLogger(SegmentStore.class);
+  private static final int MAGIC = 0x55414853;
+  /** The maximum number of closed segments that are mapped again for reading at a time. */
+  private static final int MAX_OPEN_SEGMENTS = 4;
+  private static final int RECORD_SIZE = 32;
+  private static final String SUFFIX = ".seg";
+  private static final long TICKS_PER_MILLI = 10000L;
+  private static final String TMP_SUFFIX = ".tmp";
+
+  private int capacity = Integer.MAX_VALUE;
+  private final File directory;
+  private long droppedSamples;
+  private int nextSequence;
+  private int[] offsets = new int[0];
+  /** The closed segments that have been mapped again for reading, the oldest first. */
+  private final LinkedHashSet<Segment> openSegments = new LinkedHashSet<Segment>();
+  private final long partitionTicks;
+  private final int recordsPerSegment;
+  private final long retentionTicks;
+  private List<Segment> segments = new ArrayList<Segment>();
+  private int size;
+
+  /**
+   * Opens the store, loading the segments that already exist in the directory.
+   *
+   * @param directory the directory of the segment files of the variable
+   * @param partitionMillis the time span of a segment
+   * @param recordsPerSegment the maximum number of samples in a segment
+   * @param retentionMillis the age after which the segments are deleted, 0 to keep them forever
+   * @throws IOException if the directory cannot be created or read
+   */
+  SegmentStore(File directory, long partitionMillis, int recordsPerSegment, long retentionMillis)
+      throws IOException {
+    this.directory = directory;
+    this.partitionTicks = partitionMillis * TICKS_PER_MILLI;
+    this.recordsPerSegment = recordsPerSegment;
+    this.retentionTicks = retentionMillis * TICKS_PER_MILLI;
+    if (!directory.isDirectory() && !directory.mkdirs()) {
+      throw new IOException("Cannot create history directory " + directory);
+    }
+    recover();
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    for (File file : files == null ? new File[0] : files) {
+      Segment segment = open(file);
+      if (segment == null) {
+        continue;
+      }
+      if (segment.count == 0) {
+        delete(segment);
+      } else {
+        segments.add(segment);
+      }
+    }
+    // Sort by time rather than by name, since merged segments get new sequence numbers
+    segments.sort(Comparator.comparingLong(Segment::firstTime).thenComparingLong(Segment::lastTime));
+    // Only the newest segment is written, the others stay closed until they are read
+    for (int s = 0; s < segments.size() - 1; s++) {
+      release(segments.get(s));
+    }
+    updateOffsets();
+    logger.debug("Opened {} segments with {} samples from {}", segments.size(), size, directory);
+  }
+
+  @Override
+  public void add(DataValue value) {
+    long t = SampleStore.timeOf(value);
+    Segment active = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+    if ((active != null) && (active.count > 0) && (t < active.lastTime())) {
+      droppedSamples++;
+      if (Long.bitCount(droppedSamples) == 1) {
+        logger.warn("{}: {} samples older than the stored history dropped", directory.getName(), droppedSamples);
+      }
+      return;
+    }
+    try {
+      long partitionStart = t - Math.floorMod(t, partitionTicks);
+      if ((active == null) || (active.first + active.count == recordsPerSegment)
+          || (active.partitionStart != partitionStart)) {
+        if (active != null) {
+          // The segment is sealed: close it until it is read
+          release(active);
+        }
+        active = create(partitionStart);
+        segments.add(active);
+        updateOffsets();
+      }
+    } catch (IOException e) {
+      logger.error("Cannot create a history segment in {}", directory, e);
+      return;
+    }
+    write(active, active.count, value);
+    if (active.count == 0) {
+      active.firstTime = t;
+    }
+    active.lastTime = t;
+    active.count++;
+    active.writeHeader();
+    size++;
+    if (size > capacity) {
+      remove(0, size - capacity);
+    }
+  }
+
+  @Override
+  public void close() {
+    for (Segment segment : segments) {
+      MappedByteBuffer b = segment.buffer;
+      if ((b != null) && !b.isReadOnly()) {
+        b.force();
+      }
+    }
+  }
+
+  @Override
+  public DataValue get(int i) {
+    int s = segmentOf(i);
+    Segment segment = segments.get(s);
+    int offset = segment.offset(i - offsets[s]);
+    MappedByteBuffer b = segment.buffer();
+    long serverTime = b.getLong(offset + 8);
+    return new DataValue(SampleStore.decode(b.get(offset + 28), b.getDouble(offset + 16)),
+        SampleStore.statusOf(b.getInt(offset + 24)), new DateTime(b.getLong(offset)), UnsignedShort.ZERO,
+        serverTime == 0 ? null : new DateTime(serverTime), UnsignedShort.ZERO);
+  }
+
+  @Override
+  public int lowerBound(long t) {
+    // Sparse index: the first segment whose last sample is not before t
+    int lo = 0;
+    int hi = segments.size();
+    while (lo < hi) {
+      int mid = (lo + hi) >>> 1;
+      if (segments.get(mid).lastTime() < t) {
+        lo = mid + 1;
+      } else {
+        hi = mid;
+      }
+    }
+    if (lo == segments.size()) {
+      return size;
+    }
+    Segment segment = segments.get(lo);
+    int l = 0;
+    int h = segment.count;
+    while (l < h) {
+      int mid = (l + h) >>> 1;
+      if (segment.time(mid) < t) {
+        l = mid + 1;
+      } else {
+        h = mid;
+      }
+    }
+    return offsets[lo] + l;
+  }
+
+  @Override
+  public void maintain() {
+    if (retentionTicks > 0) {
+      long limit = DateTime.currentTime().getValue() - retentionTicks;
+      int expired = upperBound(limit);
+      if (expired > 0) {
+        remove(0, expired);
+      }
+    }
+    // Merge neighbouring sealed segments of the same partition that fit in one segment
+    for (int s = 0; s + 2 < segments.size(); s++) {
+      Segment a = segments.get(s);
+      Segment b = segments.get(s + 1);
+      if ((a.partitionStart == b.partitionStart) && (a.count + b.count <= recordsPerSegment)) {
+        try {
+          segments.set(s, merge(a, b));
+          segments.remove(s + 1);
+          updateOffsets();
+          s--;
+        } catch (IOException e) {
+          logger.error("Cannot merge history segments in {}", directory, e);
+          return;
+        }
+      }
+    }
+  }
+
+  @Override
+  public double numericValue(int i) {
+    int s = segmentOf(i);
+    Segment segment = segments.get(s);
+    int offset = segment.offset(i - offsets[s]);
+    MappedByteBuffer b = segment.buffer();
+    return SampleStore.numeric(b.get(offset + 28), b.getInt(offset + 24), b.getDouble(offset + 16));
+  }
+
+  @Override
+  public void remove(int from, int to) {
+    if (to <= from) {
+      return;
+    }
+    List<Segment> remaining = new ArrayList<Segment>(segments.size());
+    for (int s = 0; s < segments.size(); s++) {
+      Segment segment = segments.get(s);
+      int a = Math.max(from - offsets[s], 0);
+      int b = Math.min(to - offsets[s], segment.count);
+      if (a >= b) {
+        remaining.add(segment);
+      } else if ((a == 0) && (b == segment.count)) {
+        delete(segment);
+      } else {
+        if (a == 0) {
+          // Trimming from the front only moves the start of the segment
+          segment.first += b;
+        } else {
+          int tail = segment.count - b;
+          for (int r = 0; r < tail; r++) {
+            copy(segment, b + r, segment, a + r);
+          }
+        }
+        segment.count -= b - a;
+        segment.writeHeader();
+        segment.updateTimes();
+        remaining.add(segment);
+      }
+    }
+    segments = remaining;
+    updateOffsets();
+  }
+
+  /**
+   * Sets the maximum number of samples to keep. There is no limit by default.
+   */
+  @Override
+  public void resize(int capacity) {
+    this.capacity = capacity;
+    if (size > capacity) {
+      remove(0, size - capacity);
+    }
+  }
+
+  @Override
+  public int size() {
+    return size;
+  }
+
+  @Override
+  public long time(int i) {
+    int s = segmentOf(i);
+    return segments.get(s).time(i - offsets[s]);
+  }
+
+  private void copy(Segment from, int fromRecord, Segment to, int toRecord) {
+    int source = from.offset(fromRecord);
+    int target = to.offset(toRecord);
+    MappedByteBuffer fromBuffer = from.buffer();
+    MappedByteBuffer toBuffer = to.writableBuffer();
+    for (int k = 0; k < RECORD_SIZE; k += 8) {
+      toBuffer.putLong(target + k, fromBuffer.getLong(source + k));
+    }
+  }
+
+  private Segment create(long partitionStart) throws IOException {
+    File file = new File(directory, segmentName(partitionStart, nextSequence++));
+    Segment segment = new Segment(file, map(file, true), partitionStart);
+    segment.buffer.putInt(0, MAGIC);
+    segment.writeHeader();
+    return segment;
+  }
+
+  private void delete(Segment segment) {
+    // The mapping stays valid until it is garbage collected, so concurrent optimistic readers
+    // cannot fault
+    synchronized (openSegments) {
+      openSegments.remove(segment);
+      segment.deleted = true;
+      segment.buffer = null;
+    }
+    if (!segment.file.delete()) {
+      logger.warn("Cannot delete history segment {}", segment.file);
+    }
+  }
+
+  /**
+   * @param writable whether to map the file for writing, which creates it if it does not exist; a
+   *        read-only mapping fails instead
+   */
+  private MappedByteBuffer map(File file, boolean writable) throws IOException {
+    try (RandomAccessFile raf = new RandomAccessFile(file, writable ? "rw" : "r");
+        FileChannel channel = raf.getChannel()) {
+      return channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0,
+          HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE);
+    }
+  }
+
+  /**
+   * Merges two segments into a new one. The new segment is written to a temporary file, and the
+   * journal lists it and its sources before anything is renamed or deleted, see {@link #recover()}.
+   */
+  private Segment merge(Segment a, Segment b) throws IOException {
+    File target = new File(directory, segmentName(a.partitionStart, nextSequence++));
+    File temp = new File(directory, target.getName() + TMP_SUFFIX);
+    writeJournal(target, a.file, b.file);
+    Segment merged = new Segment(target, map(temp, true), a.partitionStart);
+    merged.buffer.putInt(0, MAGIC);
+    for (int r = 0; r < a.count; r++) {
+      copy(a, r, merged, merged.count++);
+    }
+    for (int r = 0; r < b.count; r++) {
+      copy(b, r, merged, merged.count++);
+    }
+    merged.writeHeader();
+    merged.updateTimes();
+    merged.buffer.force();
+    // The mapping follows the file when it is renamed
+    Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    delete(a);
+    delete(b);
+    Files.delete(new File(directory, JOURNAL).toPath());
+    release(merged);
+    return merged;
+  }
+
+  private Segment open(File file) {
+    try {
+      String name = file.getName();
+      long partitionStart = Long.parseLong(name.substring(0, name.indexOf('_')));
+      int sequence = Integer.parseInt(name.substring(name.indexOf('_') + 1, name.length() - SUFFIX.length()));
+      nextSequence = Math.max(nextSequence, sequence + 1);
+      if (file.length() != HEADER_SIZE + (long) recordsPerSegment * RECORD_SIZE) {
+        logger.warn("Ignoring history segment {} with a different segment size", file);
+        return null;
+      }
+      Segment segment = new Segment(file, map(file, true), partitionStart);
+      if (segment.buffer.getInt(0) != MAGIC) {
+        logger.warn("Ignoring invalid history segment {}", file);
+        return null;
+      }
+      segment.first = segment.buffer.getInt(4);
+      segment.count = segment.buffer.getInt(8);
+      segment.updateTimes();
+      return segment;
+    } catch (IOException | RuntimeException e) {
+      logger.warn("Ignoring unreadable history segment {}", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Maps a closed segment again. At most {@link #MAX_OPEN_SEGMENTS} closed segments stay mapped;
+   * the one that was opened first is closed when another one is opened.
+   *
+   * @param writable whether the segment is mapped for writing; readers map it read-only
+   * @throws IllegalStateException if the segment has been deleted; an optimistic reader then
+   *         retries under the read lock, where it no longer sees the segment
+   */
+  private MappedByteBuffer openBuffer(Segment segment, boolean writable) {
+    synchronized (openSegments) {
+      if (segment.deleted) {
+        throw new IllegalStateException("History segment " + segment.file + " has been deleted");
+      }
+      MappedByteBuffer b = segment.buffer;
+      if ((b == null) || (writable && b.isReadOnly())) {
+        try {
+          b = map(segment.file, writable);
+        } catch (IOException e) {
+          throw new UncheckedIOException("Cannot open history segment " + segment.file, e);
+        }
+        segment.buffer = b;
+        openSegments.add(segment);
+        if (openSegments.size() > MAX_OPEN_SEGMENTS) {
+          Iterator<Segment> oldest = openSegments.iterator();
+          Segment closed = oldest.next();
+          oldest.remove();
+          closeBuffer(closed);
+        }
+      }
+      return b;
+    }
+  }
+
+  /**
+   * Completes or discards a merge that was interrupted by a crash. If the merged segment was
+   * renamed to its final name, it has all samples and the sources that still exist are deleted;
+   * otherwise the temporary file is deleted and the sources stay.
+   */
+  private void recover() throws IOException {
+    File journal = new File(directory, JOURNAL);
+    if (journal.isFile()) {
+      List<String> lines = Files.readAllLines(journal.toPath(), StandardCharsets.UTF_8);
+      if ((lines.size() > 1) && new File(directory, lines.get(0)).isFile()) {
+        for (String source : lines.subList(1, lines.size())) {
+          if (Files.deleteIfExists(new File(directory, source).toPath())) {
+            logger.info("Deleted history segment {} that was merged before a restart", source);
+          }
+        }
+      }
+      Files.delete(journal.toPath());
+    }
+    File[] temps = directory.listFiles((dir, name) -> name.endsWith(TMP_SUFFIX));
+    for (File temp : temps == null ? new File[0] : temps) {
+      Files.delete(temp.toPath());
+    }
+  }
+
+  /**
+   * Closes a segment, e.g. when it is sealed. It is mapped again when it is read.
+   */
+  private void release(Segment segment) {
+    synchronized (openSegments) {
+      openSegments.remove(segment);
+      closeBuffer(segment);
+    }
+  }
+
+  private static void closeBuffer(Segment segment) {
+    MappedByteBuffer b = segment.buffer;
+    if (b != null) {
+      if (!b.isReadOnly()) {
+        b.force();
+      }
+      // Readers that hold the buffer can still use it; the mapping is released when it is collected
+      segment.buffer = null;
+    }
+  }
+
+  private static String segmentName(long partitionStart, int sequence) {
+    return String.format("%019d_%06d%s", partitionStart, sequence, SUFFIX);
+  }
+
+  private int segmentOf(int i) {
+    if ((i < 0) || (i >= size)) {
+      throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + size);
+    }
+    // The segments are never empty, so the offsets are strictly increasing
+    int s = Arrays.binarySearch(offsets, i);
+    return s < 0 ? -s - 2 : s;
+  }
+
+  private void updateOffsets() {
+    int[] o = new int[segments.size()];
+    int n = 0;
+    for (int s = 0; s < o.length; s++) {
+      o[s] = n;
+      n += segments.get(s).count;
+    }
+    offsets = o;
+    size = n;
+  }
+
+  private void write(Segment segment, int record, DataValue value) {
+    int offset = segment.offset(record);
+    MappedByteBuffer b = segment.writableBuffer();
+    Object v = value.getValue() == null ? null : value.getValue().getValue();
+    byte kind = SampleStore.kindOf(v);
+    if (kind == KIND_OBJECT) {
+      kind = KIND_NULL;
+    }
+    b.putLong(offset, SampleStore.timeOf(value));
+    b.putLong(offset + 8, value.getServerTimestamp() == null ? 0 : value.getServerTimestamp().getValue());
+    b.putDouble(offset + 16, SampleStore.encode(kind, v));
+    b.putInt(offset + 24, SampleStore.statusBits(value));
+    b.put(offset + 28, kind);
+  }
+
+  private void writeJournal(File merged, File... sources) throws IOException {
+    StringBuilder text = new StringBuilder(merged.getName()).append('\n');
+    for (File source : sources) {
+      text.append(source.getName()).append('\n');
+    }
+    try (FileChannel channel = FileChannel.open(new File(directory, JOURNAL).toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      channel.write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+      channel.force(true);
+    }
+  }
+}
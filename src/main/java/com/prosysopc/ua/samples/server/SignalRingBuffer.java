@@ -0,0 +1,96 @@
+package com.prosysopc.ua.samples.server;
+
+import java.lang.invoke.VarHandle;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free ring buffer for the samples of one signal.
+ * <p>
+ * There must be only one writer, but any number of readers. The writer never waits for the
+ * readers; a reader detects that the samples it copied were overwritten during the copy and simply
+ * tries again.
+ */
+public class SignalRingBuffer {
+
+    private final int mask;
+    private final double[] samples;
+    /** Number of samples written so far; the next sample goes to {@code written & mask}. */
+    private final AtomicLong written = new AtomicLong();
+
+    /**
+     * @param capacity the number of samples to keep, rounded up to a power of two
+     */
+    public SignalRingBuffer(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be a positive value");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        samples = new double[size];
+        mask = size - 1;
+    }
+
+    /**
+     * Appends a sample. Must only be called by the single writer thread.
+     */
+    public void add(double sample) {
+        long n = written.get();
+        samples[(int) (n & mask)] = sample;
+        // Publish the sample: readers that see the new count also see the sample
+        written.lazySet(n + 1);
+    }
+
+    public int getCapacity() {
+        return samples.length;
+    }
+
+    /**
+     * @return the latest sample, or 0 if nothing has been written yet
+     */
+    public double latest() {
+        long n = written.get();
+        return n == 0 ? 0.0 : samples[(int) ((n - 1) & mask)];
+    }
+
+    /**
+     * Copies the latest samples, oldest first, into {@code target}. If fewer samples have been
+     * written than fit into {@code target}, the beginning of the array is filled with the oldest
+     * available sample.
+     *
+     * @param target the array to fill in; must be shorter than {@link #getCapacity()}, so that the
+     *        writer has room to continue during the copy
+     * @return the total number of samples written when the copy was taken
+     */
+    public long copyLatest(double[] target) {
+        final int count = target.length;
+        if (count >= samples.length) {
+            throw new IllegalArgumentException("window must be smaller than the capacity " + samples.length);
+        }
+        while (true) {
+            long end = written.get();
+            long start = Math.max(0, end - count);
+            int offset = (int) (count - (end - start));
+            for (long i = start; i < end; i++) {
+                target[offset + (int) (i - start)] = samples[(int) (i & mask)];
+            }
+            // The copy is valid if the writer did not wrap over the first sample meanwhile
+            VarHandle.loadLoadFence();
+            if (written.get() - start < samples.length) {
+                double first = offset < count ? target[offset] : 0.0;
+                for (int i = 0; i < offset; i++) {
+                    target[i] = first;
+                }
+                return end;
+            }
+        }
+    }
+
+    /**
+     * @return the total number of samples written
+     */
+    public long getWritten() {
+        return written.get();
+    }
+}
@@ -0,0 +1,246 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the simulation of many machines in tick groups.
+ * <p>
+ * Every group has its own tick rate (e.g. 10 ms for the axes, 1 s for the counters). On each tick
+ * the tasks of the group are split into shards and executed in a {@link ForkJoinPool}, so that
+ * idle workers steal shards from busy ones. A tick that is still running when the next one is due
+ * is counted as an overrun and the next tick is skipped instead of queueing up behind it.
+ */
+public class SimulationScheduler {
+
+  /**
+   * A group of simulation tasks that share the same tick rate.
+   */
+  public class TickGroup {
+    private final AtomicLong lastDurationNanos = new AtomicLong();
+    private final String name;
+    private final AtomicLong overruns = new AtomicLong();
+    private final long periodNanos;
+    private final AtomicBoolean running = new AtomicBoolean();
+    private final List<Runnable> tasks = new CopyOnWriteArrayList<Runnable>();
+    private final AtomicLong ticks = new AtomicLong();
+
+    private TickGroup(String name, long periodMillis) {
+      this.name = name;
+      this.periodNanos = TimeUnit.MILLISECONDS.toNanos(periodMillis);
+    }
+
+    /**
+     * @return the duration of the last completed tick in nanoseconds
+     */
+    public long getLastDurationNanos() {
+      return lastDurationNanos.get();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * @return the number of ticks that were skipped or exceeded the period of the group
+     */
+    public long getOverruns() {
+      return overruns.get();
+    }
+
+    public long getPeriodMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(periodNanos);
+    }
+
+    /**
+     * @return the number of completed ticks
+     */
+    public long getTicks() {
+      return ticks.get();
+    }
+
+    private void tick() {
+      if (!running.compareAndSet(false, true)) {
+        // The previous tick is still running: skip this one
+        reportOverrun("skipped, previous tick still running");
+        return;
+      }
+      final Runnable[] snapshot = tasks.toArray(new Runnable[0]);
+      try {
+        pool.execute(() -> run(snapshot));
+      } catch (RejectedExecutionException e) {
+        // The pool is shutting down: release the group so that it is not blocked for good
+        running.set(false);
+        if (!pool.isShutdown()) {
+          logger.warn("Simulation group {} could not be started", name, e);
+        }
+      }
+    }
+
+    private void run(Runnable[] snapshot) {
+      long start = System.nanoTime();
+      try {
+        if (snapshot.length > 0) {
+          new Shard(snapshot, 0, snapshot.length, shardSize(snapshot.length)).invoke();
+        }
+      } catch (RuntimeException e) {
+        logger.error("Simulation error in group {}", name, e);
+      } finally {
+        long duration = System.nanoTime() - start;
+        lastDurationNanos.set(duration);
+        ticks.incrementAndGet();
+        running.set(false);
+        if (duration > periodNanos) {
+          reportOverrun("took " + TimeUnit.NANOSECONDS.toMillis(duration) + " ms");
+        }
+      }
+    }
+
+    private void reportOverrun(String reason) {
+      long count = overruns.incrementAndGet();
+      // Avoid flooding the log when the group is permanently overloaded
+      if (Long.bitCount(count) == 1) {
+        logger.warn("Simulation group {} overrun #{} (period {} ms): {}", name, count, getPeriodMillis(), reason);
+      }
+    }
+  }
+
+  /**
+   * Executes a range of tasks, splitting it in halves until it fits in one shard.
+   */
+  private static class Shard extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int from;
+    private final int shardSize;
+    private final Runnable[] tasks;
+    private final int to;
+
+    Shard(Runnable[] tasks, int from, int to, int shardSize) {
+      this.tasks = tasks;
+      this.from = from;
+      this.to = to;
+      this.shardSize = shardSize;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= shardSize) {
+        for (int i = from; i < to; i++) {
+          try {
+            tasks[i].run();
+          } catch (RuntimeException e) {
+            logger.error("Simulation task failed", e);
+          }
+        }
+      } else {
+        int mid = (from + to) >>> 1;
+        invokeAll(new Shard(tasks, from, mid, shardSize), new Shard(tasks, mid, to, shardSize));
+      }
+    }
+  }
+
+  private static final Logger logger = LoggerFactory.getLogger(SimulationScheduler.class);
+
+  private final Map<String, TickGroup> groups = new ConcurrentHashMap<String, TickGroup>();
+  private final ForkJoinPool pool;
+  private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+    Thread t = new Thread(r, "SimulationTimer");
+    t.setDaemon(true);
+    return t;
+  });
+
+  /**
+   * Creates a scheduler that uses one worker per available processor.
+   */
+  public SimulationScheduler() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * @param parallelism the number of worker threads that execute the shards
+   */
+  public SimulationScheduler(int parallelism) {
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * Adds a simulation task to a tick group. The group is created and started on first use.
+   *
+   * @param groupName the name of the group, e.g. "axes"
+   * @param periodMillis the tick rate of the group; must be the same for all tasks of the group
+   * @param task the task to run on each tick, e.g. the simulation of one machine
+   * @return the group to which the task was added
+   */
+  public TickGroup addTask(String groupName, long periodMillis, Runnable task) {
+    TickGroup group = groups.computeIfAbsent(groupName, name -> startGroup(name, periodMillis));
+    if (group.periodNanos != TimeUnit.MILLISECONDS.toNanos(periodMillis)) {
+      throw new IllegalArgumentException(
+          "Group " + groupName + " already runs at " + group.getPeriodMillis() + " ms, not " + periodMillis + " ms");
+    }
+    group.tasks.add(task);
+    return group;
+  }
+
+  /**
+   * @return the groups of the scheduler
+   */
+  public Iterable<TickGroup> getGroups() {
+    return groups.values();
+  }
+
+  /**
+   * Removes a simulation task from its tick group.
+   *
+   * @param groupName the name of the group
+   * @param task the task to remove
+   */
+  public void removeTask(String groupName, Runnable task) {
+    TickGroup group = groups.get(groupName);
+    if (group != null) {
+      group.tasks.remove(task);
+    }
+  }
+
+  /**
+   * Stops all tick groups and the workers.
+   */
+  public void shutdown() {
+    timer.shutdown();
+    pool.shutdown();
+  }
+
+  private int shardSize(int taskCount) {
+    // A few shards per worker leave room for work stealing
+    return Math.max(1, taskCount / (pool.getParallelism() * 4));
+  }
+
+  private TickGroup startGroup(String name, long periodMillis) {
+    if (periodMillis <= 0) {
+      throw new IllegalArgumentException("periodMillis must be a positive value");
+    }
+    TickGroup group = new TickGroup(name, periodMillis);
+    timer.scheduleAtFixedRate(() -> {
+      // An exception escaping the timer task would cancel the group silently
+      try {
+        group.tick();
+      } catch (Throwable e) {
+        logger.error("Simulation group {} tick failed", name, e);
+      }
+    }, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+    logger.info("Simulation group {} started at {} ms", name, periodMillis);
+    return group;
+  }
+}
@@ -0,0 +1,519 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server;
+
+import java.sql.Array;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.prosysopc.ua.AccessLevels;
+import com.prosysopc.ua.ServiceException;
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.nodes.UaNode;
+import com.prosysopc.ua.samples.util.JdbcConnectionPool;
+import com.prosysopc.ua.server.HistoryContinuationPoint;
+import com.prosysopc.ua.server.HistoryManagerListener;
+import com.prosysopc.ua.server.HistoryResult;
+import com.prosysopc.ua.server.ServiceContext;
+import com.prosysopc.ua.server.nodes.UaVariableNode;
+import com.prosysopc.ua.stack.builtintypes.ByteString;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+import com.prosysopc.ua.stack.core.EventFilter;
+import com.prosysopc.ua.stack.core.HistoryData;
+import com.prosysopc.ua.stack.core.HistoryEvent;
+import com.prosysopc.ua.stack.core.HistoryModifiedData;
+import com.prosysopc.ua.stack.core.HistoryReadDetails;
+import com.prosysopc.ua.stack.core.HistoryReadValueId;
+import com.prosysopc.ua.stack.core.HistoryUpdateDetails;
+import com.prosysopc.ua.stack.core.HistoryUpdateResult;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.PerformUpdateType;
+import com.prosysopc.ua.stack.core.StatusCodes;
+import com.prosysopc.ua.stack.core.TimestampsToReturn;
+import com.prosysopc.ua.stack.utils.NumericRange;
+
+/**
+ * A historian that serves the history of variables from the TimescaleDB tables written by
+ * {@link com.prosysopc.ua.samples.util.TimescaleUtil}.
+ * <p>
+ * Each variable is mapped to one column of the events of one machine in the cnc_energy_events
+ * hypertable. Raw reads are paged with keyset pagination: the continuation point holds the time of
+ * the last returned row and the next page starts right after it, so deep pages cost the same as the
+ * first one. Processed reads are paged in the same way by the start of the next interval. Reads of
+ * one hour or one day averages are answered from the continuous aggregates; other aggregates are
+ * calculated in the database with time_bucket. The values at given times are read with one query
+ * for all the times. The connections are taken from a {@link JdbcConnectionPool}.
+ */
+public class TimescaleHistorian implements HistoryManagerListener {
+  /**
+   * The column of a variable.
+   */
+  private static class Series {
+    final String column;
+    final String eventType;
+    final String machine;
+
+    Series(String machine, String eventType, String column) {
+      this.machine = machine;
+      this.eventType = eventType;
+      this.column = column;
+    }
+  }
+
+  /**
+   * A continuous aggregate that keeps the average of a column.
+   */
+  private static class ContinuousAggregate {
+    final long bucketMillis;
+    final String column;
+    final String eventType;
+    final String valueColumn;
+    final String view;
+
+    ContinuousAggregate(String view, long bucketMillis, String eventType, String column, String valueColumn) {
+      this.view = view;
+      this.bucketMillis = bucketMillis;
+      this.eventType = eventType;
+      this.column = column;
+      this.valueColumn = valueColumn;
+    }
+  }
+
+  /**
+   * The continuation point of a processed read: the start of the next interval.
+   */
+  private static class ProcessedContinuationPoint {
+    final long startMillis;
+
+    ProcessedContinuationPoint(long startMillis) {
+      this.startMillis = startMillis;
+    }
+  }
+
+  /**
+   * The continuation point of a raw read: the time of the last returned row.
+   */
+  private static class RawContinuationPoint {
+    final Timestamp lastTime;
+
+    RawContinuationPoint(Timestamp lastTime) {
+      this.lastTime = lastTime;
+    }
+  }
+
+  /** The continuous aggregates created by TimescaleUtil. */
+  private static final List<ContinuousAggregate> CONTINUOUS_AGGREGATES = Arrays.asList(
+      new ContinuousAggregate("hourly_energy_usage", 3600000L, "ENERGY_SAMPLE", "energy_kwh", "avg_kwh"),
+      new ContinuousAggregate("hourly_energy_usage", 3600000L, "ENERGY_SAMPLE", "current_a", "avg_current"),
+      new ContinuousAggregate("daily_maintenance_trend", 86400000L, "MAINTENANCE_SAMPLE", "spindle_vibration_mm",
+          "avg_vibration"),
+      new ContinuousAggregate("daily_maintenance_trend", 86400000L, "MAINTENANCE_SAMPLE", "bearing_temp",
+          "avg_temperature"));
+  /** The numeric columns of cnc_energy_events; the names are inserted into the SQL text. */
+  private static final Set<String> COLUMNS = new HashSet<String>(Arrays.asList("energy_kwh", "current_a", "voltage_v",
+      "power_factor", "maintenance_due_hours", "tool_usage_minutes", "spindle_vibration_mm", "bearing_temp",
+      "anomaly_value"));
+  private static final long EPOCH_TICKS = 116444736000000000L;
+  private static Logger logger = LoggerFactory.getLogger(TimescaleHistorian.class);
+  /** Upper limit for the rows or intervals of one page, also when the client does not limit them. */
+  private static final int MAX_PAGE_SIZE = 10000;
+
+  private final JdbcConnectionPool pool;
+  private final Map<UaNode, Series> series = new ConcurrentHashMap<UaNode, Series>();
+
+  /**
+   * @param pool the connections to the TimescaleDB database
+   */
+  public TimescaleHistorian(JdbcConnectionPool pool) {
+    this.pool = pool;
+  }
+
+  static DateTime toDateTime(Timestamp timestamp) {
+    long seconds = Math.floorDiv(timestamp.getTime(), 1000L);
+    return new DateTime(EPOCH_TICKS + seconds * 10000000L + timestamp.getNanos() / 100);
+  }
+
+  static Timestamp toTimestamp(DateTime time) {
+    long ticks = time.getValue() - EPOCH_TICKS;
+    Timestamp timestamp = new Timestamp(Math.floorDiv(ticks, 10000000L) * 1000L);
+    timestamp.setNanos((int) (Math.floorMod(ticks, 10000000L) * 100));
+    return timestamp;
+  }
+
+  private static boolean isDefined(DateTime time) {
+    return (time != null) && (time.compareTo(DateTime.MIN_VALUE) > 0);
+  }
+
+  /**
+   * Serve the history of the variable from a column of cnc_energy_events.
+   *
+   * @param variable the variable
+   * @param machine the machine of the events
+   * @param eventType the event type, e.g. ENERGY_SAMPLE
+   * @param column the column of the value, e.g. energy_kwh
+   */
+  public void addVariableHistory(UaVariableNode variable, String machine, String eventType, String column) {
+    if (!COLUMNS.contains(column)) {
+      throw new IllegalArgumentException("Unknown column: " + column);
+    }
+    variable.setAccessLevel(AccessLevels.READ_WRITE_HISTORY_READ);
+    series.put(variable, new Series(machine, eventType, column));
+  }
+
+  @Override
+  public Object onBeginHistoryRead(ServiceContext serviceContext, HistoryReadDetails details,
+      TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
+      HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {
+    return null;
+  }
+
+  @Override
+  public Object onBeginHistoryUpdate(ServiceContext serviceContext, HistoryUpdateDetails[] details,
+      HistoryUpdateResult[] results, DiagnosticInfo[] diagnosticInfos) throws ServiceException {
+    return null;
+  }
+
+  @Override
+  public void onDeleteAtTimes(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime[] reqTimes, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
+      throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onDeleteEvents(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      ByteString[] eventIds, StatusCode[] operationResults, DiagnosticInfo[] operationDiagnostics)
+      throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onDeleteModified(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime startTime, DateTime endTime) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onDeleteRaw(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DateTime startTime, DateTime endTime) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onEndHistoryRead(ServiceContext serviceContext, Object operationContext, HistoryReadDetails details,
+      TimestampsToReturn timestampsToReturn, HistoryReadValueId[] nodesToRead,
+      HistoryContinuationPoint[] continuationPoints, HistoryResult[] results) throws ServiceException {}
+
+  @Override
+  public void onEndHistoryUpdate(ServiceContext serviceContext, Object operationContext, HistoryUpdateDetails[] details,
+      HistoryUpdateResult[] results, DiagnosticInfo[] diagnosticInfos) throws ServiceException {}
+
+  @Override
+  public Object onReadAtTimes(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime[] reqTimes,
+      Boolean useSimpleBounds, NumericRange indexRange, HistoryData historyData) throws StatusException {
+    Series s = getSeries(node);
+    // Stepped interpolation: the last value at or before each requested time, for all times in one query
+    String sql = "SELECT r.i, e." + s.column + " FROM unnest(?::timestamptz[]) WITH ORDINALITY AS r(t, i)"
+        + " LEFT JOIN LATERAL (SELECT " + s.column + " FROM cnc_energy_events WHERE machine = ? AND event_type = ?"
+        + " AND " + s.column + " IS NOT NULL AND time <= r.t ORDER BY time DESC LIMIT 1) e ON true";
+    DataValue[] values = new DataValue[reqTimes.length];
+    Timestamp[] times = new Timestamp[reqTimes.length];
+    for (int i = 0; i < reqTimes.length; i++) {
+      times[i] = toTimestamp(reqTimes[i]);
+    }
+    try (Connection connection = pool.getConnection(); PreparedStatement ps = connection.prepareStatement(sql)) {
+      Array array = connection.createArrayOf("timestamptz", times);
+      try {
+        ps.setArray(1, array);
+        ps.setString(2, s.machine);
+        ps.setString(3, s.eventType);
+        try (ResultSet rs = ps.executeQuery()) {
+          while (rs.next()) {
+            int i = (int) rs.getLong(1) - 1;
+            double v = rs.getDouble(2);
+            values[i] = rs.wasNull() ? noData(reqTimes[i]) : value(v, reqTimes[i]);
+          }
+        }
+      } finally {
+        array.free();
+      }
+    } catch (SQLException e) {
+      throw databaseError(e);
+    }
+    for (int i = 0; i < values.length; i++) {
+      if (values[i] == null) {
+        values[i] = noData(reqTimes[i]);
+      }
+    }
+    historyData.setDataValues(values);
+    return null;
+  }
+
+  @Override
+  public Object onReadEvents(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      Object continuationPoint, DateTime startTime, DateTime endTime, UnsignedInteger numValuesPerNode,
+      EventFilter filter, HistoryEvent historyEvent) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public Object onReadModified(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime,
+      DateTime endTime, UnsignedInteger numValuesPerNode, NumericRange indexRange, HistoryModifiedData historyData)
+      throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public Object onReadProcessed(ServiceContext serviceContext, Object operationContext,
+      TimestampsToReturn timestampsToReturn, NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime,
+      DateTime endTime, Double processingInterval, NodeId aggregateType, AggregateConfiguration aggregateConfiguration,
+      NumericRange indexRange, HistoryData aggregateData) throws StatusException {
+    logger.debug("onReadProcessed: nodeId={}, startTime={}, endtime={}, processingInterval={}", nodeId, startTime,
+        endTime, processingInterval);
+    if (!timestampsToReturn.equals(TimestampsToReturn.Source)) {
+      throw new StatusException(StatusCodes.Bad_TimestampsToReturnInvalid);
+    }
+    Series s = getSeries(node);
+    long interval = processingInterval.longValue();
+    if (!isDefined(startTime) || !isDefined(endTime) || (endTime.compareTo(startTime) <= 0) || (interval <= 0)) {
+      throw new StatusException(StatusCodes.Bad_InvalidArgument);
+    }
+    long start = startTime.getMilliSeconds();
+    long end = endTime.getMilliSeconds();
+    ProcessedContinuationPoint cursor = (ProcessedContinuationPoint) continuationPoint;
+    // The intervals of this page start from the cursor; the buckets stay aligned to the start time
+    long pageStart = cursor == null ? start : cursor.startMillis;
+    int intervals = (int) Math.min(MAX_PAGE_SIZE, (end - pageStart + interval - 1) / interval);
+    long pageEnd = Math.min(end, pageStart + intervals * interval);
+    boolean count = Identifiers.AggregateFunction_Count.equals(aggregateType);
+
+    String sql = null;
+    ContinuousAggregate view = findContinuousAggregate(s, aggregateType, interval, start);
+    if (view != null) {
+      sql = "SELECT bucket, " + view.valueColumn + " FROM " + view.view
+          + " WHERE machine = ? AND bucket >= ? AND bucket < ? ORDER BY bucket";
+    } else {
+      String function = aggregateFunction(aggregateType, s.column);
+      if (function == null) {
+        throw new StatusException(StatusCodes.Bad_AggregateNotSupported);
+      }
+      sql = "SELECT time_bucket(? * INTERVAL '1 millisecond', time, ?) AS bucket, " + function
+          + " FROM cnc_energy_events WHERE machine = ? AND event_type = ? AND " + s.column
+          + " IS NOT NULL AND time >= ? AND time < ? GROUP BY bucket ORDER BY bucket";
+    }
+
+    DataValue[] values = new DataValue[intervals];
+    try (Connection connection = pool.getConnection(); PreparedStatement ps = connection.prepareStatement(sql)) {
+      int p = 1;
+      if (view == null) {
+        ps.setLong(p++, interval);
+        ps.setTimestamp(p++, toTimestamp(startTime));
+      }
+      ps.setString(p++, s.machine);
+      if (view == null) {
+        ps.setString(p++, s.eventType);
+      }
+      ps.setTimestamp(p++, new Timestamp(pageStart));
+      ps.setTimestamp(p++, new Timestamp(pageEnd));
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          int i = (int) ((rs.getTimestamp(1).getTime() - pageStart) / interval);
+          if ((i >= 0) && (i < intervals)) {
+            DateTime time = DateTime.fromMillis(pageStart + i * interval);
+            if (count) {
+              values[i] = count(rs.getInt(2), time);
+            } else {
+              double v = rs.getDouble(2);
+              values[i] = rs.wasNull() ? null : value(v, time);
+            }
+          }
+        }
+      }
+    } catch (SQLException e) {
+      throw databaseError(e);
+    }
+    for (int i = 0; i < intervals; i++) {
+      if (values[i] == null) {
+        DateTime time = DateTime.fromMillis(pageStart + i * interval);
+        values[i] = count ? count(0, time) : noData(time);
+      }
+    }
+    aggregateData.setDataValues(values);
+    return pageEnd < end ? new ProcessedContinuationPoint(pageEnd) : null;
+  }
+
+  @Override
+  public Object onReadRaw(ServiceContext serviceContext, Object operationContext, TimestampsToReturn timestampsToReturn,
+      NodeId nodeId, UaNode node, Object continuationPoint, DateTime startTime, DateTime endTime,
+      UnsignedInteger numValuesPerNode, Boolean returnBounds, NumericRange indexRange, HistoryData historyData)
+      throws StatusException {
+    logger.debug("onReadRaw: startTime={} endTime={} numValuesPerNode={}", startTime, endTime, numValuesPerNode);
+    Series s = getSeries(node);
+    boolean startDefined = isDefined(startTime);
+    boolean endDefined = isDefined(endTime);
+    // Returned from the newest to the oldest if only the end time is defined or the end is before the start
+    boolean backward = (endDefined && !startDefined) || (startDefined && endDefined && endTime.compareTo(startTime) < 0);
+    DateTime lower = backward ? endTime : startTime;
+    DateTime upper = backward ? startTime : endTime;
+    boolean lowerDefined = backward ? endDefined : startDefined;
+    boolean upperDefined = backward ? startDefined : endDefined;
+    String bound = Boolean.TRUE.equals(returnBounds) ? "=" : "";
+    int limit = numValuesPerNode.intValue() == 0 ? MAX_PAGE_SIZE : Math.min(MAX_PAGE_SIZE, numValuesPerNode.intValue());
+    RawContinuationPoint cursor = (RawContinuationPoint) continuationPoint;
+
+    StringBuilder sql = new StringBuilder("SELECT time, ").append(s.column)
+        .append(" FROM cnc_energy_events WHERE machine = ? AND event_type = ? AND ").append(s.column)
+        .append(" IS NOT NULL");
+    if (lowerDefined) {
+      sql.append(" AND time >").append(bound).append(" ?");
+    }
+    if (upperDefined) {
+      sql.append(" AND time <").append(bound).append(" ?");
+    }
+    if (cursor != null) {
+      // Keyset pagination: continue right after the last returned row
+      sql.append(backward ? " AND time < ?" : " AND time > ?");
+    }
+    sql.append(" ORDER BY time ").append(backward ? "DESC" : "ASC").append(" LIMIT ?");
+
+    List<DataValue> values = new ArrayList<DataValue>();
+    Timestamp last = null;
+    boolean more = false;
+    try (Connection connection = pool.getConnection();
+        PreparedStatement ps = connection.prepareStatement(sql.toString())) {
+      int p = 1;
+      ps.setString(p++, s.machine);
+      ps.setString(p++, s.eventType);
+      if (lowerDefined) {
+        ps.setTimestamp(p++, toTimestamp(lower));
+      }
+      if (upperDefined) {
+        ps.setTimestamp(p++, toTimestamp(upper));
+      }
+      if (cursor != null) {
+        ps.setTimestamp(p++, cursor.lastTime);
+      }
+      // One extra row tells whether there is another page
+      ps.setInt(p++, limit + 1);
+      try (ResultSet rs = ps.executeQuery()) {
+        while (rs.next()) {
+          if (values.size() == limit) {
+            more = true;
+            break;
+          }
+          last = rs.getTimestamp(1);
+          values.add(value(rs.getDouble(2), toDateTime(last)));
+        }
+      }
+    } catch (SQLException e) {
+      throw databaseError(e);
+    }
+    historyData.setDataValues(values.toArray(new DataValue[values.size()]));
+    return more ? new RawContinuationPoint(last) : null;
+  }
+
+  @Override
+  public void onUpdateData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DataValue[] updateValues, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onUpdateEvent(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      Variant[] eventFields, EventFilter filter, PerformUpdateType performInsertReplace, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  @Override
+  public void onUpdateStructureData(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
+      DataValue[] updateValues, PerformUpdateType performUpdateType, StatusCode[] operationResults,
+      DiagnosticInfo[] operationDiagnostics) throws StatusException {
+    throw new StatusException(StatusCodes.Bad_HistoryOperationUnsupported);
+  }
+
+  private String aggregateFunction(NodeId aggregateType, String column) {
+    if (Identifiers.AggregateFunction_Average.equals(aggregateType)) {
+      return "AVG(" + column + ")";
+    } else if (Identifiers.AggregateFunction_Minimum.equals(aggregateType)) {
+      return "MIN(" + column + ")";
+    } else if (Identifiers.AggregateFunction_Maximum.equals(aggregateType)) {
+      return "MAX(" + column + ")";
+    } else if (Identifiers.AggregateFunction_Count.equals(aggregateType)) {
+      return "COUNT(" + column + ")";
+    } else if (Identifiers.AggregateFunction_Start.equals(aggregateType)) {
+      return "first(" + column + ", time)";
+    } else if (Identifiers.AggregateFunction_End.equals(aggregateType)) {
+      return "last(" + column + ", time)";
+    }
+    return null;
+  }
+
+  private DataValue count(int count, DateTime time) {
+    return new DataValue(new Variant(count), StatusCode.GOOD, time, UnsignedShort.ZERO, null, null);
+  }
+
+  private StatusException databaseError(SQLException e) {
+    logger.error("TimescaleDB history read failed", e);
+    return new StatusException(StatusCodes.Bad_ResourceUnavailable);
+  }
+
+  private ContinuousAggregate findContinuousAggregate(Series s, NodeId aggregateType, long interval, long start) {
+    if (!Identifiers.AggregateFunction_Average.equals(aggregateType)) {
+      return null;
+    }
+    for (ContinuousAggregate view : CONTINUOUS_AGGREGATES) {
+      // The buckets of the views are aligned to UTC midnight
+      if (view.eventType.equals(s.eventType) && view.column.equals(s.column) && (view.bucketMillis == interval)
+          && (start % interval == 0)) {
+        return view;
+      }
+    }
+    return null;
+  }
+
+  private Series getSeries(UaNode node) throws StatusException {
+    Series s = series.get(node);
+    if (s == null) {
+      throw new StatusException(StatusCodes.Bad_NoData);
+    }
+    return s;
+  }
+
+  private DataValue noData(DateTime time) {
+    return new DataValue(Variant.NULL, StatusCode.valueOf(StatusCodes.Bad_NoData), time, UnsignedShort.ZERO, null,
+        null);
+  }
+
+  private DataValue value(double value, DateTime time) {
+    return new DataValue(new Variant(value), StatusCode.GOOD, time, UnsignedShort.ZERO, null, null);
+  }
+}
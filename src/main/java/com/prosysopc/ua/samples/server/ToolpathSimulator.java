@@ -0,0 +1,147 @@
+package com.prosysopc.ua.samples.server;
+
+import java.util.Random;
+
+/**
+ * Simulates the axis positions and cutting forces of the machine at a high sample rate.
+ * <p>
+ * The tool follows a circular pocket path with a slow depth step down to the pocket floor, after
+ * which the next pass starts again at the top of the pocket; the cutting forces follow the
+ * feed direction and oscillate with the tooth passing frequency of the spindle. Each call of
+ * {@link #tick()} generates all samples that are due since the previous call, so the sample rate
+ * (e.g. 1 kHz) is independent of the tick rate (e.g. 10 ms). The samples are kept in one
+ * {@link SignalRingBuffer} per signal.
+ */
+public class ToolpathSimulator {
+
+    public enum Signal {
+        X, Y, Z, FORCE_X, FORCE_Y, FORCE_Z
+    }
+
+    private static final int TEETH = 4;
+    /** Depth of the pocket in mm, reached in steps of {@link #DEPTH_STEP} per revolution. */
+    private static final double POCKET_DEPTH = 10.0;
+    private static final double DEPTH_STEP = 0.5;
+    /** Upper limit for the samples generated per tick, e.g. after the thread was suspended. */
+    private static final int MAX_SAMPLES_PER_TICK = 10_000;
+
+    private final SignalRingBuffer[] buffers = new SignalRingBuffer[Signal.values().length];
+    private final double dt;
+    private volatile double feedRate = 1200.0;
+    private volatile boolean homeRequested;
+    private long lastTickNanos;
+    private double pathAngle;
+    /** Z of the top of the pocket, where each pass starts. */
+    private double pocketTop = -45.678;
+    private final Random rng = new Random();
+    private final long sampleNanos;
+    private double spindleAngle;
+    private volatile double spindleSpeed = 8500.0;
+    private double x = 125.847, y = 89.234, z = -45.678;
+
+    /**
+     * @param sampleRateHz the number of samples per second for each signal
+     * @param capacity the number of samples to keep for each signal
+     */
+    public ToolpathSimulator(int sampleRateHz, int capacity) {
+        this.dt = 1.0 / sampleRateHz;
+        this.sampleNanos = 1_000_000_000L / sampleRateHz;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new SignalRingBuffer(capacity);
+        }
+    }
+
+    public SignalRingBuffer getBuffer(Signal signal) {
+        return buffers[signal.ordinal()];
+    }
+
+    /**
+     * Moves the axes to zero. The move is done by the simulation thread on its next tick.
+     */
+    public void home() {
+        homeRequested = true;
+    }
+
+    /**
+     * @return the latest sample of the signal
+     */
+    public double latest(Signal signal) {
+        return buffers[signal.ordinal()].latest();
+    }
+
+    /**
+     * Sets the process parameters that drive the toolpath and the forces.
+     *
+     * @param spindleSpeed spindle speed in rpm
+     * @param feedRate feed rate in mm/min
+     */
+    public void setProcessParameters(double spindleSpeed, double feedRate) {
+        this.spindleSpeed = spindleSpeed;
+        this.feedRate = feedRate;
+    }
+
+    /**
+     * Generates the samples that are due. Must always be called from the same thread (or at least
+     * never concurrently), since the ring buffers support only a single writer.
+     */
+    public void tick() {
+        long now = System.nanoTime();
+        if (lastTickNanos == 0) {
+            lastTickNanos = now - sampleNanos;
+        }
+        int due = (int) Math.min(MAX_SAMPLES_PER_TICK, (now - lastTickNanos) / sampleNanos);
+        lastTickNanos += due * sampleNanos;
+        if (due == MAX_SAMPLES_PER_TICK) {
+            lastTickNanos = now;
+        }
+        if (homeRequested) {
+            homeRequested = false;
+            x = 0;
+            y = 0;
+            z = 0;
+            pocketTop = 0;
+            pathAngle = 0;
+        }
+        for (int i = 0; i < due; i++) {
+            step();
+        }
+    }
+
+    private void step() {
+        final double radius = 20.0;
+        double feed = feedRate / 60.0; // mm/s
+        double rpm = spindleSpeed;
+
+        // Circular pocket path, the depth steps down once per revolution until the pocket floor
+        double dAngle = feed * dt / radius;
+        double prevAngle = pathAngle;
+        pathAngle += dAngle;
+        double vx = -Math.sin(pathAngle);
+        double vy = Math.cos(pathAngle);
+        x += radius * (Math.cos(pathAngle) - Math.cos(prevAngle));
+        y += radius * (Math.sin(pathAngle) - Math.sin(prevAngle));
+        if (Math.floor(pathAngle / (2 * Math.PI)) != Math.floor(prevAngle / (2 * Math.PI))) {
+            z -= DEPTH_STEP;
+            if (z < pocketTop - POCKET_DEPTH) {
+                // The pass is finished: start the next one at the top of the pocket
+                z = pocketTop;
+            }
+            // Keep the angle small, so the path does not lose precision over time
+            pathAngle -= 2 * Math.PI;
+        }
+
+        // Cutting force: mean force along the feed direction plus tooth passing oscillation
+        spindleAngle += rpm / 60.0 * 2 * Math.PI * dt;
+        double chipLoad = rpm > 0 ? feedRate / (rpm * TEETH) : 0;
+        double mean = 4000.0 * chipLoad;
+        double oscillation = 0.3 * mean * Math.sin(TEETH * spindleAngle);
+        double noise = rng.nextGaussian() * 2.0;
+
+        buffers[Signal.X.ordinal()].add(x);
+        buffers[Signal.Y.ordinal()].add(y);
+        buffers[Signal.Z.ordinal()].add(z);
+        buffers[Signal.FORCE_X.ordinal()].add((mean + oscillation) * vx + noise);
+        buffers[Signal.FORCE_Y.ordinal()].add((mean + oscillation) * vy + noise);
+        buffers[Signal.FORCE_Z.ordinal()].add(2.0 * mean + 0.5 * oscillation + noise);
+    }
+}
@@ -7,8 +7,10 @@
 package com.prosysopc.ua.samples.server;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 import com.prosysopc.ua.AggregateCalculator;
 import com.prosysopc.ua.StatusException;
@@ -20,6 +22,7 @@ import com.prosysopc.ua.server.nodes.UaVariableNode;
 import com.prosysopc.ua.stack.builtintypes.DataValue;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.DiagnosticInfo;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
 import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
 import com.prosysopc.ua.stack.core.Identifiers;
@@ -27,28 +30,75 @@ import com.prosysopc.ua.stack.core.StatusCodes;
 
 /**
  * A sample class for keeping a history of a variable node.
+ * <p>
+ * The samples are kept in a {@link SampleStore}: by default an in-memory {@link SampleRing}, so
+ * recording a sample is O(1) also when the history is full. Writers take the write lock of a
+ * {@link StampedLock}; readers first try an optimistic (seqlock style) read without locking and only
+ * take the read lock if a write happened meanwhile.
+ * <p>
+ * Besides the samples, the history keeps {@link Rollups} for answering the common aggregates
+ * without scanning the raw values.
  */
 class ValueHistory implements AggregateCalculator.HistoryDataProvider {
+  /** Good, with the InfoType DataValue and the historian bits Interpolated */
+  private static final int STATUS_INTERPOLATED = 0x00000402;
   private int capacity = 10000;
   private final DataChangeListener listener = new DataChangeListener() {
 
     @Override
     public void onDataChange(UaNode uaNode, DataValue prevValue, DataValue value) {
-      values.add(value);
-      while (values.size() > capacity) {
-        values.remove(0);
+      HistoryWriteQueue queue = writeQueue;
+      if (queue != null) {
+        queue.add(ValueHistory.this, value);
+      } else {
+        record(value);
       }
     }
   };
-  private final List<DataValue> values = new CopyOnWriteArrayList<DataValue>();
+  private final StampedLock lock = new StampedLock();
+  private final Rollups rollups;
+  private final SampleStore values;
   private final UaVariable variable;
+  private volatile HistoryWriteQueue writeQueue;
 
   public ValueHistory(UaVariableNode variable) {
     super();
     this.variable = variable;
+    this.values = new SampleRing(capacity);
+    this.rollups = new Rollups(isStepped());
+    variable.addDataChangeListener(listener);
+  }
+
+  /**
+   * Create a history that keeps the samples in the given store, e.g. a persistent
+   * {@link SegmentStore}. The capacity is not limited by default. The rollups only cover the
+   * samples recorded after this, so reads of the samples already in the store use the raw data.
+   */
+  public ValueHistory(UaVariableNode variable, SampleStore store) {
+    super();
+    this.variable = variable;
+    this.values = store;
+    this.capacity = Integer.MAX_VALUE;
+    this.rollups = new Rollups(isStepped());
+    if (store.size() > 0) {
+      rollups.startAfter(store.time(store.size() - 1));
+    }
     variable.addDataChangeListener(listener);
   }
 
+  /**
+   * Stop recording and release the store.
+   */
+  public void close() {
+    ((UaVariableNode) variable).removeDataChangeListener(listener);
+    long stamp = lock.writeLock();
+    try {
+      values.close();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
   /**
    * @param reqTimes
    * @param operationResults
@@ -72,26 +122,20 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @throws StatusException
    */
   public void deleteRaw(DateTime startTime, DateTime endTime) throws StatusException {
-    int i = 0;
     // boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) >
     // 0;
     boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
     if (!endTimeDefined) {
       throw new StatusException(StatusCodes.Bad_InvalidArgument);
     }
-    while (values.size() > i) {
-      DataValue value = values.get(i);
-      DateTime t = value.getSourceTimestamp();
-      if (t == null) {
-        t = value.getServerTimestamp();
-      }
-      if (t.compareTo(startTime) >= 0) {
-        values.remove(i);
-      } else if (t.compareTo(endTime) >= 0) {
-        break;
-      } else {
-        i++;
-      }
+    final long start = startTime.getValue();
+    final long end = endTime.getValue();
+    long stamp = lock.writeLock();
+    try {
+      values.remove(values.lowerBound(start), values.lowerBound(end));
+      rollups.invalidate();
+    } finally {
+      lock.unlockWrite(stamp);
     }
   }
 
@@ -114,6 +158,18 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
     return variable;
   }
 
+  /**
+   * Run the housekeeping of the store, such as retention and compaction.
+   */
+  public void maintain() {
+    long stamp = lock.writeLock();
+    try {
+      values.maintain();
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
   /**
    * Define whether the data should be interpreted as Stepped or Sloped, i.e. the values stay as
    * they are until the next value is recorded
@@ -127,6 +183,11 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
   }
 
   /**
+   * Read the values at the requested times. Stepped variables return the last value at or before
+   * each time; for sloped variables (see {@link #isStepped()}) the value is interpolated linearly
+   * between the samples around the time. The requested times are sorted and interpolated in one
+   * batch, see {@link Interpolation}.
+   *
    * @param reqTimes
    * @return
    */
@@ -134,11 +195,54 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
     if (reqTimes == null) {
       return null;
     }
-    DataValue[] values = new DataValue[reqTimes.length];
-    for (int i = 0; i < reqTimes.length; i++) {
+    final int n = reqTimes.length;
+    final long[] ts = new long[n];
+    final Integer[] order = new Integer[n];
+    for (int i = 0; i < n; i++) {
+      ts[i] = reqTimes[i].getValue();
+      order[i] = i;
+    }
+    Arrays.sort(order, (a, b) -> Long.compare(ts[a], ts[b]));
+    final long[] sorted = new long[n];
+    for (int k = 0; k < n; k++) {
+      sorted[k] = ts[order[k]];
+    }
+    final boolean sloped = !isStepped();
+    final double[] interpolated = new double[n];
+    DataValue[] found = read(() -> {
+      DataValue[] result = new DataValue[n];
+      if (n == 0) {
+        return result;
+      }
+      // The samples around the requested times, in primitive arrays
+      int from = Math.max(0, values.upperBound(sorted[0]) - 1);
+      int to = Math.min(values.size(), values.upperBound(sorted[n - 1]) + 1);
+      int count = Math.max(0, to - from);
+      long[] times = new long[count];
+      double[] numbers = new double[count];
+      for (int i = 0; i < count; i++) {
+        times[i] = values.time(from + i);
+        numbers[i] = sloped ? values.numericValue(from + i) : Double.NaN;
+      }
+      int[] index = new int[n];
+      double[] out = new double[n];
+      Interpolation.interpolate(times, numbers, count, sorted, n, index, out);
+      for (int k = 0; k < n; k++) {
+        result[order[k]] = index[k] < 0 ? null : values.get(from + index[k]);
+        interpolated[order[k]] = out[k];
+      }
+      return result;
+    });
+    DataValue[] values = new DataValue[n];
+    for (int i = 0; i < n; i++) {
       DateTime t = reqTimes[i];
-      // Stepped interpolation used to get values
-      DataValue v = getValue(t);
+      DataValue v = found[i];
+      if ((v != null) && !Double.isNaN(interpolated[i]) && (SampleStore.timeOf(v) != ts[i])) {
+        Object o = v.getValue().getValue();
+        values[i] = new DataValue(SampleStore.decode(SampleStore.kindOf(o), interpolated[i]),
+            SampleStore.statusOf(STATUS_INTERPOLATED), t, UnsignedShort.ZERO, null, null);
+        continue;
+      }
       values[i] = new DataValue(v == null ? null : v.getValue(),
           v == null ? StatusCode.valueOf(StatusCodes.Bad_NoData) : v.getStatusCode(), t, UnsignedShort.ZERO, null,
           null);
@@ -149,26 +253,38 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
 
   @Override
   public DataValue readFirstAfterTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
-    int i = values.size() - 1;
-    while ((i >= 0) && ((values.get(i).getSourceTimestamp().compareTo(timeStamp) > 0)
-        || includeValueAtTimestamp && (values.get(i).getSourceTimestamp().compareTo(timeStamp) == 0))) {
-      i--;
-    }
-    return i < 0 || i == values.size() - 1 ? null : values.get(i + 1);
+    final long ts = timeStamp.getValue();
+    return read(() -> {
+      int i = includeValueAtTimestamp ? values.lowerBound(ts) : values.upperBound(ts);
+      return i == 0 || i == values.size() ? null : values.get(i);
+    });
   }
 
   @Override
   public DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
-    int i = 0;
-    while ((i < values.size()) && ((values.get(i).getSourceTimestamp().compareTo(timeStamp) < 0)
-        || includeValueAtTimestamp && (values.get(i).getSourceTimestamp().compareTo(timeStamp) == 0))) {
-      i++;
-    }
-    if (i == 0) {
+    final long ts = timeStamp.getValue();
+    return read(() -> {
+      int i = includeValueAtTimestamp ? values.upperBound(ts) : values.lowerBound(ts);
+      return i == 0 || i == values.size() ? null : values.get(i - 1);
+    });
+  }
+
+  /**
+   * Calculate an aggregate from the pre-aggregated rollups of the history.
+   *
+   * @param startTime the start of the first interval
+   * @param endTime the end of the last interval
+   * @param processingInterval the length of the intervals in milliseconds
+   * @param aggregateType the aggregate to calculate
+   * @return the aggregate for each interval, or null if the request cannot be answered from the
+   *         rollups and must be calculated from the raw values
+   */
+  public DataValue[] readProcessed(DateTime startTime, DateTime endTime, double processingInterval,
+      NodeId aggregateType) {
+    if (!Rollups.isSupported(aggregateType)) {
       return null;
-    } else {
-      return i == values.size() ? null : values.get(i - 1);
     }
+    return read(() -> rollups.read(startTime, endTime, processingInterval, aggregateType));
   }
 
   /**
@@ -178,153 +294,98 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @param endTime the end of the interval
    * @param maxValues maximum number of values to return
    * @param returnBounds whether values at the ends of the interval should be returned as well
-   * @param firstIndex the index of the first entry in the history data to return (i.e. the
-   *        continuationPoint returned for the previous request)
+   * @param cursor the position after the last value of the previous page (i.e. the
+   *        continuationPoint returned for the previous request), or null for the first page
    * @param history the list of values to fill in
-   * @return the first index that was not added to the history, in case there are more than
-   *         maxValues entries to return (i.e. the continuationPoint to return)
+   * @return the position after the last added value, in case there are more than maxValues
+   *         entries to return (i.e. the continuationPoint to return)
    */
-  public Integer readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds, int firstIndex,
-      List<DataValue> history) {
-    int i = 0;
-    boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
-    boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-
-    if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
-      // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
-      for (DataValue value : values) {
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0))) {
-          break;
-        } else {
-          final int compareToStart = t.compareTo(startTime);
-          if ((compareToStart > 0) || (returnBounds && (compareToStart == 0))) {
-            if (i >= firstIndex) {
-              history.add(value);
-            }
-            i++;
-            if (history.size() == maxValues) {
-              return i;
-            }
-          }
-        }
-      }
-    } else if (endTimeDefined && startTimeDefined && endTime.compareTo(startTime) < 0) {
-      // Support for defining both start time and end time
-      // where start time is AFTER end time
-      // Values belonging to the interval are returned starting with the newest
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToStart = t.compareTo(startTime);
-        if ((compareToStart > 0) || (!returnBounds && (compareToStart == 0))) {
-          continue;
-        } else {
-          final int compareToEnd = t.compareTo(endTime);
-          if ((compareToEnd > 0) || (returnBounds && (compareToEnd == 0))) {
-            if (i >= firstIndex) {
-              history.add(value);
-            }
-            i++;
-            if (history.size() == maxValues) {
-              return i;
-            }
-          }
-        }
+  public HistoryCursor readRaw(DateTime startTime, DateTime endTime, int maxValues, boolean returnBounds,
+      HistoryCursor cursor, List<DataValue> history) {
+    final boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
+    final boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
+    final long start = startTime.getValue();
+    final long end = endTime.getValue();
+    final List<DataValue> page = new ArrayList<DataValue>();
+    HistoryCursor continuationPoint = read(() -> {
+      page.clear();
+      int[] range = range(start, end, startTimeDefined, endTimeDefined, returnBounds, returnBounds);
+      boolean forward = range[2] > 0;
+      // Seek directly to the entry after the cursor
+      int i;
+      if (cursor == null) {
+        i = forward ? range[0] : range[1] - 1;
+      } else if (forward) {
+        i = Math.max(range[0], values.lowerBound(cursor.getTime()) + cursor.getSeq());
+      } else {
+        i = Math.min(range[1], values.upperBound(cursor.getTime()) - cursor.getSeq()) - 1;
       }
-    } else {
-      // endTimeDefined && !startTimeDefined
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = t.compareTo(endTime);
-        if ((compareToEnd > 0) || (!returnBounds && (compareToEnd == 0))) {
-          continue;
-        } else {
-          if (i >= firstIndex) {
-            history.add(value);
-          }
-          i++;
-          if (history.size() == maxValues) {
-            return i;
+      for (; forward ? i < range[1] : i >= range[0]; i += forward ? 1 : -1) {
+        page.add(values.get(i));
+        if (page.size() == maxValues) {
+          boolean more = forward ? i + 1 < range[1] : i > range[0];
+          if (!more) {
+            return null;
           }
+          long t = values.time(i);
+          return new HistoryCursor(t, forward ? i - values.lowerBound(t) + 1 : values.upperBound(t) - i);
         }
       }
-    }
-    return null;
+      return null;
+    });
+    history.addAll(page);
+    return continuationPoint;
   }
 
   @Override
   public List<DataValue> readRawAll(DateTime startTime, DateTime endTime, boolean returnStartBound,
       boolean returnEndBound) throws StatusException {
-    List<DataValue> rawValues = new ArrayList<DataValue>();
-    boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
-    boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
-
-    if (!endTimeDefined || (endTime.compareTo(startTime) >= 0 && startTimeDefined)) {
-      // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
-      for (DataValue value : values) {
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = endTimeDefined ? t.compareTo(endTime) : -1;
-        if ((compareToEnd > 0) || (!returnEndBound && (compareToEnd == 0))) {
-          break;
-        } else {
-          final int compareToStart = t.compareTo(startTime);
-          if ((compareToStart > 0) || (returnStartBound && (compareToStart == 0))) {
-            rawValues.add(value);
-          }
+    final boolean startTimeDefined = startTime.compareTo(DateTime.MIN_VALUE) > 0;
+    final boolean endTimeDefined = endTime.compareTo(DateTime.MIN_VALUE) > 0;
+    final long start = startTime.getValue();
+    final long end = endTime.getValue();
+    return read(() -> {
+      List<DataValue> rawValues = new ArrayList<DataValue>();
+      int[] range = range(start, end, startTimeDefined, endTimeDefined, returnStartBound, returnEndBound);
+      if (range[2] > 0) {
+        for (int j = range[0]; j < range[1]; j++) {
+          rawValues.add(values.get(j));
         }
-      }
-    } else if (startTimeDefined && endTimeDefined && endTime.compareTo(startTime) < 0) {
-      // Support for defining both start time and end time
-      // where start time is AFTER end time
-      // Values belonging to the interval are returned starting with the newest
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToStart = t.compareTo(startTime);
-        if ((compareToStart > 0) || (!returnStartBound && (compareToStart == 0))) {
-          continue;
-        } else {
-          final int compareToEnd = t.compareTo(endTime);
-          if ((compareToEnd > 0) || (returnEndBound && (compareToEnd == 0))) {
-            rawValues.add(value);
-          }
+      } else {
+        for (int j = range[1] - 1; j >= range[0]; j--) {
+          rawValues.add(values.get(j));
         }
       }
-    } else {
-      // !startTimeDefined && endTimeDefined
-      for (int j = values.size() - 1; j >= 0; j--) {
-        DataValue value = values.get(j);
-        DateTime t = value.getSourceTimestamp();
-        if (t == null) {
-          t = value.getServerTimestamp();
-        }
-        final int compareToEnd = t.compareTo(endTime);
-        if ((compareToEnd > 0) || (!returnEndBound && (compareToEnd == 0))) {
-          continue;
-        } else {
-          rawValues.add(value);
-        }
+      return rawValues;
+    });
+  }
+
+  /**
+   * Store a new sample.
+   */
+  void record(DataValue value) {
+    long stamp = lock.writeLock();
+    try {
+      values.add(value);
+      rollups.add(value);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Store a batch of new samples with one lock acquisition.
+   */
+  void record(List<DataValue> batch) {
+    long stamp = lock.writeLock();
+    try {
+      for (DataValue value : batch) {
+        values.add(value);
+        rollups.add(value);
       }
+    } finally {
+      lock.unlockWrite(stamp);
     }
-    return rawValues;
   }
 
   /**
@@ -334,7 +395,23 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
     if (capacity < 0) {
       throw new IllegalArgumentException("capacity must be a positive value");
     }
-    this.capacity = capacity;
+    long stamp = lock.writeLock();
+    try {
+      this.capacity = capacity;
+      values.resize(capacity);
+    } finally {
+      lock.unlockWrite(stamp);
+    }
+  }
+
+  /**
+   * Record the new values through the write-behind queue instead of in the data change listener.
+   * The queued values become readable once the historian thread has stored them.
+   *
+   * @param writeQueue the queue, or null to record the values directly
+   */
+  public void setWriteQueue(HistoryWriteQueue writeQueue) {
+    this.writeQueue = writeQueue;
   }
 
   /**
@@ -344,15 +421,17 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
    * @throws StatusException if no sample with the given timestamp is found
    */
   private void deleteAtTime(DateTime timestamp) throws StatusException {
-    boolean found = false;
-    for (int i = values.size() - 1; i >= 0; i--) {
-      int compareTo = timestamp.compareTo(values.get(i).getSourceTimestamp());
-      if (compareTo == 0) {
-        values.remove(i);
-        found = true;
-      } else if (compareTo < 0) {
-        break;
-      }
+    final long ts = timestamp.getValue();
+    boolean found;
+    long stamp = lock.writeLock();
+    try {
+      int from = values.lowerBound(ts);
+      int to = values.upperBound(ts);
+      found = to > from;
+      values.remove(from, to);
+      rollups.invalidate();
+    } finally {
+      lock.unlockWrite(stamp);
     }
     if (!found) {
       throw new StatusException(StatusCodes.Bad_NoData);
@@ -361,20 +440,65 @@ class ValueHistory implements AggregateCalculator.HistoryDataProvider {
   }
 
   /**
-   * Find the value at the given time from the history using stepped interpolation.
+   * Find the value at the given time from the history.
    *
    * @param requestedTime the requested time for the value
-   * @return the last value with a smaller or equal timestamp than the requestedTime
+   * @return the value at the requestedTime, interpolated for sloped variables
    */
   private DataValue getValue(DateTime requestedTime) {
-    // a "brute" find starting from the end
-    int i = values.size() - 1;
-    while ((i >= 0) && (values.get(i).getSourceTimestamp().compareTo(requestedTime) > 0)) {
-      i--;
+    return readAtTimes(new DateTime[] {requestedTime})[0];
+  }
+
+  /**
+   * Runs a reader against the samples. The reader is first run optimistically without locking; if
+   * a writer modified the samples meanwhile, the result is discarded and the reader is run again
+   * under the read lock. The reader must therefore not have side effects outside its result.
+   */
+  private <T> T read(Supplier<T> reader) {
+    long stamp = lock.tryOptimisticRead();
+    if (stamp != 0) {
+      try {
+        T result = reader.get();
+        if (lock.validate(stamp)) {
+          return result;
+        }
+      } catch (RuntimeException e) {
+        // A concurrent write produced an inconsistent view, retry below with the read lock
+      }
+    }
+    stamp = lock.readLock();
+    try {
+      return reader.get();
+    } finally {
+      lock.unlockRead(stamp);
+    }
+  }
+
+  /**
+   * Locate the samples of a raw read with binary searches.
+   *
+   * @return {from, to, forward}: the logical index range [from, to) of the matching samples and 1
+   *         if they are returned from the oldest to the newest or 0 if from the newest to the oldest
+   */
+  private int[] range(long start, long end, boolean startTimeDefined, boolean endTimeDefined,
+      boolean returnStartBound, boolean returnEndBound) {
+    if (!endTimeDefined || (end >= start && startTimeDefined)) {
+      // Also covers !endTimeDefined && !startTimeDefined, which returns all available history
+      int from = returnStartBound ? values.lowerBound(start) : values.upperBound(start);
+      int to = !endTimeDefined ? values.size() : returnEndBound ? values.upperBound(end) : values.lowerBound(end);
+      return new int[] {from, Math.max(from, to), 1};
+    } else if (startTimeDefined && endTimeDefined && end < start) {
+      // Support for defining both start time and end time
+      // where start time is AFTER end time
+      // Values belonging to the interval are returned starting with the newest
+      int from = returnEndBound ? values.lowerBound(end) : values.upperBound(end);
+      int to = returnStartBound ? values.upperBound(start) : values.lowerBound(start);
+      return new int[] {from, Math.max(from, to), 0};
+    } else {
+      // !startTimeDefined && endTimeDefined
+      int to = returnEndBound ? values.upperBound(end) : values.lowerBound(end);
+      return new int[] {0, to, 0};
     }
-    // TODO: Should actually use sloped interpolation for analog values (id isStepped() returns
-    // true)
-    return i < 0 ? null : values.get(i);
   }
 
 }
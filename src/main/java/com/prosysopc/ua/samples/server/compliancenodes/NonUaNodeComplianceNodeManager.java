@@ -6,11 +6,9 @@
  */
 package com.prosysopc.ua.samples.server.compliancenodes;
 
-import java.util.Collection;
 import java.util.Locale;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.CopyOnWriteArrayList;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +20,8 @@ import com.prosysopc.ua.nodes.UaNode;
 import com.prosysopc.ua.nodes.UaReference;
 import com.prosysopc.ua.nodes.UaReferenceType;
 import com.prosysopc.ua.nodes.UaValueNode;
+import com.prosysopc.ua.samples.server.AttributeTable;
+import com.prosysopc.ua.samples.server.DataChangeFanout;
 import com.prosysopc.ua.server.IoManager;
 import com.prosysopc.ua.server.MonitoredDataItem;
 import com.prosysopc.ua.server.MonitoredItem;
@@ -65,41 +65,16 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
     @Override
     protected void readNonValue(ServiceContext serviceContext, Object operationContext, NodeId nodeId, UaNode node,
         UnsignedInteger attributeId, DataValue dataValue) throws StatusException {
-      Object value = null;
-      final ExpandedNodeId expandedNodeId = getNamespaceTable().toExpandedNodeId(nodeId);
-      if (attributeId.equals(Attributes.NodeId)) {
-        value = nodeId;
-      } else if (attributeId.equals(Attributes.BrowseName)) {
-        value = getBrowseName(expandedNodeId, node);
-      } else if (attributeId.equals(Attributes.DisplayName)) {
-        value = getDisplayName(expandedNodeId, node, null);
-      } else if (attributeId.equals(Attributes.Description)) {
-        value = null;
-      } else if (attributeId.equals(Attributes.NodeClass)) {
-        value = getNodeClass(expandedNodeId, node);
-      } else if (attributeId.equals(Attributes.WriteMask)) {
-        value = UnsignedInteger.ZERO;
-      } else if (attributeId.equals(Attributes.DataType)) {
-        if (DATA_ITEM_TYPE_NAME.equals(nodeId.getValue())) {
-          value = Identifiers.BaseDataType;
-        } else {
-          value = getDataItem(nodeId).getDataType();
-        }
-      } else if (attributeId.equals(Attributes.ValueRank)) {
-        value = ValueRanks.Scalar;
-      } else if (attributeId.equals(Attributes.ArrayDimensions)) {
-        value = null;
-      } else if (attributeId.equals(Attributes.AccessLevel)) {
-        value = AccessLevels.READ_WRITE.asBuiltInType();
-      } else if (attributeId.equals(Attributes.Historizing)) {
-        value = false;
-      } else if (attributeId.equals(Attributes.EventNotifier) && DATA_ITEM_FOLDER_NAME.equals(nodeId.getValue())) {
-        value = EventNotifierType.of();
-      } else {
+      AttributeTable table = attributes.get(nodeId.getValue());
+      if (table == null) {
+        throw new StatusException(StatusCodes.Bad_NodeIdUnknown);
+      }
+      Variant value = table.get(attributeId);
+      if (value == null) {
         // not valid attribute, must throw error
         throw new StatusException(StatusCodes.Bad_AttributeIdInvalid);
       }
-      dataValue.setValue(new Variant(value));
+      dataValue.setValue(value);
       dataValue.setServerTimestamp(DateTime.currentTime());
     }
 
@@ -125,7 +100,11 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
       DataValue cur = new DataValue();
       dataItem.getDataValue(cur);
       DataValue newValue = IoManager.applyIndexRangeToWriteValue(cur, dataValue, indexRange);
-      dataItem.setValue(newValue.getValue().getValue(), dataValue.getStatusCode());
+      try {
+        dataItem.setValue(newValue.getValue().getValue(), dataValue.getStatusCode());
+      } catch (IllegalArgumentException e) {
+        throw new StatusException(StatusCodes.Bad_TypeMismatch);
+      }
       return true;
     }
   }
@@ -213,6 +192,12 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
   private static final String DATA_ITEM_TYPE_NAME = "NonUaNodeDataItemType";
   private static final Logger logger = LoggerFactory.getLogger(NonUaNodeComplianceNodeManager.class);
 
+  /**
+   * The non-value attributes of all nodes, by the Value part of their NodeIds. The tables are built
+   * once, since the nodes never change, and shared by all reads.
+   */
+  private final Map<String, AttributeTable> attributes = new ConcurrentHashMap<String, AttributeTable>();
+
   private final ExpandedNodeId dataItemFolder;
 
   private final ExpandedNodeId dataItemType;
@@ -220,8 +205,9 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
 
   private final Map<String, NonUaNodeDataItem> map = new ConcurrentHashMap<String, NonUaNodeDataItem>();
 
-  private final Map<String, Collection<MonitoredDataItem>> monitoredItems =
-      new ConcurrentHashMap<String, Collection<MonitoredDataItem>>();
+  private final TypedValueStore valueStore = new TypedValueStore();
+
+  private final DataChangeFanout<String> monitoredItems = new DataChangeFanout<String>();
 
   public NonUaNodeComplianceNodeManager(UaServer server, String namespaceUri) {
     super(server, namespaceUri);
@@ -237,12 +223,23 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
     }
 
     for (StaticData t : StaticData.STATIC_DATAS) {
-      NonUaNodeDataItem item = new NonUaNodeDataItem(this, t.getBaseName());
-      item.setDataType(t.getDataTypeId());
+      NonUaNodeDataItem item = new NonUaNodeDataItem(this, t.getBaseName(), t.getDataTypeId(), t.getInitialValue());
       item.setValue(t.getInitialValue());
       map.put(item.getName(), item);
     }
 
+    // The data items and their type share the attributes of a scalar variable
+    AttributeTable variable = AttributeTable.EMPTY.with(Attributes.ValueRank, ValueRanks.Scalar)
+        .with(Attributes.ArrayDimensions, null);
+    AttributeTable dataItem = variable.with(Attributes.AccessLevel, AccessLevels.READ_WRITE.asBuiltInType())
+        .with(Attributes.Historizing, false);
+    addAttributes(dataItemFolder, AttributeTable.EMPTY.with(Attributes.EventNotifier, EventNotifierType.of()));
+    addAttributes(dataItemType, variable.with(Attributes.DataType, Identifiers.BaseDataType));
+    for (NonUaNodeDataItem item : map.values()) {
+      addAttributes(new ExpandedNodeId(null, getNamespaceIndex(), item.getName()),
+          dataItem.with(Attributes.DataType, item.getDataType()));
+    }
+
     ioManager = new NonUaNodeIoManager(this);
   }
 
@@ -250,6 +247,13 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
     return ioManager;
   }
 
+  /**
+   * @return the store of the values of the data items
+   */
+  public TypedValueStore getValueStore() {
+    return valueStore;
+  }
+
   @Override
   public NodeId getVariableDataType(NodeId nodeId, UaValueNode variable) throws StatusException {
     if (nodeId == null) {
@@ -273,14 +277,26 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
    * @param dataItem
    */
   public void notifyMonitoredDataItems(NonUaNodeDataItem dataItem) {
-    // Get the list of items watching dataItem
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItem.getName());
-    if (c != null) {
-      for (MonitoredDataItem item : c) {
-        DataValue dataValue = new DataValue();
-        dataItem.getDataValue(dataValue);
-        item.notifyDataChange(dataValue);
-      }
+    if (monitoredItems.isMonitored(dataItem.getName())) {
+      // One value shared by all items watching dataItem
+      DataValue dataValue = new DataValue();
+      dataItem.getDataValue(dataValue);
+      monitoredItems.publish(dataItem.getName(), dataValue);
+    }
+  }
+
+  /**
+   * Adds the attributes that all nodes have to the given ones and stores them for the node.
+   */
+  private void addAttributes(ExpandedNodeId nodeId, AttributeTable nodeAttributes) {
+    try {
+      attributes.put((String) nodeId.getValue(),
+          nodeAttributes.with(Attributes.NodeId, getNamespaceTable().toNodeId(nodeId))
+              .with(Attributes.BrowseName, getBrowseName(nodeId, null))
+              .with(Attributes.DisplayName, getDisplayName(nodeId, null, null)).with(Attributes.Description, null)
+              .with(Attributes.NodeClass, getNodeClass(nodeId, null)).with(Attributes.WriteMask, UnsignedInteger.ZERO));
+    } catch (ServiceResultException e) {
+      throw new RuntimeException(e);
     }
   }
 
@@ -316,13 +332,8 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
       MonitoredDataItem item) {
     // Add all items that monitor the same node to the same collection
     final Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c == null) {
-      c = new CopyOnWriteArrayList<MonitoredDataItem>();
-      monitoredItems.put((String) dataItemName, c);
-    }
-    c.add(item);
-    logger.debug("afterCreateMonitoredDataItem: nodeId=" + item.getNodeId() + " c.size()=" + c.size());
+    int count = monitoredItems.add((String) dataItemName, item);
+    logger.debug("afterCreateMonitoredDataItem: nodeId=" + item.getNodeId() + " c.size()=" + count);
   }
 
   @Override
@@ -331,14 +342,8 @@ public class NonUaNodeComplianceNodeManager extends NodeManager {
     // Find the collection in which the monitoredItem is
     // and remove the item from the collection
     Object dataItemName = item.getNodeId().getValue();
-    Collection<MonitoredDataItem> c = monitoredItems.get(dataItemName);
-    if (c != null) {
-      logger.debug("deleteMonitoredItem: collection size=" + c.size());
-      c.remove(item);
-      if (c.isEmpty()) {
-        monitoredItems.remove(dataItemName);
-        logger.debug("deleteMonitoredItem: monitoredItems size=" + monitoredItems.size());
-      }
+    if (!monitoredItems.remove((String) dataItemName, item)) {
+      logger.debug("deleteMonitoredItem: monitoredItems size=" + monitoredItems.size());
     }
   }
 
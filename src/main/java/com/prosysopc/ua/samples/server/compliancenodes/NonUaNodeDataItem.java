@@ -10,21 +10,32 @@ import com.prosysopc.ua.stack.builtintypes.DataValue;
 import com.prosysopc.ua.stack.builtintypes.DateTime;
 import com.prosysopc.ua.stack.builtintypes.NodeId;
 import com.prosysopc.ua.stack.builtintypes.StatusCode;
-import com.prosysopc.ua.stack.builtintypes.Variant;
-import com.prosysopc.ua.stack.core.StatusCodes;
 
+/**
+ * A data item of {@link NonUaNodeComplianceNodeManager}. The value, status and timestamp of the item
+ * are kept in the {@link TypedValueStore} of the manager.
+ */
 public class NonUaNodeDataItem {
 
-  private NodeId dataType;
+  private final NodeId dataType;
   private final NonUaNodeComplianceNodeManager manager;
   private final String name;
-  private StatusCode status = StatusCode.valueOf(StatusCodes.Bad_WaitingForInitialData);
-  private DateTime timestamp;
-  private Object value;
+  private final int slot;
+  private final TypedValueStore store;
 
-  public NonUaNodeDataItem(NonUaNodeComplianceNodeManager manager, String name) {
+  /**
+   * @param manager the node manager of the item
+   * @param name the name of the item
+   * @param dataType the data type of the item
+   * @param initialValue the initial value of the item, which also decides how it is stored
+   */
+  public NonUaNodeDataItem(NonUaNodeComplianceNodeManager manager, String name, NodeId dataType,
+      Object initialValue) {
     this.manager = manager;
     this.name = name;
+    this.dataType = dataType;
+    this.store = manager.getValueStore();
+    this.slot = store.add(dataType, initialValue);
   }
 
   public NodeId getDataType() {
@@ -32,47 +43,43 @@ public class NonUaNodeDataItem {
   }
 
   public void getDataValue(DataValue dataValue) {
-    dataValue.setValue(new Variant(getValue()));
-    dataValue.setStatusCode(getStatus());
-    dataValue.setServerTimestamp(DateTime.currentTime());
-    dataValue.setSourceTimestamp(timestamp);
+    store.getDataValue(slot, dataValue);
   }
 
   public String getName() {
     return name;
   }
 
+  /**
+   * @return the slot of the item in the value store
+   */
+  public int getSlot() {
+    return slot;
+  }
+
   public StatusCode getStatus() {
-    return status;
+    return store.getStatus(slot);
   }
 
   public DateTime getTimestamp() {
-    return timestamp;
+    return store.getTimestamp(slot);
   }
 
   public Object getValue() {
-    return value;
-  }
-
-  public void setDataType(NodeId dataType) {
-    this.dataType = dataType;
+    return store.getValue(slot);
   }
 
   public void setValue(Object value) {
     setValue(value, StatusCode.GOOD);
   }
 
+  /**
+   * @param status the status of the value, null for Bad
+   * @throws IllegalArgumentException if the value does not match the data type of the item
+   */
   public void setValue(Object value, StatusCode status) {
-    if (status == null) {
-      status = StatusCode.BAD;
+    if (store.setValue(slot, value, status == null ? StatusCode.BAD : status, DateTime.currentTime().getValue())) {
       manager.notifyMonitoredDataItems(this);
     }
-    if ((this.value != value) || !this.status.equals(status)) {
-      this.value = value;
-      this.status = status;
-      this.timestamp = DateTime.currentTime();
-      manager.notifyMonitoredDataItems(this);
-    }
-
   }
 }
@@ -0,0 +1,657 @@
+/**
+ * Prosys OPC UA Java SDK
+ * Copyright (c) Prosys OPC Ltd.
+ * <http://www.prosysopc.com>
+ * All rights reserved.
+ */
+package com.prosysopc.ua.samples.server.compliancenodes;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+import com.prosysopc.ua.stack.builtintypes.ByteString;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedInteger;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * The values of data items, stored by data type.
+ * <p>
+ * Each item has a slot and a kind, which is decided by its data type and initial value. Boolean,
+ * Int16, Int32, Int64, Float and Double values are kept in primitive arrays of their own type.
+ * Strings and ByteStrings of up to {@link #MAX_LENGTH} chars or bytes are kept in fixed-size cells
+ * of a char or byte array; longer ones are kept as objects. Values of the other types are kept as
+ * objects. The status and the source timestamp of all items are kept in primitive arrays as well.
+ * <p>
+ * The writers are serialized, but the readers do not lock. Each item has a version, which a write
+ * makes odd while it changes the item and even again when it is done (a seqlock per item). A read
+ * that overlaps a write of the item sees the version change and reads the item again, so it always
+ * returns a value, status and timestamp that belong together.
+ * <p>
+ * The typed setters do not allocate, unless they keep a long value. The Variant and the DateTime
+ * of an item are created on the first read after a change and reused by the later reads, so
+ * repeated reads do not allocate either (apart from the server timestamp).
+ */
+public class TypedValueStore {
+  /**
+   * The storage kind of a data item.
+   */
+  public enum Kind {
+    BOOLEAN, BYTE_STRING, DOUBLE, FLOAT, INT16, INT32, INT64, OBJECT, STRING
+  }
+
+  /**
+   * The value, status and source timestamp of an item at one version, as returned by the reads.
+   */
+  private static final class Snapshot {
+    final StatusCode status;
+    final DateTime timestamp;
+    final Variant value;
+    final int version;
+
+    Snapshot(int version, Variant value, StatusCode status, DateTime timestamp) {
+      this.version = version;
+      this.value = value;
+      this.status = status;
+      this.timestamp = timestamp;
+    }
+  }
+
+  /**
+   * The maximum length of the String (in chars) and ByteString (in bytes) values that are kept in
+   * the fixed-size cells.
+   */
+  public static final int MAX_LENGTH = 256;
+
+  /** The length of a value that is longer than MAX_LENGTH and kept as an object */
+  private static final int LONG_LENGTH = -2;
+  private static final int NULL_LENGTH = -1;
+  private static final VarHandle VERSIONS = MethodHandles.arrayElementVarHandle(int[].class);
+  private static final int WAITING_FOR_INITIAL_DATA = StatusCodes.Bad_WaitingForInitialData.intValue();
+
+  // The arrays are replaced when they grow, so the readers read the fields again for every read
+  private volatile boolean[] booleans = new boolean[0];
+  /** The lengths of the ByteString values, by the index of the item */
+  private volatile int[] byteStringLengths = new int[0];
+  private volatile byte[] byteStrings = new byte[0];
+  private volatile char[] chars = new char[0];
+  /** The number of items of each kind */
+  private final int[] counts = new int[Kind.values().length];
+  private volatile double[] doubles = new double[0];
+  private volatile float[] floats = new float[0];
+  /** The index of each item in the array of its kind */
+  private volatile int[] indexes = new int[0];
+  private volatile short[] int16s = new short[0];
+  private volatile int[] int32s = new int[0];
+  private volatile long[] int64s = new long[0];
+  private volatile Kind[] kinds = new Kind[0];
+  /** The ByteString values longer than MAX_LENGTH, by the index of the item */
+  private volatile byte[][] longByteStrings = new byte[0][];
+  /** The String values longer than MAX_LENGTH, by the index of the item */
+  private volatile String[] longStrings = new String[0];
+  private volatile Object[] objects = new Object[0];
+  private volatile int size;
+  /** The last read value of each item, reused while the version of the item is the same */
+  private volatile Snapshot[] snapshots = new Snapshot[0];
+  private volatile int[] statuses = new int[0];
+  /** The lengths of the String values, by the index of the item */
+  private volatile int[] stringLengths = new int[0];
+  private volatile long[] timestamps = new long[0];
+  /** The version of each item: odd while the item is being written */
+  private volatile int[] versions = new int[0];
+
+  /**
+   * @return the storage kind for a value of the data type
+   */
+  public static Kind kindOf(NodeId dataType, Object value) {
+    if (Identifiers.Boolean.equals(dataType) && (value instanceof Boolean)) {
+      return Kind.BOOLEAN;
+    }
+    if (Identifiers.Int16.equals(dataType) && (value instanceof Short)) {
+      return Kind.INT16;
+    }
+    if (Identifiers.Int32.equals(dataType) && (value instanceof Integer)) {
+      return Kind.INT32;
+    }
+    if (Identifiers.Int64.equals(dataType) && (value instanceof Long)) {
+      return Kind.INT64;
+    }
+    if (Identifiers.Float.equals(dataType) && (value instanceof Float)) {
+      return Kind.FLOAT;
+    }
+    if (Identifiers.Double.equals(dataType) && (value instanceof Double)) {
+      return Kind.DOUBLE;
+    }
+    if (Identifiers.String.equals(dataType) && (value instanceof String)) {
+      return Kind.STRING;
+    }
+    if (Identifiers.ByteString.equals(dataType) && (value instanceof ByteString)) {
+      return Kind.BYTE_STRING;
+    }
+    return Kind.OBJECT;
+  }
+
+  private static int bits(StatusCode status) {
+    return status == null ? StatusCodes.Bad.intValue() : status.getValue().intValue();
+  }
+
+  private static int grow(int length) {
+    return Math.max(8, length * 2);
+  }
+
+  private static StatusCode statusOf(int bits) {
+    return bits == 0 ? StatusCode.GOOD : StatusCode.valueOf(UnsignedInteger.valueOf(bits & 0xFFFFFFFFL));
+  }
+
+  /**
+   * Add an item with the initial status Bad_WaitingForInitialData.
+   *
+   * @param dataType the data type of the item
+   * @param initialValue a value of the item, which decides the kind together with the data type
+   * @return the slot of the item
+   */
+  public synchronized int add(NodeId dataType, Object initialValue) {
+    Kind kind = kindOf(dataType, initialValue);
+    int slot = size;
+    if (slot == kinds.length) {
+      int capacity = grow(slot);
+      // The versions first: a reader that sees any of the new arrays also sees the new versions
+      versions = Arrays.copyOf(versions, capacity);
+      indexes = Arrays.copyOf(indexes, capacity);
+      kinds = Arrays.copyOf(kinds, capacity);
+      snapshots = Arrays.copyOf(snapshots, capacity);
+      statuses = Arrays.copyOf(statuses, capacity);
+      timestamps = Arrays.copyOf(timestamps, capacity);
+    }
+    kinds[slot] = kind;
+    statuses[slot] = WAITING_FOR_INITIAL_DATA;
+    indexes[slot] = allocate(kind);
+    size = slot + 1;
+    return slot;
+  }
+
+  public boolean getBoolean(int slot) {
+    int i = index(slot, Kind.BOOLEAN);
+    while (true) {
+      int version = beginRead(slot);
+      boolean value = booleans[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  /**
+   * Sets the value, status and source timestamp of the item to the DataValue.
+   */
+  public void getDataValue(int slot, DataValue dataValue) {
+    Snapshot snapshot = snapshot(slot);
+    dataValue.setValue(snapshot.value);
+    dataValue.setStatusCode(snapshot.status);
+    dataValue.setServerTimestamp(DateTime.currentTime());
+    dataValue.setSourceTimestamp(snapshot.timestamp);
+  }
+
+  public double getDouble(int slot) {
+    int i = index(slot, Kind.DOUBLE);
+    while (true) {
+      int version = beginRead(slot);
+      double value = doubles[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public float getFloat(int slot) {
+    int i = index(slot, Kind.FLOAT);
+    while (true) {
+      int version = beginRead(slot);
+      float value = floats[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public short getInt16(int slot) {
+    int i = index(slot, Kind.INT16);
+    while (true) {
+      int version = beginRead(slot);
+      short value = int16s[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public int getInt32(int slot) {
+    int i = index(slot, Kind.INT32);
+    while (true) {
+      int version = beginRead(slot);
+      int value = int32s[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public long getInt64(int slot) {
+    int i = index(slot, Kind.INT64);
+    while (true) {
+      int version = beginRead(slot);
+      long value = int64s[i];
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public Kind getKind(int slot) {
+    return kinds[slot];
+  }
+
+  public StatusCode getStatus(int slot) {
+    return snapshot(slot).status;
+  }
+
+  /**
+   * @return the source timestamp of the item, null if it has never been set
+   */
+  public DateTime getTimestamp(int slot) {
+    return snapshot(slot).timestamp;
+  }
+
+  /**
+   * @return the value of the item as an object, e.g. a Double for the DOUBLE items
+   */
+  public Object getValue(int slot) {
+    while (true) {
+      int version = beginRead(slot);
+      Object value = readValue(slot);
+      if (endRead(slot, version)) {
+        return value;
+      }
+    }
+  }
+
+  public synchronized boolean setBoolean(int slot, boolean value, StatusCode status, long time) {
+    int i = index(slot, Kind.BOOLEAN);
+    int bits = bits(status);
+    if ((booleans[i] == value) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    booleans[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  /**
+   * @param value the bytes of the value, null for a null ByteString; a value longer than
+   *        {@link #MAX_LENGTH} is copied and kept as an object
+   */
+  public synchronized boolean setByteString(int slot, byte[] value, StatusCode status, long time) {
+    int i = index(slot, Kind.BYTE_STRING);
+    int bits = bits(status);
+    int length = value == null ? NULL_LENGTH : value.length > MAX_LENGTH ? LONG_LENGTH : value.length;
+    int offset = i * MAX_LENGTH;
+    boolean changed = byteStringLengths[i] != length;
+    if (length == LONG_LENGTH) {
+      changed |= !Arrays.equals(longByteStrings[i], value);
+    }
+    for (int b = 0; !changed && (b < length); b++) {
+      changed = byteStrings[offset + b] != value[b];
+    }
+    if (!changed && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    if (length == LONG_LENGTH) {
+      longByteStrings[i] = value.clone();
+    } else {
+      longByteStrings[i] = null;
+      if (length > 0) {
+        System.arraycopy(value, 0, byteStrings, offset, length);
+      }
+    }
+    byteStringLengths[i] = length;
+    return endWrite(slot, bits, time);
+  }
+
+  public synchronized boolean setDouble(int slot, double value, StatusCode status, long time) {
+    int i = index(slot, Kind.DOUBLE);
+    int bits = bits(status);
+    if ((Double.doubleToLongBits(doubles[i]) == Double.doubleToLongBits(value)) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    doubles[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  public synchronized boolean setFloat(int slot, float value, StatusCode status, long time) {
+    int i = index(slot, Kind.FLOAT);
+    int bits = bits(status);
+    if ((Float.floatToIntBits(floats[i]) == Float.floatToIntBits(value)) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    floats[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  public synchronized boolean setInt16(int slot, short value, StatusCode status, long time) {
+    int i = index(slot, Kind.INT16);
+    int bits = bits(status);
+    if ((int16s[i] == value) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    int16s[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  public synchronized boolean setInt32(int slot, int value, StatusCode status, long time) {
+    int i = index(slot, Kind.INT32);
+    int bits = bits(status);
+    if ((int32s[i] == value) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    int32s[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  public synchronized boolean setInt64(int slot, long value, StatusCode status, long time) {
+    int i = index(slot, Kind.INT64);
+    int bits = bits(status);
+    if ((int64s[i] == value) && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    int64s[i] = value;
+    return endWrite(slot, bits, time);
+  }
+
+  /**
+   * @param value the value, null for a null String; a value longer than {@link #MAX_LENGTH} is kept
+   *        as an object
+   */
+  public synchronized boolean setString(int slot, String value, StatusCode status, long time) {
+    int i = index(slot, Kind.STRING);
+    int bits = bits(status);
+    int length = value == null ? NULL_LENGTH : value.length() > MAX_LENGTH ? LONG_LENGTH : value.length();
+    int offset = i * MAX_LENGTH;
+    boolean changed = stringLengths[i] != length;
+    if (length == LONG_LENGTH) {
+      changed |= !value.equals(longStrings[i]);
+    }
+    for (int c = 0; !changed && (c < length); c++) {
+      changed = chars[offset + c] != value.charAt(c);
+    }
+    if (!changed && (statuses[slot] == bits)) {
+      return false;
+    }
+    beginWrite(slot);
+    if (length == LONG_LENGTH) {
+      longStrings[i] = value;
+    } else {
+      longStrings[i] = null;
+      if (length > 0) {
+        value.getChars(0, length, chars, offset);
+      }
+    }
+    stringLengths[i] = length;
+    return endWrite(slot, bits, time);
+  }
+
+  /**
+   * Sets the value of the item from an object, e.g. a value written by a client.
+   *
+   * @param status the status code, null for Bad
+   * @param time the time of the change, as raw DateTime ticks
+   * @return whether the value or status changed
+   * @throws IllegalArgumentException if the value does not match the kind of the item
+   */
+  public synchronized boolean setValue(int slot, Object value, StatusCode status, long time) {
+    Kind kind = kinds[slot];
+    if ((value == null) ? (kind != Kind.STRING) && (kind != Kind.BYTE_STRING) && (kind != Kind.OBJECT)
+        : (kind != Kind.OBJECT) && (kindOf(dataTypeOf(kind), value) != kind)) {
+      throw new IllegalArgumentException("Value does not match the data type of the item: " + value);
+    }
+    switch (kind) {
+      case BOOLEAN:
+        return setBoolean(slot, (Boolean) value, status, time);
+      case BYTE_STRING:
+        return setByteString(slot, value == null ? null : ((ByteString) value).getValue(), status, time);
+      case DOUBLE:
+        return setDouble(slot, (Double) value, status, time);
+      case FLOAT:
+        return setFloat(slot, (Float) value, status, time);
+      case INT16:
+        return setInt16(slot, (Short) value, status, time);
+      case INT32:
+        return setInt32(slot, (Integer) value, status, time);
+      case INT64:
+        return setInt64(slot, (Long) value, status, time);
+      case STRING:
+        return setString(slot, (String) value, status, time);
+      default:
+        int i = indexes[slot];
+        int bits = bits(status);
+        if ((objects[i] == value) && (statuses[slot] == bits)) {
+          return false;
+        }
+        beginWrite(slot);
+        objects[i] = value;
+        return endWrite(slot, bits, time);
+    }
+  }
+
+  public int size() {
+    return size;
+  }
+
+  private static NodeId dataTypeOf(Kind kind) {
+    switch (kind) {
+      case BOOLEAN:
+        return Identifiers.Boolean;
+      case BYTE_STRING:
+        return Identifiers.ByteString;
+      case DOUBLE:
+        return Identifiers.Double;
+      case FLOAT:
+        return Identifiers.Float;
+      case INT16:
+        return Identifiers.Int16;
+      case INT32:
+        return Identifiers.Int32;
+      case INT64:
+        return Identifiers.Int64;
+      case STRING:
+        return Identifiers.String;
+      default:
+        return Identifiers.BaseDataType;
+    }
+  }
+
+  private int allocate(Kind kind) {
+    int index = counts[kind.ordinal()]++;
+    switch (kind) {
+      case BOOLEAN:
+        if (index == booleans.length) {
+          booleans = Arrays.copyOf(booleans, grow(index));
+        }
+        break;
+      case BYTE_STRING:
+        if (index == byteStringLengths.length) {
+          byteStringLengths = Arrays.copyOf(byteStringLengths, grow(index));
+          byteStrings = Arrays.copyOf(byteStrings, byteStringLengths.length * MAX_LENGTH);
+          longByteStrings = Arrays.copyOf(longByteStrings, byteStringLengths.length);
+        }
+        byteStringLengths[index] = NULL_LENGTH;
+        break;
+      case DOUBLE:
+        if (index == doubles.length) {
+          doubles = Arrays.copyOf(doubles, grow(index));
+        }
+        break;
+      case FLOAT:
+        if (index == floats.length) {
+          floats = Arrays.copyOf(floats, grow(index));
+        }
+        break;
+      case INT16:
+        if (index == int16s.length) {
+          int16s = Arrays.copyOf(int16s, grow(index));
+        }
+        break;
+      case INT32:
+        if (index == int32s.length) {
+          int32s = Arrays.copyOf(int32s, grow(index));
+        }
+        break;
+      case INT64:
+        if (index == int64s.length) {
+          int64s = Arrays.copyOf(int64s, grow(index));
+        }
+        break;
+      case STRING:
+        if (index == stringLengths.length) {
+          stringLengths = Arrays.copyOf(stringLengths, grow(index));
+          chars = Arrays.copyOf(chars, stringLengths.length * MAX_LENGTH);
+          longStrings = Arrays.copyOf(longStrings, stringLengths.length);
+        }
+        stringLengths[index] = NULL_LENGTH;
+        break;
+      default:
+        if (index == objects.length) {
+          objects = Arrays.copyOf(objects, grow(index));
+        }
+        break;
+    }
+    return index;
+  }
+
+  /**
+   * Wait until no write of the item is in progress.
+   *
+   * @return the version of the item, to be checked with {@link #endRead}
+   */
+  private int beginRead(int slot) {
+    int[] v = versions;
+    int version;
+    while (((version = (int) VERSIONS.getAcquire(v, slot)) & 1) != 0) {
+      Thread.onSpinWait();
+    }
+    return version;
+  }
+
+  /**
+   * Make the version of the item odd before changing it. Called only by the writers.
+   */
+  private void beginWrite(int slot) {
+    int[] v = versions;
+    VERSIONS.setOpaque(v, slot, v[slot] + 1);
+    // The version must be odd before any of the values change
+    VarHandle.storeStoreFence();
+  }
+
+  /**
+   * @return whether the item was not written since {@link #beginRead}, so the values read in
+   *         between belong together
+   */
+  private boolean endRead(int slot, int version) {
+    VarHandle.loadLoadFence();
+    return (int) VERSIONS.getOpaque(versions, slot) == version;
+  }
+
+  /**
+   * Set the status and the timestamp of the item and make its version even again.
+   *
+   * @return true
+   */
+  private boolean endWrite(int slot, int bits, long time) {
+    statuses[slot] = bits;
+    timestamps[slot] = time;
+    int[] v = versions;
+    VERSIONS.setRelease(v, slot, v[slot] + 1);
+    return true;
+  }
+
+  private int index(int slot, Kind kind) {
+    if (kinds[slot] != kind) {
+      throw new IllegalArgumentException("Item " + slot + " is " + kinds[slot] + ", not " + kind);
+    }
+    return indexes[slot];
+  }
+
+  /**
+   * Read the value of the item, between {@link #beginRead} and {@link #endRead}. The result is only
+   * valid if the item was not written meanwhile.
+   */
+  private Object readValue(int slot) {
+    int i = indexes[slot];
+    switch (kinds[slot]) {
+      case BOOLEAN:
+        return booleans[i];
+      case BYTE_STRING:
+        int byteLength = byteStringLengths[i];
+        if (byteLength == NULL_LENGTH) {
+          return null;
+        }
+        if (byteLength == LONG_LENGTH) {
+          byte[] value = longByteStrings[i];
+          return value == null ? null : ByteString.valueOf(value.clone());
+        }
+        int offset = i * MAX_LENGTH;
+        return ByteString.valueOf(Arrays.copyOfRange(byteStrings, offset, offset + byteLength));
+      case DOUBLE:
+        return doubles[i];
+      case FLOAT:
+        return floats[i];
+      case INT16:
+        return int16s[i];
+      case INT32:
+        return int32s[i];
+      case INT64:
+        return int64s[i];
+      case STRING:
+        int length = stringLengths[i];
+        if (length == LONG_LENGTH) {
+          return longStrings[i];
+        }
+        return length == NULL_LENGTH ? null : new String(chars, i * MAX_LENGTH, length);
+      default:
+        return objects[i];
+    }
+  }
+
+  /**
+   * @return the value, status and timestamp of the current version of the item
+   */
+  private Snapshot snapshot(int slot) {
+    Snapshot snapshot = snapshots[slot];
+    if ((snapshot != null) && (snapshot.version == beginRead(slot))) {
+      return snapshot;
+    }
+    while (true) {
+      int version = beginRead(slot);
+      Object value = readValue(slot);
+      int bits = statuses[slot];
+      long time = timestamps[slot];
+      if (endRead(slot, version)) {
+        // The snapshot is immutable, so racing readers only store the same or an older version
+        snapshot = new Snapshot(version, new Variant(value), statusOf(bits), time == 0 ? null : new DateTime(time));
+        snapshots[slot] = snapshot;
+        return snapshot;
+      }
+    }
+  }
+}
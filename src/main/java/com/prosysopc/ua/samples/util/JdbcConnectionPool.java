@@ -0,0 +1,142 @@
+package com.prosysopc.ua.samples.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A small bounded pool of JDBC connections.
+ * <p>
+ * Connections are opened lazily up to the maximum size and reused afterwards, so a query does not
+ * pay for a new TCP connection and login. A connection that is no longer valid is replaced.
+ */
+public class JdbcConnectionPool implements AutoCloseable {
+
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+    private final BlockingQueue<Connection> idle;
+    private final Semaphore permits;
+    private final String password;
+    private final long timeoutMillis;
+    private final String url;
+    private final String user;
+    private volatile boolean closed;
+
+    /**
+     * @param url the JDBC URL
+     * @param user the database user
+     * @param password the password of the user
+     * @param maxSize the maximum number of open connections
+     * @param timeoutMillis how long to wait for a free connection
+     */
+    public JdbcConnectionPool(String url, String user, String password, int maxSize, long timeoutMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.timeoutMillis = timeoutMillis;
+        this.idle = new ArrayBlockingQueue<>(maxSize);
+        this.permits = new Semaphore(maxSize, true);
+    }
+
+    /**
+     * Borrows a connection. Closing the returned connection returns it to the pool.
+     *
+     * @return a connection with auto-commit enabled
+     * @throws SQLException if no connection becomes free in time or a new one cannot be opened
+     */
+    public Connection getConnection() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        try {
+            if (!permits.tryAcquire(timeoutMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("No free database connection within " + timeoutMillis + " ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", e);
+        }
+        try {
+            Connection connection;
+            while ((connection = idle.poll()) != null) {
+                if (connection.isValid(VALIDATION_TIMEOUT_SECONDS)) {
+                    return wrap(connection);
+                }
+                closeQuietly(connection);
+            }
+            return wrap(DriverManager.getConnection(url, user, password));
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        Connection connection;
+        while ((connection = idle.poll()) != null) {
+            closeQuietly(connection);
+        }
+    }
+
+    private void release(Connection connection) {
+        try {
+            if (closed || connection.isClosed() || !connection.getAutoCommit() || !idle.offer(connection)) {
+                closeQuietly(connection);
+            }
+        } catch (SQLException e) {
+            closeQuietly(connection);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private Connection wrap(Connection connection) {
+        // Return the connection to the pool on close() instead of closing it
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[] {Connection.class}, new InvocationHandler() {
+                    private boolean released;
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args)
+                            throws Throwable {
+                        switch (method.getName()) {
+                            case "close":
+                                if (!released) {
+                                    released = true;
+                                    release(connection);
+                                }
+                                return null;
+                            case "isClosed":
+                                return released || connection.isClosed();
+                            default:
+                                if (released) {
+                                    throw new SQLException("Connection has been returned to the pool");
+                                }
+                                try {
+                                    return method.invoke(connection, args);
+                                } catch (InvocationTargetException e) {
+                                    throw e.getCause();
+                                }
+                        }
+                    }
+                });
+    }
+
+    private static void closeQuietly(Connection connection) {
+        try {
+            connection.close();
+        } catch (SQLException e) {
+            // Nothing to do, the connection is discarded anyway
+        }
+    }
+}
@@ -12,9 +12,9 @@ import java.util.Properties;
 
 public class TimescaleUtil {
 
-    private static final String JDBC_URL  = "jdbc:postgresql://timescaledb:5432/mydb";
-    private static final String JDBC_USER = "admin";
-    private static final String JDBC_PWD  = "passwort123";
+    public static final String JDBC_URL  = "jdbc:postgresql://timescaledb:5432/mydb";
+    public static final String JDBC_USER = "admin";
+    public static final String JDBC_PWD  = "passwort123";
 
     public static void main(String[] args) {
         try (Connection conn = DriverManager.getConnection(JDBC_URL, JDBC_USER, JDBC_PWD)) {
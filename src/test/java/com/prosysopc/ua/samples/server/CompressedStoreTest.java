@@ -0,0 +1,175 @@
+package com.prosysopc.ua.samples.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Round trips of the Gorilla encoding of {@link CompressedStore}. Each test writes more samples
+ * than one block, so the samples are read back from sealed, encoded blocks.
+ */
+public class CompressedStoreTest {
+  private static final long START = DateTime.fromMillis(1700000000000L).getValue();
+  private static final int SAMPLES = 3000;
+
+  private static DataValue sample(long time, Object value, StatusCode status) {
+    DateTime t = new DateTime(time);
+    return new DataValue(new Variant(value), status, t, UnsignedShort.ZERO, t, UnsignedShort.ZERO);
+  }
+
+  private static CompressedStore store(long[] times, Object[] values, StatusCode[] statuses) {
+    CompressedStore store = new CompressedStore(times.length);
+    for (int i = 0; i < times.length; i++) {
+      store.add(sample(times[i], values[i], statuses == null ? StatusCode.GOOD : statuses[i]));
+    }
+    assertEquals(times.length, store.size());
+    return store;
+  }
+
+  private static long[] regularTimes() {
+    long[] times = new long[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      times[i] = START + i * 10000000L;
+    }
+    return times;
+  }
+
+  @Test
+  public void doublesKeepTheirBits() {
+    double[] special = {Double.NaN, 0.0, -0.0, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY,
+        Double.MIN_VALUE, -Double.MAX_VALUE, Double.longBitsToDouble(0x7ff8000000000123L), 1.0, 1.0 + Math.ulp(1.0)};
+    long[] times = regularTimes();
+    Object[] values = new Object[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      values[i] = (i % 3 == 0) ? special[(i / 3) % special.length] : Math.sin(i / 10.0) * 1000;
+    }
+    CompressedStore store = store(times, values, null);
+    for (int i = 0; i < SAMPLES; i++) {
+      DataValue value = store.get(i);
+      assertEquals(times[i], value.getSourceTimestamp().getValue(), "time " + i);
+      assertEquals(Double.doubleToRawLongBits((Double) values[i]),
+          Double.doubleToRawLongBits((Double) value.getValue().getValue()), "value " + i);
+    }
+  }
+
+  @Test
+  public void equalTimestamps() {
+    long[] times = new long[SAMPLES];
+    Object[] values = new Object[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      // Runs of up to five samples with the same time
+      times[i] = START + (i / 5) * 10000L;
+      values[i] = (double) i;
+    }
+    CompressedStore store = store(times, values, null);
+    for (int i = 0; i < SAMPLES; i++) {
+      assertEquals(times[i], store.time(i), "time " + i);
+      assertEquals((double) i, store.get(i).getValue().getValue());
+    }
+    assertEquals(5, store.lowerBound(times[5]));
+    assertEquals(10, store.upperBound(times[5]));
+  }
+
+  @Test
+  public void longGapsBetweenSamples() {
+    long[] gaps = {0, 1, 32767, -32768 + 1, 1L << 20, 1L << 31, 1L << 40, 365L * 24 * 3600 * 10000000L, 7};
+    long[] times = new long[SAMPLES];
+    Object[] values = new Object[SAMPLES];
+    long t = START;
+    for (int i = 0; i < SAMPLES; i++) {
+      // The gaps grow and shrink, so the delta-of-deltas use every width
+      t += Math.abs(gaps[i % gaps.length]) + (i % 2);
+      times[i] = t;
+      values[i] = (double) (i % 7);
+    }
+    CompressedStore store = store(times, values, null);
+    for (int i = 0; i < SAMPLES; i++) {
+      assertEquals(times[i], store.time(i), "time " + i);
+      assertEquals(times[i], store.get(i).getSourceTimestamp().getValue(), "source time " + i);
+    }
+  }
+
+  @Test
+  public void int64ValuesKeepAllBits() {
+    long[] special = {Long.MIN_VALUE, Long.MAX_VALUE, 0, -1, 1, 0x7ff0000000000001L, 0xfff8000000000000L,
+        0x7ff8000000000000L, (1L << 53) + 1, -(1L << 53) - 1};
+    long[] times = regularTimes();
+    Object[] values = new Object[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      values[i] = (i % 2 == 0) ? special[(i / 2) % special.length] : (long) i * 1000003L;
+    }
+    CompressedStore store = store(times, values, null);
+    for (int i = 0; i < SAMPLES; i++) {
+      assertEquals(values[i], store.get(i).getValue().getValue(), "value " + i);
+    }
+  }
+
+  @Test
+  public void statusesAndKindsAreKept() {
+    long[] times = regularTimes();
+    Object[] values = new Object[SAMPLES];
+    StatusCode[] statuses = new StatusCode[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      // A change of the kind seals the open block
+      values[i] = (i / 700) % 2 == 0 ? (Object) Integer.valueOf(i) : (Object) Boolean.valueOf(i % 3 == 0);
+      statuses[i] = (i % 11 == 0) ? StatusCode.valueOf(StatusCodes.Uncertain_LastUsableValue) : StatusCode.GOOD;
+    }
+    CompressedStore store = store(times, values, statuses);
+    for (int i = 0; i < SAMPLES; i++) {
+      DataValue value = store.get(i);
+      assertEquals(values[i], value.getValue().getValue(), "value " + i);
+      assertEquals(statuses[i].getValue().intValue(), value.getStatusCode().getValue().intValue(), "status " + i);
+    }
+  }
+
+  @Test
+  public void removeKeepsTheOrder() {
+    long[] times = regularTimes();
+    Object[] values = new Object[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++) {
+      values[i] = (double) i;
+    }
+    CompressedStore store = store(times, values, null);
+    store.remove(0, 100);
+    store.remove(1000, 1500);
+    assertEquals(SAMPLES - 600, store.size());
+    for (int i = 0; i < store.size(); i++) {
+      int original = i < 1000 ? i + 100 : i + 600;
+      assertEquals(times[original], store.time(i), "time " + i);
+      assertEquals((double) original, store.get(i).getValue().getValue());
+    }
+    assertEquals(0, store.lowerBound(times[100]));
+    assertEquals(1000, store.lowerBound(times[1100]));
+  }
+
+  @Test
+  public void capacityDropsTheOldestSamples() {
+    long[] times = regularTimes();
+    int capacity = 1500;
+    CompressedStore store = new CompressedStore(capacity);
+    for (int i = 0; i < SAMPLES; i++) {
+      store.add(sample(times[i], (double) i, StatusCode.GOOD));
+      assertEquals(Math.min(i + 1, capacity), store.size());
+      assertEquals(times[Math.max(0, i + 1 - capacity)], store.time(0), "first time " + i);
+    }
+    int first = SAMPLES - capacity;
+    for (int i = 0; i < capacity; i++) {
+      assertEquals(times[first + i], store.time(i), "time " + i);
+      assertEquals((double) (first + i), store.get(i).getValue().getValue());
+    }
+    assertEquals(0, store.lowerBound(times[0]));
+    assertEquals(100, store.lowerBound(times[first + 100]));
+    store.remove(100, 200);
+    assertEquals(capacity - 100, store.size());
+    assertEquals((double) (first + 99), store.get(99).getValue().getValue());
+    assertEquals((double) (first + 200), store.get(100).getValue().getValue());
+    assertEquals((double) (SAMPLES - 1), store.get(store.size() - 1).getValue().getValue());
+  }
+}
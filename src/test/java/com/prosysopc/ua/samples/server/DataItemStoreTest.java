@@ -0,0 +1,94 @@
+package com.prosysopc.ua.samples.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Lookup and growth of the open addressing table of {@link DataItemStore}.
+ */
+public class DataItemStoreTest {
+
+  @Test
+  public void addAndFindAcrossGrowth() {
+    DataItemStore store = new DataItemStore(3);
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i, store.add("DataItem_" + i));
+    }
+    assertEquals(100000, store.size());
+    for (int i = 0; i < 100000; i++) {
+      assertEquals(i, store.find("DataItem_" + i));
+      assertEquals("DataItem_" + i, store.getName(i));
+    }
+  }
+
+  @Test
+  public void addingAgainReturnsTheSameSlot() {
+    DataItemStore store = new DataItemStore(16);
+    assertEquals(0, store.add("A"));
+    assertEquals(1, store.add("B"));
+    assertEquals(0, store.add("A"));
+    assertEquals(2, store.size());
+  }
+
+  @Test
+  public void collidingNamesAreDistinct() {
+    // "Aa" and "BB" have the same hash code, and so have all their concatenations
+    DataItemStore store = new DataItemStore(4);
+    String[] names = {"AaAa", "AaBB", "BBAa", "BBBB", "Aa", "BB"};
+    for (int i = 0; i < names.length; i++) {
+      assertEquals(i, store.add(names[i]));
+    }
+    for (int i = 0; i < names.length; i++) {
+      assertEquals(i, store.find(names[i]));
+    }
+    assertEquals(-1, store.find("AaAaAa"));
+  }
+
+  @Test
+  public void unknownNamesAreNotFound() {
+    DataItemStore store = new DataItemStore(16);
+    store.add("DataItem_1");
+    assertEquals(-1, store.find("DataItem_2"));
+    assertEquals(-1, store.find(null));
+    assertEquals(-1, store.find(Integer.valueOf(1)));
+  }
+
+  @Test
+  public void valuesSurviveGrowth() {
+    DataItemStore store = new DataItemStore(2);
+    store.add("A");
+    assertTrue(store.setValue(0, 42.0, StatusCode.GOOD, 1000L));
+    assertFalse(store.setValue(0, 42.0, StatusCode.GOOD, 2000L));
+    for (int i = 0; i < 100; i++) {
+      store.add("Item" + i);
+    }
+    assertEquals(42.0, store.getValue(0));
+    assertEquals(1000L, store.getTimestamp(0));
+    assertEquals(StatusCodes.Bad_WaitingForInitialData.intValue(), store.getStatusBits(1));
+  }
+
+  @Test
+  public void numberedItems() {
+    DataItemStore store = new DataItemStore(1000, slot -> "DataItem_" + slot);
+    assertEquals(1000, store.size());
+    assertEquals("DataItem_999", store.getName(999));
+    assertThrows(IllegalStateException.class, () -> store.add("Other"));
+  }
+
+  @Test
+  public void invalidSlotsRejectTheWholeBatch() {
+    DataItemStore store = new DataItemStore(10, slot -> "DataItem_" + slot);
+    int[] slots = {1, 2, 10};
+    double[] values = {1, 2, 3};
+    assertThrows(IllegalArgumentException.class, () -> store.setValues(slots, values, 3, StatusCode.GOOD, 1L));
+    assertEquals(0L, store.getTimestamp(1));
+    assertEquals(2, store.setValues(slots, values, 2, StatusCode.GOOD, 1L));
+  }
+}
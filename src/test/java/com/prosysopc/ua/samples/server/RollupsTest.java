@@ -0,0 +1,199 @@
+package com.prosysopc.ua.samples.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.prosysopc.ua.AggregateCalculator;
+import com.prosysopc.ua.StatusException;
+import com.prosysopc.ua.stack.builtintypes.DataValue;
+import com.prosysopc.ua.stack.builtintypes.DateTime;
+import com.prosysopc.ua.stack.builtintypes.NodeId;
+import com.prosysopc.ua.stack.builtintypes.StatusCode;
+import com.prosysopc.ua.stack.builtintypes.UnsignedByte;
+import com.prosysopc.ua.stack.builtintypes.UnsignedShort;
+import com.prosysopc.ua.stack.builtintypes.Variant;
+import com.prosysopc.ua.stack.core.AggregateConfiguration;
+import com.prosysopc.ua.stack.core.HistoryData;
+import com.prosysopc.ua.stack.core.Identifiers;
+import com.prosysopc.ua.stack.core.StatusCodes;
+
+/**
+ * Compares the aggregates of {@link Rollups} with those of the AggregateCalculator on the same
+ * samples. The samples are taken every 100 ms from a full hour on, so the intervals start on a
+ * sample.
+ */
+public class RollupsTest {
+  private static final long START = DateTime.fromMillis(1700002800000L).getValue();
+  private static final long STEP = 100 * 10000L;
+  private static final int SAMPLES = 600;
+  private static final NodeId[] AGGREGATES = {Identifiers.AggregateFunction_Minimum,
+      Identifiers.AggregateFunction_Maximum, Identifiers.AggregateFunction_Count, Identifiers.AggregateFunction_Start,
+      Identifiers.AggregateFunction_End, Identifiers.AggregateFunction_Average,
+      Identifiers.AggregateFunction_TimeAverage};
+
+  /** The samples of a list, as the AggregateCalculator reads them from a ValueHistory */
+  private static class ListProvider implements AggregateCalculator.HistoryDataProvider {
+    private final List<DataValue> samples;
+
+    ListProvider(List<DataValue> samples) {
+      this.samples = samples;
+    }
+
+    @Override
+    public DataValue readFirstAfterTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+      for (DataValue value : samples) {
+        long t = value.getSourceTimestamp().getValue();
+        if ((t > timeStamp.getValue()) || (includeValueAtTimestamp && (t == timeStamp.getValue()))) {
+          return value;
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public DataValue readFirstBeforeTimestamp(DateTime timeStamp, boolean includeValueAtTimestamp) {
+      for (int i = samples.size() - 1; i >= 0; i--) {
+        long t = samples.get(i).getSourceTimestamp().getValue();
+        if ((t < timeStamp.getValue()) || (includeValueAtTimestamp && (t == timeStamp.getValue()))) {
+          return samples.get(i);
+        }
+      }
+      return null;
+    }
+
+    @Override
+    public List<DataValue> readRawAll(DateTime startTime, DateTime endTime, boolean returnStartBound,
+        boolean returnEndBound) throws StatusException {
+      List<DataValue> result = new ArrayList<DataValue>();
+      if (returnStartBound) {
+        DataValue bound = readFirstBeforeTimestamp(startTime, false);
+        if (bound != null) {
+          result.add(bound);
+        }
+      }
+      for (DataValue value : samples) {
+        long t = value.getSourceTimestamp().getValue();
+        if ((t >= startTime.getValue()) && (t < endTime.getValue())) {
+          result.add(value);
+        }
+      }
+      if (returnEndBound) {
+        DataValue bound = readFirstAfterTimestamp(endTime, true);
+        if (bound != null) {
+          result.add(bound);
+        }
+      }
+      return result;
+    }
+  }
+
+  private static DataValue sample(int i, Object value, StatusCode status) {
+    DateTime t = new DateTime(START + i * STEP);
+    return new DataValue(new Variant(value), status, t, UnsignedShort.ZERO, t, UnsignedShort.ZERO);
+  }
+
+  private static Rollups rollups(List<DataValue> samples) {
+    Rollups rollups = new Rollups(true);
+    for (DataValue value : samples) {
+      rollups.add(value);
+    }
+    return rollups;
+  }
+
+  private static void assertSameAggregates(List<DataValue> samples, NodeId aggregateType, double tolerance)
+      throws StatusException {
+    DateTime start = new DateTime(START + 10 * STEP);
+    DateTime end = new DateTime(START + 510 * STEP);
+    DataValue[] actual = rollups(samples).read(start, end, 10000.0, aggregateType);
+    assertNotNull(actual, "rollups of " + aggregateType);
+    HistoryData expected = new HistoryData();
+    AggregateConfiguration configuration = new AggregateConfiguration(true, true, UnsignedByte.valueOf(100),
+        UnsignedByte.valueOf(100), false);
+    new AggregateCalculator().calculateAggregates(start, end, 10000.0, aggregateType, configuration, true,
+        new ListProvider(samples), null, expected);
+    assertEquals(expected.getDataValues().length, actual.length, "intervals of " + aggregateType);
+    for (int i = 0; i < actual.length; i++) {
+      DataValue e = expected.getDataValues()[i];
+      DataValue a = actual[i];
+      String message = aggregateType + " of interval " + i;
+      assertEquals(e.getStatusCode().isGood(), a.getStatusCode().isGood(), message);
+      Object ev = e.getValue().getValue();
+      Object av = a.getValue().getValue();
+      if (ev instanceof Double || ev instanceof Float) {
+        double d = ((Number) ev).doubleValue();
+        assertEquals(d, ((Number) av).doubleValue(), Math.abs(d) * tolerance, message);
+      } else if (Identifiers.AggregateFunction_Count.equals(aggregateType)) {
+        assertEquals(((Number) ev).longValue(), ((Number) av).longValue(), message);
+      } else {
+        assertEquals(ev, av, message);
+      }
+    }
+  }
+
+  @Test
+  public void doublesMatchTheAggregateCalculator() throws StatusException {
+    List<DataValue> samples = new ArrayList<DataValue>();
+    for (int i = 0; i < SAMPLES; i++) {
+      samples.add(sample(i, Math.sin(i / 7.0) * 100, StatusCode.GOOD));
+    }
+    for (NodeId aggregateType : AGGREGATES) {
+      assertSameAggregates(samples, aggregateType, 1e-12);
+    }
+  }
+
+  @Test
+  public void int64MatchTheAggregateCalculator() throws StatusException {
+    List<DataValue> samples = new ArrayList<DataValue>();
+    for (int i = 0; i < SAMPLES; i++) {
+      // Beyond the 53 bits of a double, so the extremes must not pass through one
+      samples.add(sample(i, (1L << 60) + (i * 7919L) % 1000, StatusCode.GOOD));
+    }
+    for (NodeId aggregateType : AGGREGATES) {
+      assertSameAggregates(samples, aggregateType, 1e-9);
+    }
+  }
+
+  @Test
+  public void int64KeepAllBits() {
+    List<DataValue> samples = new ArrayList<DataValue>();
+    for (int i = 0; i < SAMPLES; i++) {
+      samples.add(sample(i, (1L << 60) + i, StatusCode.GOOD));
+    }
+    Rollups rollups = rollups(samples);
+    DateTime start = new DateTime(START);
+    DateTime end = new DateTime(START + 500 * STEP);
+    DataValue[] min = rollups.read(start, end, 10000.0, Identifiers.AggregateFunction_Minimum);
+    DataValue[] max = rollups.read(start, end, 10000.0, Identifiers.AggregateFunction_Maximum);
+    for (int i = 0; i < min.length; i++) {
+      assertEquals((1L << 60) + i * 100L, min[i].getValue().getValue(), "minimum " + i);
+      assertEquals((1L << 60) + i * 100L + 99, max[i].getValue().getValue(), "maximum " + i);
+    }
+  }
+
+  @Test
+  public void samplesThatAreNotGoodUseTheRawData() {
+    List<DataValue> samples = new ArrayList<DataValue>();
+    for (int i = 0; i < SAMPLES; i++) {
+      StatusCode status = i == 255 ? StatusCode.valueOf(StatusCodes.Uncertain_LastUsableValue) : StatusCode.GOOD;
+      // The uncertain value lasts until the next sample, over the whole next second
+      if ((i <= 255) || (i >= 275)) {
+        samples.add(sample(i, (double) i, status));
+      }
+    }
+    Rollups rollups = rollups(samples);
+    for (NodeId aggregateType : AGGREGATES) {
+      assertNotNull(rollups.read(new DateTime(START), new DateTime(START + 200 * STEP), 10000.0, aggregateType));
+      assertNull(rollups.read(new DateTime(START), new DateTime(START + 300 * STEP), 10000.0, aggregateType));
+      assertNull(rollups.read(new DateTime(START + 260 * STEP), new DateTime(START + 270 * STEP), 1000.0,
+          aggregateType));
+      assertNotNull(rollups.read(new DateTime(START + 280 * STEP), new DateTime(START + 290 * STEP), 1000.0,
+          aggregateType));
+    }
+  }
+}